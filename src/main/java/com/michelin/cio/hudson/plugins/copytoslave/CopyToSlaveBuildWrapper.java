@@ -36,6 +36,7 @@ import hudson.model.Hudson;
 import hudson.model.Hudson.MasterComputer;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import io.jenkins.plugins.slurm.StagingCache;
 import java.io.IOException;
 import javax.servlet.ServletException;
 import net.sf.json.JSONObject;
@@ -130,7 +131,9 @@ public class CopyToSlaveBuildWrapper extends BuildWrapper {
                     projectWorkspaceOnSlave.toURI(), Computer.currentComputer().getNode().getDisplayName());
 
             // HUDSON-7999
-            rootFilePathOnMaster.copyRecursiveTo(includes, excludes, projectWorkspaceOnSlave);
+            if(!StagingCache.stage(rootFilePathOnMaster, includes, excludes, projectWorkspaceOnSlave, listener)) {
+                rootFilePathOnMaster.copyRecursiveTo(includes, excludes, projectWorkspaceOnSlave);
+            }
         }
 
         return new Environment() {
@@ -1,23 +1,34 @@
 package io.jenkins.plugins.slurm;
 
-import com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier;
 import com.michelin.cio.hudson.plugins.copytoslave.CopyToSlaveBuildWrapper;
 import hudson.AbortException;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import hudson.tasks.ArtifactArchiver;
 import hudson.tasks.Builder;
+import jenkins.model.ArtifactManager;
+import jenkins.model.Jenkins;
+import jenkins.model.StandardArtifactManager;
 import jenkins.tasks.SimpleBuildStep;
+import jenkins.util.BuildListenerAdapter;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Provides an interface within the Jenkins job configuration. Stores user input,
@@ -27,6 +38,35 @@ import java.util.Scanner;
  * @author Eli Chadwick
  */
 public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
+    /**
+     * Source of the random suffixes of scratch directory names.
+     */
+    private static final Random SCRATCH_RANDOM = new Random();
+
+    /**
+     * One range of job array indices: first[-last[:step]].
+     */
+    private static final Pattern ARRAY_RANGE = Pattern.compile("(\\d+)(?:-(\\d+)(?::(\\d+))?)?");
+
+    /**
+     * A size of memory as taken by sbatch --mem: a number, then optionally
+     * a unit (K, M, G or T; M if none).
+     */
+    private static final Pattern MEMORY_SIZE = Pattern.compile("(\\d+)([KMGT]?)B?", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Lines written before and after the user-entered content of the user script.
+     */
+    private static final String USER_SCRIPT_HEADER = "#!/bin/bash -xe\n"
+            + "#Script automatically generated by SLURM Plugin. User-entered content follows this comment. \n";
+    private static final String USER_SCRIPT_FOOTER = "#End of user-entered content.\n";
+
+    /**
+     * Queue which stands for whichever permitted queue the job is expected
+     * to finish soonest in.
+     */
+    public static final String AUTO_QUEUE = "auto";
+
     /**
      * Script as entered by user (i.e. without any filtering of invalid lines).
      */
@@ -74,6 +114,72 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
      */
     private String additionalFilesToRecover;
 
+    /**
+     * Submit the job without waiting on the submission command, and poll the
+     * batch system until the job finishes instead.
+     */
+    private boolean pollForCompletion;
+
+    /**
+     * Indices of the tasks to run as a job array, e.g.&nbsp;0-99 or 1,3,5-11:2.
+     * Null or empty to run a single job.
+     */
+    private String arrayTasks;
+
+    /**
+     * Largest number of array tasks to run at once, or 0 for no limit.
+     */
+    private int arrayMaxConcurrent;
+
+    /**
+     * Allow the job to share an allocation with other small jobs, as a job
+     * step of its own.
+     */
+    private boolean pack;
+
+    /**
+     * Memory required on each node, e.g.&nbsp;4G (MB if no unit is given).
+     * Null to use the default of the cluster.
+     */
+    private String memory;
+
+    /**
+     * Memory required for each CPU, in the same format as {@link #memory}.
+     * Null to use the default of the cluster.
+     */
+    private String memoryPerCpu;
+
+    /**
+     * Largest number of tasks to run on each node, or 0 for no limit.
+     */
+    private int tasksPerNode;
+
+    /**
+     * Generic resources required on each node, e.g.&nbsp;gpu:2 or mps:100.
+     */
+    private String gres;
+
+    /**
+     * Licenses required by the job, e.g.&nbsp;matlab:1.
+     */
+    private String licenses;
+
+    /**
+     * Quality of service requested for the job.
+     */
+    private String qos;
+
+    /**
+     * Account to charge the job to.
+     */
+    private String account;
+
+    /**
+     * Least walltime the job may be given if that lets it start sooner
+     * (minutes), or 0 to always give it the full walltime.
+     */
+    private int timeMin;
+
     /**
      * Sole constructor.
      */
@@ -140,6 +246,248 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
         return additionalFilesToRecover;
     }
 
+    public final boolean isPollForCompletion() {
+        return pollForCompletion;
+    }
+
+    @DataBoundSetter
+    public final void setPollForCompletion(final boolean pollForCompletion) {
+        this.pollForCompletion = pollForCompletion;
+    }
+
+    public final String getArrayTasks() {
+        return arrayTasks;
+    }
+
+    @DataBoundSetter
+    public final void setArrayTasks(final String arrayTasks) {
+        this.arrayTasks = arrayTasks == null ? null : arrayTasks.trim();
+    }
+
+    public final int getArrayMaxConcurrent() {
+        return arrayMaxConcurrent;
+    }
+
+    @DataBoundSetter
+    public final void setArrayMaxConcurrent(final int arrayMaxConcurrent) {
+        this.arrayMaxConcurrent = Math.max(0, arrayMaxConcurrent);
+    }
+
+    public final boolean isPack() {
+        return pack;
+    }
+
+    @DataBoundSetter
+    public final void setPack(final boolean pack) {
+        this.pack = pack;
+    }
+
+    public final String getMemory() {
+        return memory;
+    }
+
+    @DataBoundSetter
+    public final void setMemory(final String memory) {
+        this.memory = Util.fixEmptyAndTrim(memory);
+    }
+
+    public final String getMemoryPerCpu() {
+        return memoryPerCpu;
+    }
+
+    @DataBoundSetter
+    public final void setMemoryPerCpu(final String memoryPerCpu) {
+        this.memoryPerCpu = Util.fixEmptyAndTrim(memoryPerCpu);
+    }
+
+    public final int getTasksPerNode() {
+        return tasksPerNode;
+    }
+
+    @DataBoundSetter
+    public final void setTasksPerNode(final int tasksPerNode) {
+        this.tasksPerNode = tasksPerNode;
+    }
+
+    public final String getGres() {
+        return gres;
+    }
+
+    @DataBoundSetter
+    public final void setGres(final String gres) {
+        this.gres = Util.fixEmptyAndTrim(gres);
+    }
+
+    public final String getLicenses() {
+        return licenses;
+    }
+
+    @DataBoundSetter
+    public final void setLicenses(final String licenses) {
+        this.licenses = Util.fixEmptyAndTrim(licenses);
+    }
+
+    public final String getQos() {
+        return qos;
+    }
+
+    @DataBoundSetter
+    public final void setQos(final String qos) {
+        this.qos = Util.fixEmptyAndTrim(qos);
+    }
+
+    public final String getAccount() {
+        return account;
+    }
+
+    @DataBoundSetter
+    public final void setAccount(final String account) {
+        this.account = Util.fixEmptyAndTrim(account);
+    }
+
+    public final int getTimeMin() {
+        return timeMin;
+    }
+
+    @DataBoundSetter
+    public final void setTimeMin(final int timeMin) {
+        this.timeMin = timeMin;
+    }
+
+    /**
+     * Check whether the job requests any resources beyond nodes, tasks,
+     * CPUs, walltime, queue, features and exclusivity.
+     */
+    public final boolean hasResourceOptions() {
+        return memory != null || memoryPerCpu != null || tasksPerNode > 0 || gres != null
+                || licenses != null || qos != null || account != null || timeMin > 0;
+    }
+
+    /**
+     * Check whether the job is packed into an allocation with other jobs.
+     * Only jobs on a single, shared node can be packed; job arrays, exclusive
+     * jobs and jobs requesting other resources (which the shared allocation
+     * would not have) are always submitted on their own.
+     */
+    public final boolean isPacked() {
+        return pack && nodes == 1 && !exclusive && !isArrayJob() && !hasResourceOptions();
+    }
+
+    /**
+     * Check whether the job is submitted as a job array.
+     */
+    public final boolean isArrayJob() {
+        return arrayTasks != null && !arrayTasks.isEmpty();
+    }
+
+    /**
+     * Count the tasks of a job array.
+     *
+     * @param arrayTasks   indices of the tasks, as passed to sbatch --array
+     *                     (without a %max limit)
+     * @return the number of tasks, or -1 if the indices are not valid
+     */
+    public static int countArrayTasks(final String arrayTasks) {
+        if (arrayTasks == null || arrayTasks.trim().isEmpty()) {
+            return -1;
+        }
+        long count = 0;
+        for (String range : arrayTasks.trim().split(",", -1)) {
+            Matcher matcher = ARRAY_RANGE.matcher(range.trim());
+            if (!matcher.matches()) {
+                return -1;
+            }
+            try {
+                long first = Long.parseLong(matcher.group(1));
+                long last = matcher.group(2) == null ? first : Long.parseLong(matcher.group(2));
+                long step = matcher.group(3) == null ? 1 : Long.parseLong(matcher.group(3));
+                if (last < first || step < 1) {
+                    return -1;
+                }
+                count += (last - first) / step + 1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            if (count > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) count;
+    }
+
+    /**
+     * Parse a size of memory as taken by sbatch --mem, e.g.&nbsp;4096, 500M
+     * or 4G.
+     *
+     * @param memory   size of memory, with an optional unit (MB if none)
+     * @return the size in MB (rounded up), or -1 if it is not valid
+     */
+    public static long parseMemory(final String memory) {
+        if (memory == null) {
+            return -1;
+        }
+        Matcher matcher = MEMORY_SIZE.matcher(memory.trim());
+        if (!matcher.matches() || matcher.group(1).length() > 12) {
+            return -1;
+        }
+        long size = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2).toUpperCase()) {
+            case "K":
+                return (size + 1023) / 1024;
+            case "G":
+                return size * 1024;
+            case "T":
+                return size * 1024 * 1024;
+            default:
+                return size;
+        }
+    }
+
+    /**
+     * Get the names of the resources in a comma-separated request for GRES
+     * or licenses, without their counts (gpu:v100:2 is gpu:v100, matlab:1 is
+     * matlab).
+     *
+     * @param request   resources requested, may be null
+     * @return the names, in order
+     */
+    public static List<String> getResourceNames(final String request) {
+        List<String> names = new ArrayList<String>();
+        if (request == null) {
+            return names;
+        }
+        for (String resource : request.split(",")) {
+            String name = resource.trim();
+            int colon = name.lastIndexOf(':');
+            if (colon > 0 && name.substring(colon + 1).matches("\\d+")) {
+                name = name.substring(0, colon);
+            }
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the memory the job requests on each node, from {@link #memory}
+     * or {@link #memoryPerCpu} times the CPUs of the busiest node.
+     *
+     * @return memory in MB, or -1 if none is requested or it is not known
+     *         until variables are expanded
+     */
+    public final long getRequestedMemoryPerNode() {
+        if (memory != null) {
+            return parseMemory(memory);
+        }
+        long perCpu = parseMemory(memoryPerCpu);
+        if (perCpu < 0) {
+            return -1;
+        }
+        int tasksOnNode = tasksPerNode > 0 ? Math.min(tasks, tasksPerNode) : (tasks + nodes - 1) / nodes;
+        return perCpu * tasksOnNode * cpusPerTask;
+    }
+
     /**
      * Get the computer on which this Jenkins job is running.
      *
@@ -186,18 +534,13 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
      * @return a script with invalid lines filtered out
      */
     protected String filterScript(final String script, final String prefix) {
-        Scanner scanner = new Scanner(script);
-        StringBuffer buffer = new StringBuffer();
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            if (line.indexOf(prefix) == 0) { //only check start of line for prefix
-                continue;
-            } else {
-                buffer.append(line + "\n");
-            }
+        StringBuilder filtered = new StringBuilder(script.length());
+        try {
+            ScriptFilter.filter(script, prefix, filtered);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //StringBuilder does not throw
         }
-        String filteredScript = buffer.toString();
-        return filteredScript;
+        return filtered.toString();
     }
 
     /**
@@ -212,20 +555,19 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
      *         false otherwise (and false if the script is empty to begin with)
      */
     public final boolean isScriptValid(final String script, final String prefix) {
-        if (script == null || script.isEmpty()) {
-            return false;
-        }
-        String filteredScript = filterScript(script, prefix);
-        if (filteredScript.trim().length() == 0) {
-            return false;
+        try {
+            return ScriptFilter.filter(script, prefix, null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //nothing is written
         }
-        return true;
     }
 
     /**
      * Check if configuration of resources requested is valid. Configuration is
      * checked against resource limits imposed on the node, where applicable.
      * Where an input is optional and not entered by the user, set to default value.
+     * If the configuration is valid, the CPU time requested is reserved on the
+     * node, and must later be settled or refunded.
      *
      * @param node       the node on which the Jenkins job is running
      * @param listener   as provided to {@link #perform(Run, FilePath, Launcher, TaskListener)}
@@ -250,6 +592,13 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
             listener.error("'Walltime' input must be at least 1");
             return false;
         }
+        if (isArrayJob() && countArrayTasks(arrayTasks) < 1) {
+            listener.error("'Array tasks' must be indices or ranges of indices separated by commas, e.g. 0-99 or 1,3,5-11:2");
+            return false;
+        }
+        if (!isResourceRequestValid(listener)) {
+            return false;
+        }
         if (queue == null || queue.trim().isEmpty()) {
             queue="";
         }
@@ -270,27 +619,36 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
         //checks that require ResourceConfig to exist
         ResourceConfig config = node.getResourceConfig();
         if (config != null) {
-            if (nodes > config.getMaxNodesPerJob()) {
-                listener.error("'Nodes' selection is not within acceptable range (1-" + config.getMaxNodesPerJob() + ")");
-                return false;
+            //live limits of the cluster replace those entered by hand, if known
+            ClusterModel model = config.getClusterModel();
+            if (model != null) {
+                if (!isWithinPartitionLimits(model, listener)) {
+                    return false;
+                }
+            } else {
+                if (nodes > config.getMaxNodesPerJob()) {
+                    listener.error("'Nodes' selection is not within acceptable range (1-" + config.getMaxNodesPerJob() + ")");
+                    return false;
+                }
+                if (tasks * cpusPerTask > nodes * config.getCpusPerNode()) {
+                    listener.error("Total CPUs requested (" + tasks + "*" + cpusPerTask + "=" + tasks * cpusPerTask + ") exceed CPUs available on " + nodes + " nodes.");
+                    return false;
+                }
             }
-            if (tasks * cpusPerTask > nodes * config.getCpusPerNode()) {
-                listener.error("Total CPUs requested (" + tasks + "*" + cpusPerTask + "=" + tasks * cpusPerTask + ") exceed CPUs available on " + nodes + " nodes.");
+            if (!isPermittedByConfig(config, listener)) {
                 return false;
             }
             if (walltime * tasks * cpusPerTask > config.getMaxCpuTimePerJob()) {
                 listener.error("Walltime requested is too high (total CPU time requested may not exceed " + config.getMaxCpuTimePerJob() + " minutes)"); //TODO - fix this warning
                 return false;
-            } else if (config.getAvailableMinutes() - walltime * tasks * cpusPerTask < 0) {
-                listener.error("System has insufficient available CPU time for this job. Please contact your Jenkins administrator.");
-                return false;
             }
             //duplicated check, leaves space for setting a default later if desired
             if (queue == null || queue.trim().isEmpty()) {
                 //TODO: set a default? Warn about this? Add ResourceConfig option for setting default queue?
                 queue = "";
             } else if (config.getAvailableQueues() != null
-                    && !config.getAvailableQueues().isEmpty()) {
+                    && !config.getAvailableQueues().isEmpty()
+                    && !AUTO_QUEUE.equalsIgnoreCase(queue.trim())) { //picked from availableQueues
                 if (!config.getAvailableQueues().contains(queue)) { //TODO: make availableQueues an array/List? Make sure full queue name fits an entry in the array
                     listener.error("Queue [" + queue + "] is not available or does not exist");
                     // return false;
@@ -298,9 +656,169 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
             }
         }
 
+        //reserve the time requested last, so that it is only held if the
+        //configuration is valid - concurrent builds then cannot all pass
+        //this check for the same minutes
+        if (!node.tryReserveSeconds(getRequestedSeconds())) {
+            listener.error("System has insufficient available CPU time for this job. Please contact your Jenkins administrator.");
+            return false;
+        }
         return true;
     }
 
+    /**
+     * Check the resources requested against the limits of the partition
+     * requested (or the default partition) as discovered from the cluster.
+     * Not checked for the "auto" queue, which only picks partitions the job
+     * fits, or for a queue set by a variable, which is not known yet.
+     *
+     * @param model      partitions of the cluster
+     * @param listener   where to report why the resources are not available
+     * @return true if the job fits the partition
+     */
+    private boolean isWithinPartitionLimits(final ClusterModel model, final TaskListener listener) {
+        String name = queue.trim();
+        if (AUTO_QUEUE.equalsIgnoreCase(name) || name.contains("$")) {
+            return true;
+        }
+        ClusterModel.Partition partition = model.getPartition(name);
+        if (partition == null) {
+            listener.error(name.isEmpty() ? "Cluster has no default queue - please choose a queue"
+                    : "Queue [" + name + "] does not exist on the cluster");
+            return false;
+        }
+        if (nodes > partition.getMaxNodesPerJob()) {
+            listener.error("'Nodes' selection is not within acceptable range for queue [" + partition.getName() + "] (1-" + partition.getMaxNodesPerJob() + ")");
+            return false;
+        }
+        if (tasks * cpusPerTask > nodes * partition.getUsableCpusPerNode()) {
+            listener.error("Total CPUs requested (" + tasks + "*" + cpusPerTask + "=" + tasks * cpusPerTask + ") exceed CPUs available on " + nodes + " nodes of queue [" + partition.getName() + "] (" + partition.getUsableCpusPerNode() + " per node).");
+            return false;
+        }
+        if (partition.getTimeLimitSeconds() >= 0 && walltime * 60L > partition.getTimeLimitSeconds()) {
+            listener.error("Walltime requested exceeds the time limit of queue [" + partition.getName() + "] (" + partition.getTimeLimitSeconds() / 60 + " minutes)");
+            return false;
+        }
+        long memoryPerNode = getRequestedMemoryPerNode();
+        if (partition.getMemoryPerNode() > 0 && memoryPerNode > partition.getMemoryPerNode()) {
+            listener.error("Memory requested per node (" + memoryPerNode + " MB) exceeds the memory of the largest node of queue [" + partition.getName() + "] (" + partition.getMemoryPerNode() + " MB)");
+            return false;
+        }
+        for (String resource : getResourceNames(gres)) {
+            if (!resource.contains("$") && !hasGres(partition.getGres(), resource)) {
+                listener.error("No node of queue [" + partition.getName() + "] has generic resource [" + resource + "]");
+                return false;
+            }
+        }
+        //feature expressions can be complex, so unknown names only warn
+        for (String feature : features.split("[&|,()\\[\\]]")) {
+            String featureName = feature.replaceFirst("\\*\\d+$", "").trim();
+            if (!featureName.isEmpty() && !featureName.contains("$") && !partition.getFeatures().contains(featureName)) {
+                listener.getLogger().println("WARNING: No node of queue [" + partition.getName() + "] has feature [" + featureName + "]");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check the options requested beyond nodes, tasks, CPUs and walltime
+     * against each other. Values set by variables are not checked.
+     *
+     * @param listener   where to report why the options are not valid
+     * @return true if the options are valid
+     */
+    private boolean isResourceRequestValid(final TaskListener listener) {
+        if (memory != null && memoryPerCpu != null) {
+            listener.error("'Memory per node' and 'Memory per CPU' cannot both be set");
+            return false;
+        }
+        for (String size : new String[] {memory, memoryPerCpu}) {
+            if (size != null && !size.contains("$") && parseMemory(size) < 0) {
+                listener.error("Memory [" + size + "] must be a size such as 4096, 500M or 4G");
+                return false;
+            }
+        }
+        if (tasksPerNode < 0) {
+            listener.error("'Tasks per node' input must be at least 0");
+            return false;
+        }
+        if (tasksPerNode > 0 && tasks > (long) tasksPerNode * nodes) {
+            listener.error("Number of tasks (" + tasks + ") exceeds tasks per node * nodes (" + tasksPerNode + "*" + nodes + "=" + (long) tasksPerNode * nodes + ")");
+            return false;
+        }
+        if (timeMin < 0) {
+            listener.error("'Minimum walltime' input must be at least 0");
+            return false;
+        }
+        if (timeMin > walltime) {
+            listener.error("'Minimum walltime' (" + timeMin + ") may not exceed 'Walltime' (" + walltime + ")");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the memory, GRES, licenses, QOS and account requested against
+     * those permitted on the node. Values set by variables are not checked.
+     *
+     * @param config     limits of the node
+     * @param listener   where to report what is not permitted
+     * @return true if everything requested is permitted
+     */
+    private boolean isPermittedByConfig(final ResourceConfig config, final TaskListener listener) {
+        long memoryPerNode = getRequestedMemoryPerNode();
+        if (config.getMaxMemoryPerNode() > 0 && memoryPerNode > config.getMaxMemoryPerNode()) {
+            listener.error("Memory requested per node (" + memoryPerNode + " MB) exceeds the limit of " + config.getMaxMemoryPerNode() + " MB");
+            return false;
+        }
+        for (String name : getResourceNames(gres)) {
+            if (!name.contains("$") && !ResourceConfig.isListed(config.getAvailableGres(), name)) {
+                listener.error("Generic resource [" + name + "] is not available");
+                return false;
+            }
+        }
+        for (String name : getResourceNames(licenses)) {
+            if (!name.contains("$") && !ResourceConfig.isListed(config.getAvailableLicenses(), name)) {
+                listener.error("License [" + name + "] is not available");
+                return false;
+            }
+        }
+        if (qos != null && !qos.contains("$") && !ResourceConfig.isListed(config.getAvailableQos(), qos)) {
+            listener.error("QOS [" + qos + "] is not available");
+            return false;
+        }
+        if (account != null && !account.contains("$") && !ResourceConfig.isListed(config.getAvailableAccounts(), account)) {
+            listener.error("Account [" + account + "] is not available");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a kind of GRES is on the nodes of a partition, either
+     * exactly or as a type of it (gpu is there if gpu:v100 is).
+     */
+    private static boolean hasGres(final Set<String> available, final String name) {
+        for (String kind : available) {
+            if (kind.equals(name) || kind.startsWith(name + ":")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the CPU time requested for the job, which is reserved on the node by
+     * {@link #isConfigurationValid(BatchSlave, TaskListener)}.
+     *
+     * @return tasks * CPUs per task * walltime, in seconds, times the number
+     *         of tasks of a job array
+     */
+    public final long getRequestedSeconds() {
+        long seconds = (long) tasks * cpusPerTask * walltime * 60;
+        return isArrayJob() ? seconds * Math.max(1, countArrayTasks(arrayTasks)) : seconds;
+    }
+
     /**
      * Create the 'system' script to send to HPC. The 'system' script runs the
      * 'user' script, recovers the exit code and records the time taken.
@@ -363,12 +881,90 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
      * @return A bash script with user-entered commands but no HPC options.
      */
     protected String generateUserScript(final String script, final String prefix) {
-        String filteredScript = filterScript(script, prefix);
-        String userScript = "#!/bin/bash -xe\n"
-                          + "#Script automatically generated by SLURM Plugin. User-entered content follows this comment. \n"
-                          + filteredScript
-                          + "#End of user-entered content.\n";
-        return userScript;
+        StringBuilder userScript = new StringBuilder(script.length() + 160);
+        try {
+            writeUserScript(script, prefix, userScript);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //StringBuilder does not throw
+        }
+        return userScript.toString();
+    }
+
+    /**
+     * Write the 'user' script in a single pass, as for
+     * {@link #generateUserScript(String, String)}, straight to its destination.
+     *
+     * @param script   script to filter and wrap
+     * @param prefix   the batch system prefix used to enter HPC options in the
+     *                 script, e.g. #SBATCH
+     * @param out      where to write the user script
+     * @return true if the user-entered content left after filtering contains
+     *         anything but whitespace, as for {@link #isScriptValid(String, String)}
+     * @throws IOException if out cannot be written to
+     */
+    protected final boolean writeUserScript(final String script, final String prefix,
+            final Appendable out) throws IOException {
+        out.append(USER_SCRIPT_HEADER);
+        boolean valid = ScriptFilter.filter(script, prefix, out);
+        out.append(USER_SCRIPT_FOOTER);
+        return valid;
+    }
+
+    /**
+     * Create a name for a directory holding the files of one build, unique
+     * even among builds sharing a workspace.
+     *
+     * @param run   the build
+     * @return a name of the form _slurm_[build ID]_[random suffix]
+     */
+    protected static String newScratchDirectoryName(final Run<?, ?> run) {
+        return "_slurm_" + run.getId() + "_"
+                + Long.toHexString(SCRATCH_RANDOM.nextLong() & Long.MAX_VALUE);
+    }
+
+    /**
+     * Work out how much compute time to charge for a job.
+     *
+     * @param result    result of the job
+     * @param cpuTime   CPU time requested for the job (minutes)
+     * @return seconds of CPU time allocated to the job on all of its nodes,
+     *         as the cluster charges it; failing that, the CPU time it used;
+     *         all of the time requested if the batch system could report
+     *         neither, or 0 if the job was never submitted
+     */
+    protected static int getComputeSeconds(final SubmissionResult result, final int cpuTime) {
+        if (!result.isSubmitted()) {
+            return 0;
+        } else if (result.hasAllocatedCpuTime()) {
+            return (int) Math.min(Integer.MAX_VALUE, result.getAllocatedCpuSeconds());
+        } else if (result.hasCpuTime()) {
+            return (int) Math.ceil(result.getCpuSeconds());
+        } else { //no way of knowing, so assume all time requested was used
+            return cpuTime * 60;
+        }
+    }
+
+    /**
+     * Work out how much compute time to charge for a job which was cancelled
+     * part way through, e.g.&nbsp;because its build was aborted.
+     *
+     * @param usedSeconds       CPU time allocated to the job as reported by
+     *                          the batch system, or -1 if it reported none
+     * @param elapsedMillis     time since the job was submitted (milliseconds)
+     * @param reservedSeconds   CPU time reserved for the job
+     * @return the time reported, or failing that the CPUs requested for the
+     *         whole time since the job was submitted; never more than the
+     *         time reserved
+     */
+    protected final long getCancelledComputeSeconds(final long usedSeconds,
+            final long elapsedMillis, final long reservedSeconds) {
+        long seconds = usedSeconds;
+        if (seconds < 0) {
+            long cpus = (long) tasks * cpusPerTask
+                    * (isArrayJob() ? Math.max(1, countArrayTasks(arrayTasks)) : 1);
+            seconds = cpus * (Math.max(0, elapsedMillis) / 1000);
+        }
+        return Math.min(seconds, reservedSeconds);
     }
 
     /**
@@ -385,7 +981,9 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
     }
 
     /**
-     * Copy files from master to a remote workspace (on an SSH slave).
+     * Copy files from master to a remote workspace (on an SSH slave). On a
+     * {@link SLURMSlave} with a staging cache, only files which are not
+     * already in the cache are sent; see {@link StagingCache}.
      * Discouraged to use this + writeScriptToFile to create files and send them
      * to the remote - instead use FilePath.write method on a FilePath for the
      * remote workspace
@@ -404,6 +1002,11 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
             final FilePath workspace, final Launcher launcher,
             final TaskListener listener)
             throws InterruptedException, IOException, AbortException {
+        //CopyToSlaveBuildWrapper copies from userContent, so the cache does too
+        FilePath userContent = Jenkins.get().getRootPath().child("userContent");
+        if (StagingCache.stage(userContent, fileNames, null, workspace, listener)) {
+            return;
+        }
         AbstractBuild abstractBuild = null;
         BuildListener buildListener = null;
         CopyToSlaveBuildWrapper copyToSlave =
@@ -418,37 +1021,56 @@ public abstract class BatchBuilder extends Builder implements SimpleBuildStep {
     }
 
     /**
-     * Copy files from remote workspace (on an SSH agent) to master.
+     * Archive files from the remote workspace (on an SSH agent) as artifacts
+     * of the build. Each file is streamed over the channel once, straight into
+     * the artifact store of the build.
      *
-     * @param filesToRecover        file names to copy
-     * @param recoveryDestination   destination on master to copy files to
-     * @param run                   as provided to
-                                        {@link #perform(Run, FilePath, Launcher, TaskListener)}
-     * @param workspace             as above
-     * @param launcher              as above
-     * @param listener              as above
+     * @param filesToRecover   comma-separated patterns of the files to archive,
+     *                         relative to the workspace
+     * @param run              as provided to
+                                   {@link #perform(Run, FilePath, Launcher, TaskListener)}
+     * @param workspace        as above
+     * @param launcher         as above
+     * @param listener         as above
      * @throws InterruptedException
      * @throws IOException
-     * @throws AbortException if run cannot be converted to {@link AbstractBuild}
-     * @see com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier
+     * @throws AbortException if the files cannot be archived
      */
-    protected void recoverFiles(final String filesToRecover,
-            final String recoveryDestination, final Run<?, ?> run,
+    protected void recoverFiles(final String filesToRecover, final Run<?, ?> run,
             final FilePath workspace, final Launcher launcher,
             final TaskListener listener)
             throws InterruptedException, IOException, AbortException {
-        AbstractBuild abstractBuild = null;
-        BuildListener buildListener = null;
-        CopyToMasterNotifier copyFilesToMaster =
-                new CopyToMasterNotifier(filesToRecover, "", true, recoveryDestination, true);
-        ArtifactArchiver archiver = new ArtifactArchiver(filesToRecover);
+        long startTime = System.currentTimeMillis();
+        Map<String, Long> files = workspace.act(new ListFilesCallable(filesToRecover));
+        if (files.isEmpty()) {
+            listener.getLogger().println("No files found matching " + filesToRecover);
+            return;
+        }
+        Map<String, String> artifacts = new LinkedHashMap<String, String>();
+        long bytes = 0;
+        for (Map.Entry<String, Long> file : files.entrySet()) {
+            artifacts.put(file.getKey(), file.getKey());
+            bytes += file.getValue();
+        }
+        String method = "";
         try {
-            abstractBuild = AbstractBuild.class.cast(run);
-            buildListener = BuildListener.class.cast(listener);
-            copyFilesToMaster.perform(abstractBuild, launcher, buildListener);
-            archiver.perform(run, workspace, launcher, listener);
-        } catch (Exception e) {
+            ArtifactManager manager = run.pickArtifactManager();
+            if (manager instanceof StandardArtifactManager && workspace.isRemote()) {
+                //artifacts are kept on the master, so stream them there directly
+                FileRecoverer recoverer = FileRecoverer.forWorkspace(workspace);
+                recoverer.recover(workspace, files, run.getArtifactsDir());
+                method = " (" + (recoverer.getCompressionLevel() > 0
+                        ? "gzip level " + recoverer.getCompressionLevel() : "uncompressed")
+                        + ", " + recoverer.getStreams() + " stream(s))";
+            } else {
+                manager.archive(workspace, launcher,
+                        BuildListenerAdapter.wrap(listener), artifacts);
+            }
+        } catch (IOException e) {
             throw new AbortException(e.getClass().getSimpleName() + ": " + e.getMessage());
         }
+        listener.getLogger().println("Recovered " + files.size() + " file(s), "
+                + bytes + " bytes, in " + (System.currentTimeMillis() - startTime) + " ms"
+                + method);
     }
 }
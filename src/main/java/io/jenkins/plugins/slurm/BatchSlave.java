@@ -2,6 +2,7 @@ package io.jenkins.plugins.slurm;
 
 import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Node;
 import hudson.model.Slave;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.NodeProperty;
@@ -36,6 +37,12 @@ public abstract class BatchSlave extends Slave {
      */
     private ResourceConfig resourceConfig;
 
+    /**
+     * Journal of changes to the CPU time available, which is what persists
+     * the budget between restarts. Null if there are no limits on time.
+     */
+    private transient CpuTimeLedger ledger;
+
     public BatchSlave(final String name, final String nodeDescription,
             final String remoteFS, final String numExecutors, final Mode mode,
             final String labelString, final ComputerLauncher launcher,
@@ -46,6 +53,37 @@ public abstract class BatchSlave extends Slave {
         super(name, nodeDescription, remoteFS, numExecutors, mode, labelString,
                 launcher, retentionStrategy, nodeProperties);
         this.resourceConfig = resourceConfig;
+        if (resourceConfig != null) {
+            ledger = CpuTimeLedger.forNode(name);
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            Node previous = jenkins == null ? null : jenkins.getNode(name);
+            boolean unchanged = previous instanceof BatchSlave
+                    && ((BatchSlave) previous).resourceConfig != null
+                    && resourceConfig.takeOver(((BatchSlave) previous).resourceConfig);
+            //only a newly entered budget starts a new journal; reservations still
+            //open are settled against it either way
+            if (ledger != null && !unchanged) {
+                ledger.reset(resourceConfig.getAvailableSeconds());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Recovers the CPU time available from the journal, which is more recent
+     * than the value saved with the agent configuration.
+     */
+    @Override
+    protected Object readResolve() {
+        Object resolved = super.readResolve();
+        if (resourceConfig != null) {
+            ledger = CpuTimeLedger.forNode(getNodeName());
+            if (ledger != null) {
+                resourceConfig.restoreAvailableSeconds(
+                        ledger.replay(resourceConfig.getAvailableSeconds()));
+            }
+        }
+        return resolved;
     }
 
     /**
@@ -86,6 +124,26 @@ public abstract class BatchSlave extends Slave {
             int walltime, String queue, String features, boolean exclusive);
             //NotificationConfig notificationConfig);
 
+    /**
+     * Format HPC options for a job which may be a job array.
+     *
+     * @param nodes                    number of nodes to reserve
+     * @param tasks                    number of tasks to run
+     * @param cpusPerTask              number of CPUs to reserve per task
+     * @param walltime                 walltime required for batch job
+     * @param queue                    batch system queue to use
+     * @param features                 specific node properties required
+     * @param exclusive                require exclusive use of reserved nodes
+     * @param arrayTasks               indices of the tasks of the job array,
+     *                                 or null for a single job
+     * @param arrayMaxConcurrent       largest number of array tasks to run
+     *                                 at once, or 0 for no limit
+     * @return String of formatted HPC options.
+     */
+    public abstract String formatBatchOptions(int nodes, int tasks, int cpusPerTask,
+            int walltime, String queue, String features, boolean exclusive,
+            String arrayTasks, int arrayMaxConcurrent);
+
     /**
      * Reduce the time available on the node, if limits on time have been 
      * configured. If limits have not been configured, do nothing.
@@ -95,6 +153,60 @@ public abstract class BatchSlave extends Slave {
     public final void reduceAvailableSeconds(final int time) {
         if (resourceConfig != null) {
             resourceConfig.reduceAvailableSeconds(time);
+            if (ledger != null) {
+                ledger.charged(time);
+            }
+        }
+    }
+
+    /**
+     * Reserve time for a job, if limits on time have been configured. If
+     * limits have not been configured, the reservation always succeeds.
+     *
+     * @param time   the amount of time requested by the job (seconds)
+     * @return true if the time was reserved, false if not enough is available
+     */
+    public final boolean tryReserveSeconds(final long time) {
+        if (resourceConfig == null) {
+            return true;
+        }
+        if (!resourceConfig.tryReserveSeconds(time)) {
+            return false;
+        }
+        if (ledger != null) {
+            ledger.reserved(time);
+        }
+        return true;
+    }
+
+    /**
+     * Settle a reservation made with {@link #tryReserveSeconds(long)} once
+     * the job has finished.
+     *
+     * @param reserved   the amount of time reserved for the job (seconds)
+     * @param used       the amount of time actually used by the job (seconds)
+     */
+    public final void settleReservation(final long reserved, final long used) {
+        if (resourceConfig != null) {
+            resourceConfig.settle(reserved, used);
+            if (ledger != null) {
+                ledger.settled(reserved, used);
+            }
+        }
+    }
+
+    /**
+     * Return all of a reservation made with {@link #tryReserveSeconds(long)},
+     * e.g.&nbsp;because the job failed to run or the build was aborted.
+     *
+     * @param reserved   the amount of time reserved for the job (seconds)
+     */
+    public final void refundReservation(final long reserved) {
+        if (resourceConfig != null) {
+            resourceConfig.refund(reserved);
+            if (ledger != null) {
+                ledger.refunded(reserved);
+            }
         }
     }
 
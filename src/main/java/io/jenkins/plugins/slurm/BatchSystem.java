@@ -38,6 +38,13 @@ public abstract class BatchSystem {
      */
     private final FilePath workspace;
 
+    /**
+     * Directory, relative to the workspace, holding the scripts and output
+     * of this build only, so that builds sharing a workspace do not overwrite
+     * each other's files. Null if the workspace itself is used.
+     */
+    private final String scratchDirectory;
+
     /**
      * The launcher of the build.
      */
@@ -49,7 +56,8 @@ public abstract class BatchSystem {
     private final TaskListener listener;
 
     /**
-     * The name of the file used for recovering job information.
+     * The name of the file used for recovering job information, relative to
+     * the scratch directory.
      */
     private final String communicationFile;
 
@@ -64,13 +72,36 @@ public abstract class BatchSystem {
     private final String remoteWorkingDirectory;
 
     /**
-     * Sole constructor.
+     * Time spent by the build in each phase of running its job.
+     */
+    private final PhaseTimer phaseTimer = new PhaseTimer();
+
+    /**
+     * Keep the files of the build in the workspace itself.
      */
     public BatchSystem(final Run<?, ?> run, final FilePath workspace,
             final Launcher launcher, final TaskListener listener,
             final String communicationFile) {
+        this(run, workspace, null, launcher, listener, communicationFile);
+    }
+
+    /**
+     * @param run                 the build this is part of
+     * @param workspace           the workspace of the build, in which jobs run
+     * @param scratchDirectory    directory relative to the workspace for the
+     *                            files of this build, or null to use the
+     *                            workspace itself
+     * @param launcher            the launcher of the build
+     * @param listener            the listener of the build
+     * @param communicationFile   name of the file used for recovering job
+     *                            information, relative to the scratch directory
+     */
+    public BatchSystem(final Run<?, ?> run, final FilePath workspace,
+            final String scratchDirectory, final Launcher launcher,
+            final TaskListener listener, final String communicationFile) {
         this.run = run;
         this.workspace = workspace;
+        this.scratchDirectory = scratchDirectory;
         this.launcher = launcher;
         this.listener = listener;
         if (run instanceof AbstractBuild) {
@@ -112,6 +143,30 @@ public abstract class BatchSystem {
         return workspace;
     }
 
+    public final String getScratchDirectory() {
+        return scratchDirectory;
+    }
+
+    /**
+     * Get the directory holding the files of this build.
+     */
+    public final FilePath getScratch() {
+        return scratchDirectory == null ? workspace : workspace.child(scratchDirectory);
+    }
+
+    /**
+     * Get the path of a file in the scratch directory, relative to the workspace.
+     *
+     * @param fileName   name of the file in the scratch directory
+     */
+    public final String getScratchPath(final String fileName) {
+        return scratchDirectory == null ? fileName : scratchDirectory + "/" + fileName;
+    }
+
+    public final PhaseTimer getPhaseTimer() {
+        return phaseTimer;
+    }
+
     protected final Launcher getLauncher() {
         return launcher;
     }
@@ -136,14 +191,16 @@ public abstract class BatchSystem {
     /**
      * Submit a job to the batch system.
      *
-     * @param jobFileName   Name of script to submit (must already exist on the remote)
+     * @param jobFileName   Name of script to submit, in the scratch directory
+     *                      (must already exist on the remote)
      * @param walltime      Walltime requested for job (not passed to HPC
      *                      submission command)
-     * @return Array containing the job ID, exit code and time taken.
+     * @return The job ID, exit code, CPU time used and other details of the
+     *         finished job.
      * @throws InterruptedException
      * @throws IOException
      */
-    public abstract int[] submitJob(String jobFileName, int walltime)
+    public abstract SubmissionResult submitJob(String jobFileName, int walltime)
             throws InterruptedException, IOException;
 
     /**
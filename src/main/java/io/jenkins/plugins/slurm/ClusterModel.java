@@ -0,0 +1,286 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The partitions of a cluster and their limits, as discovered through an
+ * agent from sinfo and scontrol by {@link ClusterModelRefresher}, so that
+ * jobs can be validated against the live limits of the cluster rather than
+ * those entered by hand in {@link ResourceConfig}.
+ * <p>
+ * A model is only used for {@link #TTL} milliseconds (10 minutes by default)
+ * after it was discovered; it is refreshed well before then while the agent
+ * is online.
+ *
+ * @author Eli Chadwick
+ */
+public final class ClusterModel {
+
+    /**
+     * How long a model is used for (milliseconds).
+     */
+    static final long TTL = TimeUnit.SECONDS.toMillis(
+            Long.getLong(ClusterModel.class.getName() + ".ttl", 600));
+
+    /**
+     * Format of sinfo output, one line per partition and kind of node:
+     * partition, CPUs per node, memory per node (MB), features and GRES.
+     */
+    static final String SINFO_FORMAT = "%R|%c|%m|%f|%G";
+
+    private final Map<String, Partition> partitions;
+
+    private final String defaultPartition;
+
+    /**
+     * When the model was discovered (milliseconds since epoch).
+     */
+    private final long discovered;
+
+    ClusterModel(final Map<String, Partition> partitions, final String defaultPartition,
+            final long discovered) {
+        this.partitions = Collections.unmodifiableMap(partitions);
+        this.defaultPartition = defaultPartition;
+        this.discovered = discovered;
+    }
+
+    /**
+     * Build a model from the output of sinfo and scontrol. Lines and fields
+     * which cannot be read are skipped.
+     *
+     * @param sinfo        output of sinfo -h -e -o {@link #SINFO_FORMAT}, may be null
+     * @param scontrol     output of scontrol show partition -o, may be null
+     * @param discovered   when the output was taken (milliseconds since epoch)
+     */
+    static ClusterModel parse(final String sinfo, final String scontrol, final long discovered) {
+        Map<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+        String defaultPartition = null;
+        //limits of each partition
+        for (String line : scontrol == null ? new String[0] : scontrol.split("\n")) {
+            Map<String, String> values = parseKeyValues(line);
+            String name = values.get("PartitionName");
+            if (name == null) {
+                continue;
+            }
+            Partition partition = new Partition(name);
+            partition.up = "UP".equals(values.get("State"));
+            partition.maxNodes = parseLimit(values.get("MaxNodes"));
+            partition.maxCpusPerNode = parseLimit(values.get("MaxCPUsPerNode"));
+            String maxTime = values.get("MaxTime");
+            partition.timeLimitSeconds = maxTime == null ? -1
+                    : (long) SLURMOutputParser.parseDuration(maxTime); //-1 if UNLIMITED
+            partition.totalNodes = (int) SLURMOutputParser.parseLong(values.get("TotalNodes"), 0);
+            partition.totalCpus = (int) SLURMOutputParser.parseLong(values.get("TotalCPUs"), 0);
+            if ("YES".equals(values.get("Default"))) {
+                defaultPartition = name;
+            }
+            partitions.put(name, partition);
+        }
+        //nodes of each partition
+        for (String[] fields : SLURMOutputParser.parseRecords(sinfo, '|', 5)) {
+            Partition partition = partitions.get(fields[0]);
+            if (partition == null) {
+                continue; //not shown by scontrol, e.g. hidden
+            }
+            partition.cpusPerNode = Math.max(partition.cpusPerNode, (int) parseCount(fields[1]));
+            partition.memoryPerNode = Math.max(partition.memoryPerNode, parseCount(fields[2]));
+            addAll(partition.features, fields[3]);
+            addAll(partition.gres, fields[4]);
+        }
+        return new ClusterModel(partitions, defaultPartition, discovered);
+    }
+
+    /**
+     * Split scontrol -o output of the form Key=value Key=value.
+     */
+    static Map<String, String> parseKeyValues(final String line) {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (String token : line.trim().split("\\s+")) {
+            int equals = token.indexOf('=');
+            if (equals > 0) {
+                values.put(token.substring(0, equals), token.substring(equals + 1));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the limit, or -1 if UNLIMITED or missing
+     */
+    private static int parseLimit(final String value) {
+        return (int) SLURMOutputParser.parseLong(value, -1);
+    }
+
+    /**
+     * Parse a count printed by sinfo, which may end in + where nodes differ.
+     */
+    private static long parseCount(final String value) {
+        String count = value.endsWith("+") ? value.substring(0, value.length() - 1) : value;
+        return SLURMOutputParser.parseLong(count, 0);
+    }
+
+    /**
+     * Add the comma-separated names in a field to a set, with any count or
+     * socket list after the name of a GRES removed (gpu:v100:4(S:0-1) is
+     * gpu:v100).
+     */
+    private static void addAll(final Set<String> names, final String field) {
+        if (field.equals("(null)")) {
+            return;
+        }
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= field.length(); i++) {
+            char c = i < field.length() ? field.charAt(i) : ',';
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                String name = field.substring(start, i);
+                int paren = name.indexOf('(');
+                if (paren >= 0) {
+                    name = name.substring(0, paren);
+                }
+                int colon = name.lastIndexOf(':');
+                if (colon > 0 && SLURMOutputParser.parseLong(name.substring(colon + 1), -1) >= 0) {
+                    name = name.substring(0, colon);
+                }
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Get a partition.
+     *
+     * @param name   name of the partition, or empty for the default partition
+     * @return the partition, or null if there is no such partition
+     */
+    public Partition getPartition(final String name) {
+        return partitions.get(name == null || name.isEmpty() ? defaultPartition : name);
+    }
+
+    public Map<String, Partition> getPartitions() {
+        return partitions;
+    }
+
+    public String getDefaultPartition() {
+        return defaultPartition;
+    }
+
+    public long getDiscovered() {
+        return discovered;
+    }
+
+    /**
+     * Check whether the model may still be used.
+     *
+     * @param now   current time (milliseconds since epoch)
+     */
+    public boolean isFresh(final long now) {
+        return now - discovered < TTL;
+    }
+
+    /**
+     * Limits and resources of a partition.
+     */
+    public static final class Partition {
+        private final String name;
+        private boolean up;
+        private int totalNodes;
+        private int totalCpus;
+
+        /**
+         * Most nodes a job may use, or -1 if unlimited.
+         */
+        private int maxNodes;
+
+        /**
+         * Most CPUs a job may use on each node, or -1 if unlimited.
+         */
+        private int maxCpusPerNode;
+
+        /**
+         * Longest walltime allowed (seconds), or -1 if unlimited.
+         */
+        private long timeLimitSeconds;
+
+        /**
+         * CPUs of the largest node.
+         */
+        private int cpusPerNode;
+
+        /**
+         * Memory of the largest node (MB).
+         */
+        private long memoryPerNode;
+
+        private final Set<String> features = new TreeSet<String>();
+        private final Set<String> gres = new TreeSet<String>();
+
+        Partition(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isUp() {
+            return up;
+        }
+
+        public int getTotalNodes() {
+            return totalNodes;
+        }
+
+        public int getTotalCpus() {
+            return totalCpus;
+        }
+
+        /**
+         * Get the most nodes a job may use: the partition's limit, or all of
+         * its nodes if it has none.
+         */
+        public int getMaxNodesPerJob() {
+            return maxNodes >= 0 ? Math.min(maxNodes, totalNodes) : totalNodes;
+        }
+
+        /**
+         * Get the most CPUs a job may use on each node: the partition's
+         * limit, or the CPUs of its largest node if it has none.
+         */
+        public int getUsableCpusPerNode() {
+            return maxCpusPerNode >= 0 ? Math.min(maxCpusPerNode, cpusPerNode) : cpusPerNode;
+        }
+
+        public long getTimeLimitSeconds() {
+            return timeLimitSeconds;
+        }
+
+        public long getMemoryPerNode() {
+            return memoryPerNode;
+        }
+
+        public Set<String> getFeatures() {
+            return Collections.unmodifiableSet(features);
+        }
+
+        /**
+         * Get the kinds of GRES on the nodes of the partition, e.g.&nbsp;gpu
+         * or gpu:v100.
+         */
+        public Set<String> getGres() {
+            return Collections.unmodifiableSet(gres);
+        }
+    }
+}
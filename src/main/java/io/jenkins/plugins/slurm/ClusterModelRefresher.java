@@ -0,0 +1,90 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers the {@link ClusterModel} of each online SLURM agent whose
+ * {@link ResourceConfig} has auto-discovery turned on, in the background,
+ * once its model is half way to expiring - so that builds are validated
+ * against it without running anything on the agent themselves.
+ *
+ * @author Eli Chadwick
+ */
+@Extension
+public class ClusterModelRefresher extends AsyncPeriodicWork {
+
+    public ClusterModelRefresher() {
+        super("SLURM cluster model refresh");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return Math.max(TimeUnit.MINUTES.toMillis(1), ClusterModel.TTL / 4);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute(final TaskListener listener) throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            if (!(computer instanceof SLURMSlaveComputer) || computer.getChannel() == null) {
+                continue;
+            }
+            SLURMSlave node = ((SLURMSlaveComputer) computer).getNode();
+            ResourceConfig config = node == null ? null : node.getResourceConfig();
+            if (config == null || !config.isAutoDiscover()) {
+                continue;
+            }
+            ClusterModel model = config.getClusterModel();
+            if (model != null && now - model.getDiscovered() < ClusterModel.TTL / 2) {
+                continue;
+            }
+            try {
+                config.setClusterModel(discover(node.createLauncher(listener)));
+                listener.getLogger().println("Discovered cluster model of " + node.getNodeName());
+            } catch (IOException e) {
+                listener.error("Failed to discover cluster model of " + node.getNodeName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Discover the model of the cluster an agent submits to.
+     *
+     * @param launcher   launcher for the agent
+     * @throws IOException if sinfo or scontrol fails
+     * @throws InterruptedException
+     */
+    static ClusterModel discover(final Launcher launcher) throws IOException, InterruptedException {
+        long discovered = System.currentTimeMillis();
+        String scontrol = run(launcher, "scontrol", "show", "partition", "-o");
+        String sinfo = run(launcher, "sinfo", "-h", "-e", "-o", ClusterModel.SINFO_FORMAT);
+        return ClusterModel.parse(sinfo, scontrol, discovered);
+    }
+
+    private static String run(final Launcher launcher, final String... cmds)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int ret = launcher.launch().cmds(cmds).stdout(stdout)
+                .stderr(new ByteArrayOutputStream()).quiet(true).join();
+        if (ret != 0) {
+            throw new IOException(cmds[0] + " exited with code " + ret);
+        }
+        return new String(stdout.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,317 @@
+package io.jenkins.plugins.slurm;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the CPU time budget of an agent, so that the budget
+ * survives restarts and crashes without saving the whole agent configuration
+ * after every job.
+ * <p>
+ * Each change to the budget is appended as one line: {@code B seconds} sets
+ * the balance, and {@code R seconds} (reserve), {@code S reserved used}
+ * (settle), {@code F reserved} (refund) and {@code C seconds} (charge) adjust
+ * it. Lines are flushed to disk in batches, at most
+ * {@link #FLUSH_INTERVAL} milliseconds after they are written. Once the
+ * journal grows past {@link #COMPACT_AFTER} lines it is replaced by a single
+ * balance line.
+ * <p>
+ * Reservations that are still open when Jenkins stops are never settled, so
+ * on replay they are charged in full.
+ *
+ * @author Eli Chadwick
+ */
+public final class CpuTimeLedger {
+
+    private static final Logger LOGGER = Logger.getLogger(CpuTimeLedger.class.getName());
+
+    /**
+     * Longest time a change may wait before it is flushed to disk (milliseconds).
+     */
+    static final long FLUSH_INTERVAL = Long.getLong(
+            CpuTimeLedger.class.getName() + ".flushInterval", 1000L);
+
+    /**
+     * Number of lines after which the journal is compacted.
+     */
+    static final int COMPACT_AFTER = Integer.getInteger(
+            CpuTimeLedger.class.getName() + ".compactAfter", 10000);
+
+    /**
+     * Ledgers by agent name, so that every instance of an agent (e.g.&nbsp;before
+     * and after it is reconfigured) writes to the same journal.
+     */
+    private static final Map<String, CpuTimeLedger> LEDGERS =
+            new ConcurrentHashMap<String, CpuTimeLedger>();
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Balance as of the last line written (seconds).
+     */
+    private long balance;
+
+    /**
+     * Number of lines in the journal.
+     */
+    private int lines;
+
+    /**
+     * Open writer appending to the journal, or null if it is not open.
+     */
+    private Writer writer;
+
+    /**
+     * Stream underneath {@link #writer}, used to sync it to disk.
+     */
+    private FileOutputStream stream;
+
+    /**
+     * Set while a flush is scheduled, so that writes in the meantime share it.
+     */
+    private boolean flushScheduled;
+
+    CpuTimeLedger(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the ledger of an agent, stored under JENKINS_HOME/slurm/ledger.
+     *
+     * @param nodeName   name of the agent
+     * @return null if Jenkins is not running
+     */
+    static CpuTimeLedger forNode(final String nodeName) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        File file = new File(jenkins.getRootDir(),
+                "slurm" + File.separator + "ledger" + File.separator + nodeName + ".log");
+        return LEDGERS.computeIfAbsent(file.getAbsolutePath(), k -> new CpuTimeLedger(file));
+    }
+
+    /**
+     * Start a new journal with the given balance, discarding any existing one.
+     *
+     * @param seconds   the balance to start from
+     */
+    synchronized void reset(final long seconds) {
+        balance = Math.max(0, seconds);
+        try {
+            compact();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to reset CPU time ledger " + file, e);
+        }
+    }
+
+    /**
+     * Replay the journal to find the balance, or start a new journal if there
+     * is none.
+     *
+     * @param initialSeconds   balance to start from if there is no journal
+     * @return the balance after replaying the journal (seconds)
+     */
+    synchronized long replay(final long initialSeconds) {
+        try {
+            if (!file.isFile()) {
+                reset(initialSeconds);
+                return balance;
+            }
+            balance = replay(new String(Files.readAllBytes(file.toPath()),
+                    StandardCharsets.UTF_8), initialSeconds);
+            compact();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to replay CPU time ledger " + file, e);
+            balance = Math.max(0, initialSeconds);
+        }
+        return balance;
+    }
+
+    /**
+     * Work out the balance recorded by a journal. A final line without a
+     * newline (e.g.&nbsp;cut short by a crash) and malformed lines are ignored.
+     *
+     * @param journal          contents of the journal
+     * @param initialSeconds   balance to start from if the journal does not set one
+     * @return the balance (seconds)
+     */
+    static long replay(final String journal, final long initialSeconds) {
+        long seconds = Math.max(0, initialSeconds);
+        int end = journal.lastIndexOf('\n');
+        if (end < 0) {
+            return seconds;
+        }
+        for (String line : journal.substring(0, end).split("\n")) {
+            String[] fields = line.trim().split(" ");
+            try {
+                switch (fields[0]) {
+                    case "B":
+                        seconds = Long.parseLong(fields[1]);
+                        break;
+                    case "R":
+                    case "C":
+                        seconds -= Long.parseLong(fields[1]);
+                        break;
+                    case "S":
+                        seconds += Long.parseLong(fields[1]) - Long.parseLong(fields[2]);
+                        break;
+                    case "F":
+                        seconds += Long.parseLong(fields[1]);
+                        break;
+                    default:
+                        continue;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                continue;
+            }
+            seconds = Math.max(0, seconds);
+        }
+        return seconds;
+    }
+
+    /**
+     * Record that time was reserved for a job.
+     */
+    void reserved(final long seconds) {
+        append("R " + seconds, -seconds);
+    }
+
+    /**
+     * Record that a reservation was settled.
+     */
+    void settled(final long reserved, final long used) {
+        append("S " + reserved + " " + used, reserved - used);
+    }
+
+    /**
+     * Record that a reservation was refunded.
+     */
+    void refunded(final long reserved) {
+        append("F " + reserved, reserved);
+    }
+
+    /**
+     * Record that time was charged without a reservation.
+     */
+    void charged(final long seconds) {
+        append("C " + seconds, -seconds);
+    }
+
+    /**
+     * Append a line to the journal and schedule a flush.
+     *
+     * @param line    the line to append
+     * @param delta   change to the balance it records
+     */
+    private synchronized void append(final String line, final long delta) {
+        balance = Math.max(0, balance + delta);
+        try {
+            if (lines >= COMPACT_AFTER) {
+                compact();
+                return;
+            }
+            open();
+            writer.write(line);
+            writer.write('\n');
+            lines++;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write to CPU time ledger " + file, e);
+            return;
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Timer.get().schedule(this::flush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write any buffered lines and sync the journal to disk.
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to flush CPU time ledger " + file, e);
+        }
+    }
+
+    /**
+     * Replace the journal with a single line holding the balance. The new
+     * journal is written alongside and moved into place, so a crash leaves
+     * either the old journal or the new one.
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        close();
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(("B " + balance + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        lines = 1;
+    }
+
+    /**
+     * Open the journal for appending, if it is not already open.
+     */
+    private void open() throws IOException {
+        if (writer == null) {
+            stream = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Flush and close the journal.
+     */
+    private void close() throws IOException {
+        if (writer != null) {
+            try {
+                writer.flush();
+                stream.getFD().sync();
+            } finally {
+                writer.close();
+                writer = null;
+                stream = null;
+            }
+        }
+    }
+
+    /**
+     * Get the balance as of the last change recorded (seconds).
+     */
+    synchronized long getBalance() {
+        return balance;
+    }
+}
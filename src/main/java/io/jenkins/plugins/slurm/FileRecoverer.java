@@ -0,0 +1,397 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copies files from a remote workspace to the master over several
+ * concurrent, optionally compressed streams. Files are split into groups of
+ * roughly equal size, one stream per group; files larger than the chunk size
+ * are split into chunks which may travel in different streams.
+ *
+ * @author Eli Chadwick
+ */
+public final class FileRecoverer {
+
+    /**
+     * Size of the buffers used for copying (bytes).
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How long to wait for the senders to report why a stream ended early
+     * (milliseconds).
+     */
+    static final long SENDER_FAILURE_WAIT = 10000L;
+
+    /**
+     * Compression level, from 0 (none) to 9 (best).
+     */
+    private final int compressionLevel;
+
+    /**
+     * Number of concurrent streams.
+     */
+    private final int streams;
+
+    /**
+     * Files larger than this are split into chunks of this size (bytes).
+     */
+    private final long chunkSize;
+
+    public FileRecoverer(final int compressionLevel, final int streams, final long chunkSize) {
+        this.compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+        this.streams = Math.max(1, streams);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Create a recoverer with the settings of the agent a workspace is on,
+     * or the defaults if it is not on a SLURM agent.
+     */
+    public static FileRecoverer forWorkspace(final FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        if (node instanceof SLURMSlave) {
+            SLURMSlave slurmNode = (SLURMSlave) node;
+            return new FileRecoverer(slurmNode.getRecoveryCompressionLevel(),
+                    slurmNode.getRecoveryStreams(),
+                    slurmNode.getRecoveryChunkSize() * 1024L * 1024L);
+        }
+        return new FileRecoverer(SLURMSlave.DEFAULT_RECOVERY_COMPRESSION_LEVEL,
+                SLURMSlave.DEFAULT_RECOVERY_STREAMS,
+                SLURMSlave.DEFAULT_RECOVERY_CHUNK_SIZE * 1024L * 1024L);
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getStreams() {
+        return streams;
+    }
+
+    /**
+     * Copy files from the workspace to a directory on the master.
+     *
+     * @param workspace   directory the files are in
+     * @param files       sizes of the files (bytes), by path relative to the workspace
+     * @param target      directory to copy the files to, keeping their relative paths
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void recover(final FilePath workspace, final Map<String, Long> files,
+            final File target) throws InterruptedException, IOException {
+        List<Future<Void>> senders = new ArrayList<Future<Void>>();
+        List<Future<Void>> receivers = new ArrayList<Future<Void>>();
+        try {
+            for (final List<Part> group : plan(files, streams, chunkSize)) {
+                final Pipe pipe = Pipe.createRemoteToLocal();
+                senders.add(workspace.actAsync(new SendCallable(group, compressionLevel, pipe)));
+                receivers.add(Computer.threadPoolForRemoting.submit(() -> {
+                    try (InputStream in = pipe.getIn()) {
+                        readParts(in, target, compressionLevel);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> receiver : receivers) {
+                receiver.get();
+            }
+            for (Future<Void> sender : senders) {
+                sender.get();
+            }
+        } catch (ExecutionException e) {
+            throw toIOException(findFailure(senders, e.getCause(), SENDER_FAILURE_WAIT));
+        } finally {
+            for (Future<Void> future : senders) {
+                future.cancel(true);
+            }
+            for (Future<Void> future : receivers) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Find the failure to report when recovering files fails. A sender
+     * failing on the agent (e.g.&nbsp;a file could not be read) only shows on
+     * the master as its stream ending early, so when a receiver reached the
+     * end of its stream, the failure of a sender is reported instead, with
+     * the receiver's attached.
+     *
+     * @param senders   futures of the senders
+     * @param failure   the failure seen first
+     * @param waitMs    how long to wait for a sender to fail (milliseconds)
+     * @return the failure to report
+     * @throws InterruptedException
+     */
+    static Throwable findFailure(final List<Future<Void>> senders, final Throwable failure,
+            final long waitMs) throws InterruptedException {
+        if (!(failure instanceof EOFException)) {
+            return failure;
+        }
+        long deadline = System.currentTimeMillis() + waitMs;
+        while (true) {
+            for (Future<Void> sender : senders) {
+                if (!sender.isDone() || sender.isCancelled()) {
+                    continue;
+                }
+                try {
+                    sender.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause != failure) {
+                        cause.addSuppressed(failure);
+                    }
+                    return cause;
+                }
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return failure;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Wrap a failure in an IOException, unless it is one.
+     */
+    private static IOException toIOException(final Throwable failure) {
+        if (failure instanceof IOException) {
+            return (IOException) failure;
+        }
+        return new IOException("Failed to recover files", failure);
+    }
+
+    /**
+     * Split files into parts and the parts into groups of roughly equal
+     * size, largest parts first.
+     *
+     * @param files       sizes of the files (bytes), by path
+     * @param groups      largest number of groups to make
+     * @param chunkSize   largest part (bytes)
+     * @return the non-empty groups
+     */
+    static List<List<Part>> plan(final Map<String, Long> files, final int groups,
+            final long chunkSize) {
+        List<Part> parts = new ArrayList<Part>();
+        for (Map.Entry<String, Long> file : files.entrySet()) {
+            long size = file.getValue();
+            long offset = 0;
+            do {
+                long length = Math.min(chunkSize, size - offset);
+                parts.add(new Part(file.getKey(), size, offset, length));
+                offset += length;
+            } while (offset < size);
+        }
+        Collections.sort(parts, (a, b) -> Long.compare(b.getLength(), a.getLength()));
+
+        int count = Math.max(1, Math.min(groups, parts.size()));
+        List<List<Part>> plan = new ArrayList<List<Part>>();
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            plan.add(new ArrayList<Part>());
+        }
+        for (Part part : parts) {
+            int smallest = 0;
+            for (int i = 1; i < count; i++) {
+                if (sizes[i] < sizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            plan.get(smallest).add(part);
+            sizes[smallest] += part.getLength();
+        }
+        plan.removeIf(List::isEmpty);
+        return plan;
+    }
+
+    /**
+     * Write parts of files to a stream. Each part is framed as: a marker,
+     * the path of the file, its total size, the offset and length of the
+     * part, then the bytes of the part. A final marker ends the stream.
+     *
+     * @param dir                directory the files are in
+     * @param parts              parts to write
+     * @param out                stream to write to (not closed)
+     * @param compressionLevel   0 for none, up to 9 for best
+     * @throws IOException
+     */
+    static void writeParts(final File dir, final List<Part> parts, final OutputStream out,
+            final int compressionLevel) throws IOException {
+        OutputStream stream = compressionLevel > 0
+                ? new LevelledGZIPOutputStream(out, compressionLevel)
+                : new BufferedOutputStream(out, BUFFER_SIZE);
+        DataOutputStream data = new DataOutputStream(stream);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (Part part : parts) {
+            data.writeBoolean(true);
+            data.writeUTF(part.getPath());
+            data.writeLong(part.getTotalSize());
+            data.writeLong(part.getOffset());
+            data.writeLong(part.getLength());
+            try (RandomAccessFile file = new RandomAccessFile(new File(dir, part.getPath()), "r")) {
+                file.seek(part.getOffset());
+                long remaining = part.getLength();
+                while (remaining > 0) {
+                    int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException(part.getPath() + " shrank while being recovered");
+                    }
+                    data.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+        data.writeBoolean(false);
+        data.flush();
+        if (stream instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) stream).finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Read parts of files written by {@link #writeParts(File, List, OutputStream, int)}
+     * into a directory.
+     *
+     * @param in                 stream to read from
+     * @param target             directory to write the files to
+     * @param compressionLevel   as passed to the writer
+     * @throws IOException
+     */
+    static void readParts(final InputStream in, final File target, final int compressionLevel)
+            throws IOException {
+        InputStream stream = compressionLevel > 0
+                ? new GZIPInputStream(in, BUFFER_SIZE)
+                : new BufferedInputStream(in, BUFFER_SIZE);
+        DataInputStream data = new DataInputStream(stream);
+        String root = target.getCanonicalPath() + File.separator;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (data.readBoolean()) {
+            String path = data.readUTF();
+            long totalSize = data.readLong();
+            long offset = data.readLong();
+            long length = data.readLong();
+            File file = new File(target, path);
+            if (!file.getCanonicalPath().startsWith(root)) {
+                throw new IOException("Refusing to write outside of " + target + ": " + path);
+            }
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Could not create " + parent);
+            }
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.setLength(totalSize);
+                out.seek(offset);
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Stream ended in the middle of " + path);
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a group of parts down a pipe to the master.
+     */
+    private static final class SendCallable extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Part> parts;
+        private final int compressionLevel;
+        private final Pipe pipe;
+
+        SendCallable(final List<Part> parts, final int compressionLevel, final Pipe pipe) {
+            this.parts = parts;
+            this.compressionLevel = compressionLevel;
+            this.pipe = pipe;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Void invoke(final File dir, final VirtualChannel channel) throws IOException {
+            try (OutputStream out = pipe.getOut()) {
+                writeParts(dir, parts, out, compressionLevel);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * GZIP output at a chosen compression level.
+     */
+    private static final class LevelledGZIPOutputStream extends GZIPOutputStream {
+        LevelledGZIPOutputStream(final OutputStream out, final int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * A range of bytes of one file.
+     */
+    static final class Part implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final long totalSize;
+        private final long offset;
+        private final long length;
+
+        Part(final String path, final long totalSize, final long offset, final long length) {
+            this.path = path;
+            this.totalSize = totalSize;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        long getTotalSize() {
+            return totalSize;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+    }
+}
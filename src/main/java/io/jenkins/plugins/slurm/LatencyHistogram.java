@@ -0,0 +1,131 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies which can be recorded to from many threads
+ * without locking, in the manner of HdrHistogram: values (microseconds) are
+ * counted in buckets whose width grows with the value, so that any quantile
+ * is reported to within about 6% of the true value, however large, in a
+ * fixed amount of memory.
+ * <p>
+ * Values below 32 have a bucket each. Above that, each power of two is split
+ * into 16 buckets of equal width. Values larger than {@link #MAX_VALUE}
+ * (about 12 days) are counted as {@link #MAX_VALUE}.
+ *
+ * @author Eli Chadwick
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Number of bits of a value kept by its bucket, beyond its leading bit.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest value counted as itself (microseconds).
+     */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    /**
+     * Number of times recorded, by bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(bucketOf(MAX_VALUE) + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param micros   value (microseconds); negative values are ignored
+     */
+    public void record(final long micros) {
+        if (micros < 0) {
+            return;
+        }
+        long value = Math.min(micros, MAX_VALUE);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long previous;
+        while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            continue;
+        }
+    }
+
+    /**
+     * Get the number of values recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the sum of the values recorded (microseconds).
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Get the largest value recorded (microseconds).
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get a quantile of the values recorded, e.g.&nbsp;0.99 for the 99th
+     * percentile. Not exact if values are recorded at the same time.
+     *
+     * @param quantile   between 0 and 1
+     * @return the largest value in the bucket holding the quantile, or the
+     *         largest value recorded if smaller (microseconds); 0 if nothing
+     *         has been recorded
+     */
+    public long getValueAtQuantile(final double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(quantile, 0), 1) * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Get the bucket which counts a value.
+     */
+    static int bucketOf(final long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the largest value counted by a bucket.
+     */
+    static long upperBoundOf(final int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
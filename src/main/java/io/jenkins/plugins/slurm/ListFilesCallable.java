@@ -0,0 +1,52 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lists the files in the directory acted on which match a set of patterns,
+ * with their sizes, in a single call over the remoting channel.
+ *
+ * @author Eli Chadwick
+ */
+public class ListFilesCallable extends MasterToSlaveFileCallable<Map<String, Long>> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Comma-separated Ant-style patterns of the files to list.
+     */
+    private final String includes;
+
+    /**
+     * @param includes   comma-separated patterns of the files to list,
+     *                   relative to the directory acted on
+     */
+    public ListFilesCallable(final String includes) {
+        this.includes = includes;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return sizes of the matching files (bytes), by path relative to the
+     *         directory acted on, using / as the separator
+     */
+    @Override
+    public Map<String, Long> invoke(final File dir, final VirtualChannel channel)
+            throws IOException {
+        Map<String, Long> files = new LinkedHashMap<String, Long>();
+        if (!dir.isDirectory()) {
+            return files;
+        }
+        for (String path : Util.createFileSet(dir, includes)
+                .getDirectoryScanner().getIncludedFiles()) {
+            files.put(path.replace(File.separatorChar, '/'), new File(dir, path).length());
+        }
+        return files;
+    }
+}
@@ -0,0 +1,86 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency histograms of each phase of the builds run through an agent,
+ * since Jenkins started, as scraped from {@link SLURMMetricsAction}.
+ *
+ * @author Eli Chadwick
+ */
+public final class PhaseMetrics {
+
+    /**
+     * Quantiles reported for each phase.
+     */
+    static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Map<PhaseTimer.Phase, LatencyHistogram> histograms;
+
+    public PhaseMetrics() {
+        histograms = new EnumMap<PhaseTimer.Phase, LatencyHistogram>(PhaseTimer.Phase.class);
+        for (PhaseTimer.Phase phase : PhaseTimer.Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Record the phases of a build.
+     *
+     * @param durations   time spent in each phase (nanoseconds)
+     */
+    public void record(final Map<PhaseTimer.Phase, Long> durations) {
+        for (Map.Entry<PhaseTimer.Phase, Long> duration : durations.entrySet()) {
+            histograms.get(duration.getKey()).record(duration.getValue() / 1000);
+        }
+    }
+
+    public LatencyHistogram getHistogram(final PhaseTimer.Phase phase) {
+        return histograms.get(phase);
+    }
+
+    /**
+     * Write the metrics of an agent in the Prometheus text format, as a
+     * summary of seconds per phase. Phases which have not been recorded are
+     * left out. The HELP and TYPE lines, which must only appear once, are
+     * written by {@link #writeHeader(StringBuilder)}.
+     *
+     * @param agent   name of the agent, used as a label
+     * @param out     where to write
+     */
+    public void writePrometheus(final String agent, final StringBuilder out) {
+        String agentLabel = "agent=\"" + escape(agent) + "\"";
+        for (Map.Entry<PhaseTimer.Phase, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            String labels = agentLabel + ",phase=\"" + entry.getKey().getMetricName() + "\"";
+            for (double quantile : QUANTILES) {
+                out.append("slurm_phase_seconds{").append(labels)
+                        .append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.getValueAtQuantile(quantile) / 1e6).append('\n');
+            }
+            out.append("slurm_phase_seconds_sum{").append(labels).append("} ")
+                    .append(histogram.getSum() / 1e6).append('\n');
+            out.append("slurm_phase_seconds_count{").append(labels).append("} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+    }
+
+    /**
+     * Write the HELP and TYPE lines of the metrics.
+     */
+    public static void writeHeader(final StringBuilder out) {
+        out.append("# HELP slurm_phase_seconds Time spent by SLURM builds in each phase.\n");
+        out.append("# TYPE slurm_phase_seconds summary\n");
+    }
+
+    /**
+     * Escape a label value for the Prometheus text format.
+     */
+    static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,128 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records how long a build spends in each phase of running a SLURM job,
+ * with the monotonic clock of {@link System#nanoTime()}. Time spent in a
+ * phase more than once (e.g.&nbsp;each file recovered) is added up.
+ *
+ * @author Eli Chadwick
+ */
+public final class PhaseTimer {
+
+    /**
+     * Phases of a build.
+     */
+    public enum Phase {
+        /**
+         * Checking with sbatch --test-only that SLURM would accept the job.
+         */
+        PREFLIGHT("Pre-flight check"),
+        /**
+         * Formatting batch options and generating scripts on the master.
+         */
+        GENERATE_SCRIPTS("Script generation"),
+        /**
+         * Sending scripts to the agent, including looking up cached ones.
+         */
+        WRITE_SCRIPTS("Script write"),
+        /**
+         * Rebuilding the environment module cache on the agent.
+         */
+        MODULE_CACHE("Module cache"),
+        /**
+         * Running sbatch, or waiting to be packed with other jobs. Includes
+         * the whole of the job if sbatch waits for it.
+         */
+        SUBMIT("Submission"),
+        /**
+         * Waiting for the job to finish, when polled.
+         */
+        WAIT("Waiting for job"),
+        /**
+         * Time the job spent queued, according to SLURM.
+         */
+        QUEUE_WAIT("Queue wait (SLURM)"),
+        /**
+         * Time the job spent running, according to SLURM.
+         */
+        RUN("Run time (SLURM)"),
+        /**
+         * Reading the communication file and accounting of the finished job.
+         */
+        READ_RESULT("Reading result"),
+        /**
+         * Copying output and other files back to the master.
+         */
+        RECOVER_FILES("File recovery"),
+        /**
+         * Deleting the scratch directory.
+         */
+        CLEAN_UP("Clean up");
+
+        private final String displayName;
+
+        Phase(final String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * Get the name of the phase in metrics, e.g.&nbsp;queue_wait.
+         */
+        public String getMetricName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Time spent in each phase recorded so far (nanoseconds).
+     */
+    private final Map<Phase, Long> durations = new EnumMap<Phase, Long>(Phase.class);
+
+    /**
+     * Get the current time, to pass to {@link #stop(Phase, long)}.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time spent in a phase since it was started.
+     *
+     * @param phase   phase which has ended
+     * @param start   time returned by {@link #start()} when the phase started
+     */
+    public void stop(final Phase phase, final long start) {
+        add(phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Record time spent in a phase which was not timed here (e.g.&nbsp;as
+     * reported by SLURM).
+     *
+     * @param phase   phase to add to
+     * @param nanos   time spent (nanoseconds); negative values are ignored
+     */
+    public synchronized void add(final Phase phase, final long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        Long before = durations.get(phase);
+        durations.put(phase, before == null ? nanos : before + nanos);
+    }
+
+    /**
+     * Get the time spent in each phase recorded (nanoseconds), in the order
+     * of the phases.
+     */
+    public synchronized Map<Phase, Long> getDurations() {
+        return new EnumMap<Phase, Long>(durations);
+    }
+}
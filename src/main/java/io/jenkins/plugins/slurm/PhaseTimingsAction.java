@@ -0,0 +1,74 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows on the page of a build how long it spent in each phase of running
+ * its SLURM job.
+ *
+ * @author Eli Chadwick
+ */
+public class PhaseTimingsAction implements Action {
+
+    /**
+     * Time spent in each phase (milliseconds).
+     */
+    private final Map<PhaseTimer.Phase, Long> millis;
+
+    /**
+     * @param durations   time spent in each phase (nanoseconds)
+     */
+    public PhaseTimingsAction(final Map<PhaseTimer.Phase, Long> durations) {
+        millis = new EnumMap<PhaseTimer.Phase, Long>(PhaseTimer.Phase.class);
+        for (Map.Entry<PhaseTimer.Phase, Long> duration : durations.entrySet()) {
+            millis.put(duration.getKey(), duration.getValue() / 1000000);
+        }
+    }
+
+    /**
+     * Get the phases recorded, in order, with their times in seconds, for
+     * display.
+     */
+    public final List<String[]> getPhases() {
+        List<String[]> phases = new ArrayList<String[]>();
+        for (Map.Entry<PhaseTimer.Phase, Long> entry : millis.entrySet()) {
+            phases.add(new String[] {entry.getKey().getDisplayName(),
+                    String.format("%.3f", entry.getValue() / 1000.0)});
+        }
+        return phases;
+    }
+
+    /**
+     * Get the time spent in a phase.
+     *
+     * @return milliseconds, or -1 if the phase was not recorded
+     */
+    public final long getMillis(final PhaseTimer.Phase phase) {
+        Long value = millis.get(phase);
+        return value == null ? -1 : value;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Shown in the summary of the build only.
+     */
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "SLURM phase timings";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,346 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Predicts how soon a job would finish in each partition of a cluster, so
+ * that a job can be sent to whichever is quickest (the "auto" queue).
+ * <p>
+ * Predictions are made from a snapshot of the cluster, taken through an
+ * agent and kept on its computer for {@link #TTL} milliseconds (5 minutes by
+ * default): the CPUs idle in each partition (sinfo), the CPUs wanted by jobs
+ * pending in it (squeue), and the median queue wait and run time of the jobs
+ * which started in it over the last {@link #HISTORY_HOURS} hours (sacct).
+ * <p>
+ * A job is expected to start at once where enough CPUs are idle and nothing
+ * is pending. Otherwise it waits for the CPUs it needs, beyond those idle,
+ * to be freed by running jobs finishing at the rate seen in the history -
+ * or for the median wait seen in the history, if that is longer.
+ *
+ * @author Eli Chadwick
+ */
+public final class QueuePredictor {
+
+    /**
+     * How long a snapshot is used for (milliseconds).
+     */
+    static final long TTL = TimeUnit.SECONDS.toMillis(
+            Long.getLong(QueuePredictor.class.getName() + ".ttl", 300));
+
+    /**
+     * How far back to look at jobs in sacct (hours).
+     */
+    static final int HISTORY_HOURS = Integer.getInteger(QueuePredictor.class.getName() + ".historyHours", 24);
+
+    /**
+     * Format of sinfo output: partition (marked * if the default),
+     * availability, CPUs allocated/idle/other/total, nodes and time limit.
+     */
+    static final String SINFO_FORMAT = "%P|%a|%C|%D|%l";
+
+    /**
+     * Format of squeue output for pending jobs: partitions and CPUs.
+     */
+    static final String SQUEUE_FORMAT = "%P|%C";
+
+    /**
+     * Fields of sacct output, with SLURM_TIME_FORMAT=%s.
+     */
+    static final String SACCT_FORMAT = "Partition,Submit,Start,End";
+
+    /**
+     * The latest snapshot, or null.
+     */
+    private Snapshot snapshot;
+
+    /**
+     * When the snapshot was taken (milliseconds since epoch).
+     */
+    private long taken;
+
+    /**
+     * The snapshot being taken, or null.
+     */
+    private CompletableFuture<Snapshot> taking;
+
+    /**
+     * Get the latest snapshot of the cluster, unless it has expired.
+     *
+     * @return the snapshot, or null if it must be taken again
+     */
+    public synchronized Snapshot getSnapshot() {
+        if (snapshot == null || System.currentTimeMillis() - taken >= TTL) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Keep a new snapshot of the cluster.
+     */
+    public synchronized void setSnapshot(final Snapshot snapshot) {
+        this.snapshot = snapshot;
+        this.taken = System.currentTimeMillis();
+    }
+
+    /**
+     * Claim the taking of a new snapshot, unless one is already being taken.
+     *
+     * @param future   completed by the caller with the snapshot it takes, or
+     *                 null if it could not take one
+     * @return null if the caller should take the snapshot, or the future of
+     *         the snapshot already being taken
+     */
+    public synchronized CompletableFuture<Snapshot> claim(final CompletableFuture<Snapshot> future) {
+        if (taking != null && !taking.isDone()) {
+            return taking;
+        }
+        taking = future;
+        return null;
+    }
+
+    /**
+     * Build a snapshot from the output of sinfo, squeue and sacct. Lines
+     * which cannot be read are skipped.
+     *
+     * @param sinfo    output of sinfo -h -o {@link #SINFO_FORMAT}, may be null
+     * @param squeue   output of squeue -h -t PD -o {@link #SQUEUE_FORMAT}, may be null
+     * @param sacct    output of sacct -a -X -n -P -o {@link #SACCT_FORMAT}, may be null
+     */
+    static Snapshot parse(final String sinfo, final String squeue, final String sacct) {
+        Map<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+        String defaultPartition = null;
+        for (String[] fields : SLURMOutputParser.parseRecords(sinfo, '|', 5)) {
+            String name = fields[0];
+            if (name.endsWith("*")) {
+                name = name.substring(0, name.length() - 1);
+                defaultPartition = name;
+            }
+            String[] cpus = fields[2].split("/");
+            if (name.isEmpty() || cpus.length != 4) {
+                continue;
+            }
+            Partition partition = partitions.get(name);
+            if (partition == null) {
+                partition = new Partition(name);
+                partitions.put(name, partition);
+            }
+            partition.up |= fields[1].equals("up");
+            partition.idleCpus += (int) SLURMOutputParser.parseLong(cpus[1], 0);
+            partition.totalCpus += (int) SLURMOutputParser.parseLong(cpus[3], 0);
+            partition.nodes += (int) SLURMOutputParser.parseLong(fields[3], 0);
+            long limit = (long) SLURMOutputParser.parseDuration(fields[4]); //-1 if infinite
+            partition.timeLimitSeconds = partition.timeLimitSeconds < 0 || limit < 0
+                    ? -1 : Math.max(partition.timeLimitSeconds, limit);
+        }
+        //a job pending in several partitions counts against each
+        for (String[] fields : SLURMOutputParser.parseRecords(squeue, '|', 2)) {
+            int cpus = (int) SLURMOutputParser.parseLong(fields[1], 0);
+            for (String name : fields[0].split(",")) {
+                Partition partition = partitions.get(name);
+                if (partition != null) {
+                    partition.pendingCpus += cpus;
+                }
+            }
+        }
+        Map<String, List<Long>> waits = new HashMap<String, List<Long>>();
+        Map<String, List<Long>> runs = new HashMap<String, List<Long>>();
+        for (String[] fields : SLURMOutputParser.parseRecords(sacct, '|', 4)) {
+            long submit = SLURMOutputParser.parseEpochSeconds(fields[1]);
+            long start = SLURMOutputParser.parseEpochSeconds(fields[2]);
+            long end = SLURMOutputParser.parseEpochSeconds(fields[3]);
+            if (!partitions.containsKey(fields[0]) || submit < 0 || start < submit) {
+                continue; //never started
+            }
+            add(waits, fields[0], start - submit);
+            if (end >= start) {
+                add(runs, fields[0], end - start);
+            }
+        }
+        for (Partition partition : partitions.values()) {
+            partition.medianWaitSeconds = median(waits.get(partition.name));
+            partition.medianRunSeconds = median(runs.get(partition.name));
+        }
+        return new Snapshot(partitions, defaultPartition);
+    }
+
+    private static void add(final Map<String, List<Long>> samples, final String key, final long value) {
+        List<Long> values = samples.get(key);
+        if (values == null) {
+            values = new ArrayList<Long>();
+            samples.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * @return the median, or -1 if there are no values
+     */
+    static long median(final Collection<Long> values) {
+        if (values == null || values.isEmpty()) {
+            return -1;
+        }
+        Long[] sorted = values.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Predict how long a job would take to finish in a partition, from now.
+     *
+     * @param partition   partition to predict for
+     * @param nodes       nodes the job needs
+     * @param cpus        CPUs the job needs
+     * @param walltime    walltime of the job (minutes)
+     * @return expected seconds until the job finishes, or
+     *         {@link Double#POSITIVE_INFINITY} if it cannot run in the partition
+     */
+    static double expectedSeconds(final Partition partition, final int nodes, final int cpus,
+            final int walltime) {
+        long walltimeSeconds = walltime * 60L;
+        if (!partition.up || partition.totalCpus < cpus || partition.nodes < nodes
+                || (partition.timeLimitSeconds >= 0 && partition.timeLimitSeconds < walltimeSeconds)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return expectedWaitSeconds(partition, cpus, walltimeSeconds) + walltimeSeconds;
+    }
+
+    /**
+     * Predict how long a job would wait in a partition before it starts.
+     */
+    static double expectedWaitSeconds(final Partition partition, final int cpus,
+            final long walltimeSeconds) {
+        int free = partition.idleCpus - partition.pendingCpus;
+        if (free >= cpus) {
+            return 0;
+        }
+        //CPUs are freed as running jobs finish: a whole partition's worth
+        //for every typical run time. Without history, assume jobs as long as
+        //this one
+        long runSeconds = partition.medianRunSeconds >= 0 ? partition.medianRunSeconds : walltimeSeconds;
+        double drain = (double) (cpus - free) * runSeconds / Math.max(1, partition.totalCpus);
+        return Math.max(drain, partition.medianWaitSeconds);
+    }
+
+    /**
+     * Pick the partition in which a job is expected to finish soonest.
+     * Ties go to the default partition, then to the first permitted.
+     *
+     * @param snapshot    snapshot of the cluster
+     * @param permitted   partitions which may be used, or empty for any
+     * @param nodes       nodes the job needs
+     * @param cpus        CPUs the job needs
+     * @param walltime    walltime of the job (minutes)
+     * @param estimates   if not null, filled with the expected seconds to
+     *                    finish in each partition considered
+     * @return the partition, or null if the job cannot run in any of them
+     */
+    static String select(final Snapshot snapshot, final List<String> permitted,
+            final int nodes, final int cpus, final int walltime,
+            final Map<String, Double> estimates) {
+        List<String> candidates = new ArrayList<String>();
+        if (snapshot.defaultPartition != null
+                && (permitted.isEmpty() || permitted.contains(snapshot.defaultPartition))) {
+            candidates.add(snapshot.defaultPartition);
+        }
+        for (String name : permitted.isEmpty() ? snapshot.partitions.keySet() : permitted) {
+            if (!candidates.contains(name) && snapshot.partitions.containsKey(name)) {
+                candidates.add(name);
+            }
+        }
+        String best = null;
+        double bestSeconds = Double.POSITIVE_INFINITY;
+        for (String name : candidates) {
+            double seconds = expectedSeconds(snapshot.partitions.get(name), nodes, cpus, walltime);
+            if (estimates != null) {
+                estimates.put(name, seconds);
+            }
+            if (seconds < bestSeconds) {
+                best = name;
+                bestSeconds = seconds;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * State and recent history of a partition.
+     */
+    static final class Partition {
+        private final String name;
+        private boolean up;
+        private int idleCpus;
+        private int totalCpus;
+        private int nodes;
+        private int pendingCpus;
+
+        /**
+         * Longest walltime allowed (seconds), or -1 if unlimited.
+         */
+        private long timeLimitSeconds;
+
+        private long medianWaitSeconds = -1;
+        private long medianRunSeconds = -1;
+
+        Partition(final String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isUp() {
+            return up;
+        }
+
+        int getIdleCpus() {
+            return idleCpus;
+        }
+
+        int getPendingCpus() {
+            return pendingCpus;
+        }
+
+        long getTimeLimitSeconds() {
+            return timeLimitSeconds;
+        }
+
+        long getMedianWaitSeconds() {
+            return medianWaitSeconds;
+        }
+
+        long getMedianRunSeconds() {
+            return medianRunSeconds;
+        }
+    }
+
+    /**
+     * The partitions of a cluster at one time.
+     */
+    static final class Snapshot {
+        private final Map<String, Partition> partitions;
+        private final String defaultPartition;
+
+        Snapshot(final Map<String, Partition> partitions, final String defaultPartition) {
+            this.partitions = partitions;
+            this.defaultPartition = defaultPartition;
+        }
+
+        Partition getPartition(final String name) {
+            return partitions.get(name);
+        }
+
+        String getDefaultPartition() {
+            return defaultPartition;
+        }
+    }
+}
@@ -5,12 +5,24 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.util.FormValidation;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Stores limits on HPC resource usage for a BatchSlave.
+ * <p>
+ * CPU time available is kept in a lock-free ledger, so that builds running
+ * concurrently on the same agent can neither lose each other's updates nor
+ * all pass the budget check for the same minutes. A build reserves the time
+ * it requests up front with {@link #tryReserveSeconds(long)}, then either
+ * settles the reservation to the time actually used or refunds it.
+ * <p>
+ * With auto-discovery on, jobs are also validated against the live limits
+ * of the cluster, from a {@link ClusterModel} kept up to date in the
+ * background, rather than the CPUs per node and nodes per job entered here.
  * @author Eli Chadwick
  */
 public class ResourceConfig implements Describable<ResourceConfig>, Serializable {
@@ -47,6 +59,53 @@ public class ResourceConfig implements Describable<ResourceConfig>, Serializable
      */
     private String availableQueues;
 
+    /**
+     * The most memory a job may request on each node (MB), or 0 for no limit.
+     */
+    private int maxMemoryPerNode;
+
+    /**
+     * Kinds of generic resources (GRES) that jobs may request, e.g.&nbsp;gpu
+     * or gpu:v100. If left empty, GRES requested are not checked.
+     */
+    private String availableGres;
+
+    /**
+     * Licenses that jobs may request. If left empty, licenses requested are
+     * not checked.
+     */
+    private String availableLicenses;
+
+    /**
+     * Qualities of service that jobs may request. If left empty, QOS
+     * requested are not checked.
+     */
+    private String availableQos;
+
+    /**
+     * Accounts that jobs may be charged to. If left empty, accounts
+     * requested are not checked.
+     */
+    private String availableAccounts;
+
+    /**
+     * Discover the partitions of the cluster and their limits from sinfo
+     * and scontrol.
+     */
+    private boolean autoDiscover;
+
+    /**
+     * The partitions of the cluster as last discovered, or null.
+     */
+    private transient volatile ClusterModel clusterModel;
+
+    /**
+     * CPU seconds available and not reserved by a running job. This is the
+     * authoritative value; availableMinutes and availableSeconds are kept as
+     * a snapshot of it so that they are persisted with the agent.
+     */
+    private transient AtomicLong ledger;
+
     @DataBoundConstructor
     public ResourceConfig(final int maxNodesPerJob, final int cpusPerNode,
             final int maxCpuTimePerJob, final int availableMinutes,
@@ -57,6 +116,16 @@ public class ResourceConfig implements Describable<ResourceConfig>, Serializable
         this.availableMinutes = availableMinutes;
         this.availableQueues = availableQueues;
         verifyAvailableSeconds();
+        this.ledger = new AtomicLong(availableSeconds);
+    }
+
+    /**
+     * Rebuild the ledger from the persisted snapshot.
+     */
+    private Object readResolve() {
+        verifyAvailableSeconds();
+        ledger = new AtomicLong(availableSeconds);
+        return this;
     }
 
     public final int getMaxNodesPerJob() {
@@ -72,17 +141,123 @@ public class ResourceConfig implements Describable<ResourceConfig>, Serializable
     }
 
     public final int getAvailableMinutes() {
-        return availableMinutes;
+        return (int) (ledger.get() / 60);
     }
 
     public final int getAvailableSeconds() {
-        return availableSeconds;
+        return (int) Math.min(ledger.get(), Integer.MAX_VALUE);
     }
 
     public final String getAvailableQueues() {
         return availableQueues;
     }
 
+    public final int getMaxMemoryPerNode() {
+        return maxMemoryPerNode;
+    }
+
+    @DataBoundSetter
+    public final void setMaxMemoryPerNode(final int maxMemoryPerNode) {
+        this.maxMemoryPerNode = Math.max(0, maxMemoryPerNode);
+    }
+
+    public final String getAvailableGres() {
+        return availableGres;
+    }
+
+    @DataBoundSetter
+    public final void setAvailableGres(final String availableGres) {
+        this.availableGres = availableGres;
+    }
+
+    public final String getAvailableLicenses() {
+        return availableLicenses;
+    }
+
+    @DataBoundSetter
+    public final void setAvailableLicenses(final String availableLicenses) {
+        this.availableLicenses = availableLicenses;
+    }
+
+    public final String getAvailableQos() {
+        return availableQos;
+    }
+
+    @DataBoundSetter
+    public final void setAvailableQos(final String availableQos) {
+        this.availableQos = availableQos;
+    }
+
+    public final String getAvailableAccounts() {
+        return availableAccounts;
+    }
+
+    @DataBoundSetter
+    public final void setAvailableAccounts(final String availableAccounts) {
+        this.availableAccounts = availableAccounts;
+    }
+
+    /**
+     * Check whether a name is in a list of permitted names, separated by
+     * commas or whitespace. A name is also permitted if its kind is
+     * (gpu:v100 is permitted by gpu).
+     *
+     * @param list   permitted names, or null or empty to permit any name
+     * @param name   name to check
+     * @return true if the name is permitted
+     */
+    static boolean isListed(final String list, final String name) {
+        if (list == null || list.trim().isEmpty()) {
+            return true;
+        }
+        for (String listed : list.trim().split("[,\\s]+")) {
+            if (listed.equals(name) || name.startsWith(listed + ":")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public final boolean isAutoDiscover() {
+        return autoDiscover;
+    }
+
+    @DataBoundSetter
+    public final void setAutoDiscover(final boolean autoDiscover) {
+        this.autoDiscover = autoDiscover;
+    }
+
+    /**
+     * Get the partitions of the cluster, if auto-discovery is on and they
+     * were discovered recently enough to be used.
+     *
+     * @return the model, or null if the limits entered here are to be used
+     */
+    public final ClusterModel getClusterModel() {
+        ClusterModel model = clusterModel;
+        if (!autoDiscover || model == null || !model.isFresh(System.currentTimeMillis())) {
+            return null;
+        }
+        return model;
+    }
+
+    final void setClusterModel(final ClusterModel clusterModel) {
+        this.clusterModel = clusterModel;
+    }
+
+    /**
+     * Describe the discovered partitions, for the configuration page.
+     */
+    public final String getClusterModelSummary() {
+        ClusterModel model = getClusterModel();
+        if (model == null) {
+            return autoDiscover ? "Not discovered yet" : "";
+        }
+        return "Partitions " + String.join(", ", model.getPartitions().keySet())
+                + " (default " + model.getDefaultPartition() + "), discovered "
+                + (System.currentTimeMillis() - model.getDiscovered()) / 1000 + " seconds ago";
+    }
+
     @Override
     public final DescriptorImpl getDescriptor() {
         return DESCRIPTOR;
@@ -109,13 +284,102 @@ public class ResourceConfig implements Describable<ResourceConfig>, Serializable
      * @param time   the number of seconds to reduce the available time by
      */
     public final void reduceAvailableSeconds(final int time) {
-        verifyAvailableSeconds();
-        this.availableSeconds -= time;
-        this.availableMinutes = (int) Math.floor((double) availableSeconds / 60.); //round down
-        if (availableSeconds < 0 || availableMinutes < 0) { //precautionary, shouldn't go negative
-            this.availableSeconds = 0;
-            this.availableMinutes = 0;
+        adjust(-time);
+    }
+
+    /**
+     * Reserve CPU time for a job, if enough is available.
+     *
+     * @param seconds   the number of seconds requested by the job
+     * @return true if the time was reserved, false if not enough is available
+     */
+    public final boolean tryReserveSeconds(final long seconds) {
+        while (true) {
+            long current = ledger.get();
+            if (seconds > current) {
+                return false;
+            }
+            if (ledger.compareAndSet(current, current - seconds)) {
+                updateSnapshot();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Settle a reservation once the job has finished, returning any time
+     * reserved but not used (or charging any time used beyond the reservation).
+     *
+     * @param reserved   the number of seconds reserved for the job
+     * @param used       the number of seconds actually used by the job
+     */
+    public final void settle(final long reserved, final long used) {
+        adjust(reserved - used);
+    }
+
+    /**
+     * Return all of a reservation, e.g.&nbsp;because the job was never run.
+     *
+     * @param reserved   the number of seconds reserved for the job
+     */
+    public final void refund(final long reserved) {
+        adjust(reserved);
+    }
+
+    /**
+     * Set the time available, e.g.&nbsp;as recovered from the agent's
+     * {@link CpuTimeLedger} at startup.
+     *
+     * @param seconds   the number of seconds available
+     */
+    final void restoreAvailableSeconds(final long seconds) {
+        ledger.set(Math.max(0, seconds));
+        updateSnapshot();
+    }
+
+    /**
+     * Take over the time available from the configuration this one replaces
+     * when the agent is reconfigured, so that jobs reserved under the old
+     * configuration settle against this one. The time entered only replaces
+     * the time available if it was changed.
+     *
+     * @param previous   the configuration being replaced
+     * @return true if the time available was left unchanged
+     */
+    final boolean takeOver(final ResourceConfig previous) {
+        boolean unchanged = availableMinutes == previous.getAvailableMinutes();
+        long entered = availableSeconds;
+        ledger = previous.ledger;
+        if (!unchanged) {
+            ledger.set(entered);
         }
+        updateSnapshot();
+        return unchanged;
+    }
+
+    /**
+     * Atomically add to the time available. The time available never goes
+     * below zero.
+     *
+     * @param delta   seconds to add, negative to subtract
+     */
+    private void adjust(final long delta) {
+        ledger.updateAndGet(current -> Math.max(0, current + delta));
+        updateSnapshot();
+    }
+
+    /**
+     * Copy the ledger into the persisted fields. Repeats until the ledger
+     * does not change while copying, so concurrent updates always leave the
+     * latest value behind.
+     */
+    private void updateSnapshot() {
+        long seconds;
+        do {
+            seconds = ledger.get();
+            this.availableSeconds = (int) Math.min(seconds, Integer.MAX_VALUE);
+            this.availableMinutes = (int) Math.min(seconds / 60, Integer.MAX_VALUE);
+        } while (seconds != ledger.get());
     }
 
     @Extension
@@ -5,6 +5,7 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Computer;
@@ -14,12 +15,23 @@ import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides an interface within the Jenkins job configuration. Stores user input,
@@ -49,9 +61,10 @@ public class SLURMBuilder extends BatchBuilder {
             final Launcher launcher, final TaskListener listener)
             throws InterruptedException, IOException {
 
-        AbstractBuild abstractBuild = AbstractBuild.class.cast(run);
-        EnvVars env = abstractBuild.getEnvironment(listener);
-        env.overrideAll(abstractBuild.getBuildVariables());
+        EnvVars env = run.getEnvironment(listener);
+        if (run instanceof AbstractBuild) {
+            env.overrideAll(((AbstractBuild<?, ?>) run).getBuildVariables());
+        }
 
         //check job is running on a SLURMSlave (otherwise it won't work)
         Computer computer = getComputer(workspace);
@@ -69,74 +82,316 @@ public class SLURMBuilder extends BatchBuilder {
             throw new AbortException("Configuration is invalid");
         }
 
-        //set up SLURM system
+        //the time requested is now reserved - it must be settled or refunded
+        long reservedSeconds = getRequestedSeconds();
+        SubmissionResult result;
+        boolean settled = false;
+        //set up SLURM system, with a scratch directory of its own so that
+        //builds sharing the workspace do not overwrite each other's files
         String communicationFile = "comms.txt";
-        BatchSystem batchSystem = new SLURMSystem(run, workspace, launcher,
-                listener, communicationFile);
-        listener.getLogger().println("Remote: " + workspace.getRemote());
+        SLURMSystem batchSystem = new SLURMSystem(run, workspace,
+                newScratchDirectoryName(run), launcher, listener,
+                communicationFile, isPollForCompletion(), isArrayJob());
+        PhaseTimer timer = batchSystem.getPhaseTimer();
+        try {
+            listener.getLogger().println("Remote: " + batchSystem.getScratch().getRemote());
+
+            //generate scripts and write to remote scratch directory
+            String queue = selectQueue(slurmNode, env, batchSystem, listener);
+            testSubmission(slurmNode, env, queue, batchSystem, listener);
+            String systemScriptName = writeScripts(slurmNode, env, queue, batchSystem, listener);
+
+            //run job and recover artifacts
+            int cpuTime = (int) (getRequestedSeconds() / 60);
+            if (isPacked()) {
+                result = batchSystem.submitPackedJob(systemScriptName,
+                        getTasks() * getCpusPerTask(), getWalltime(),
+                        queue, env.expand(getFeatures()));
+            } else {
+                result = batchSystem.submitJob(systemScriptName, cpuTime);
+            }
+            timer.add(PhaseTimer.Phase.QUEUE_WAIT, TimeUnit.SECONDS.toNanos(result.getQueueWaitSeconds()));
+            timer.add(PhaseTimer.Phase.RUN, TimeUnit.SECONDS.toNanos(result.getElapsedSeconds()));
 
-        //generate scripts and write to remote workspace
+            //account for time used - node handles if there are no limits on time
+            slurmNode.settleReservation(reservedSeconds, getComputeSeconds(result, cpuTime));
+            settled = true;
+
+            //warn if job failed
+            if (!result.isSuccessful()) {
+                listener.error("SLURM job did not complete successfully. Files will be recovered before this job is aborted.");
+            }
+
+            //recover files from remote - useful to do before killing job if it's failed
+            long start = timer.start();
+            recoverJobFiles(result, batchSystem, run, launcher, listener);
+            timer.stop(PhaseTimer.Phase.RECOVER_FILES, start);
+
+            //clean up - important that this is done before killing the job if it's failed
+            start = timer.start();
+            batchSystem.cleanUpFiles();
+            timer.stop(PhaseTimer.Phase.CLEAN_UP, start);
+        } finally {
+            //job was never run, or the build was aborted while it ran
+            if (!settled) {
+                settleCancelled(slurmNode, batchSystem, batchSystem.getSubmittedJobID(),
+                        batchSystem.getSubmitTime(), reservedSeconds, listener);
+            }
+            //record where the time went, however the build ended
+            Map<PhaseTimer.Phase, Long> durations = timer.getDurations();
+            run.addAction(new PhaseTimingsAction(durations));
+            ((SLURMSlaveComputer) computer).getPhaseMetrics().record(durations);
+        }
+
+        //kill the job if it failed
+        //does not prevent any code running here but changes Jenkins job status
+        if (!result.isSuccessful()) {
+            throw new AbortException("SLURM job did not complete successfully");
+        }
+    }
+
+    /**
+     * Generate the user and system scripts and write them to the scratch
+     * directory of the batch system, or for the user script, to the
+     * {@link ScriptCache} of the workspace if it is not there already.
+     *
+     * @param slurmNode     agent the job will be submitted through
+     * @param env           environment used to expand the features
+     * @param queue         queue to submit to, as from
+     *                          {@link #selectQueue(SLURMSlave, EnvVars, SLURMSystem, TaskListener)}
+     * @param batchSystem   batch system the job will be submitted to
+     * @param listener      as provided to
+     *                          {@link #perform(Run, FilePath, Launcher, TaskListener)}
+     * @return name of the system script, which is the one to submit
+     * @throws AbortException if nothing is left of the script after filtering
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    final String writeScripts(final SLURMSlave slurmNode, final EnvVars env,
+            final String queue, final BatchSystem batchSystem, final TaskListener listener)
+            throws InterruptedException, IOException {
+        PhaseTimer timer = batchSystem.getPhaseTimer();
+        long start = timer.start();
         //format options
         String formattedBatchOptions = slurmNode.formatBatchOptions(
                 getNodes(), getTasks(), getCpusPerTask(), getWalltime(),
-                env.expand(getQueue()), env.expand(getFeatures()), isExclusive()); //, getNotificationConfig()
-        //user script
+                queue, env.expand(getFeatures()), isExclusive(),
+                getArrayTasks(), getArrayMaxConcurrent()) //, getNotificationConfig()
+                + formatResourceOptions(slurmNode, env);
+        //user script - cached in the workspace for every build of the same
+        //script, so only filtered and sent if it is not already there. The
+        //build runs its own copy, in its scratch directory
         String userScriptName = "_user_script.sh";
-        String userScript = generateUserScript(getRawScript(), slurmNode.getPrefix());
-        listener.getLogger().print(userScriptName + ":\n" + userScript);
-        FilePath userScriptPath = new FilePath(workspace, userScriptName);
-        userScriptPath.write(userScript, "utf-8");
-        //system script
+        String key = ScriptCache.key(getRawScript(), slurmNode.getPrefix());
+        String userScriptPath = batchSystem.getScratchPath(userScriptName);
+        //system script - runs in the workspace, so refers to files in the
+        //scratch directory by their paths relative to the workspace. Each
+        //task of a job array writes a communication file of its own
         String systemScriptName = "_system_script.sh";
+        String communicationFile = isArrayJob()
+                ? SLURMSystem.taskFileName(batchSystem.getCommunicationFile(), "${SLURM_ARRAY_TASK_ID}")
+                : batchSystem.getCommunicationFile();
         String systemScript = generateSystemScript(formattedBatchOptions,
-                userScriptName, batchSystem.getCommunicationFile());
+                userScriptPath, batchSystem.getScratchPath(communicationFile));
+        timer.stop(PhaseTimer.Phase.GENERATE_SCRIPTS, start);
+
+        start = timer.start();
+        FilePath scratch = batchSystem.getScratch();
+        scratch.mkdirs();
+        //the user script is filtered in one pass straight into the remote
+        //file, and into the build log alongside
+        FilePath workspace = batchSystem.getWorkspace();
+        if (workspace.act(new ScriptCache.LookupCallable(key,
+                ScriptCache.getDigest(key), userScriptPath))) {
+            listener.getLogger().println(userScriptName + ": unchanged, reusing " + ScriptCache.getPath(key));
+        } else {
+            listener.getLogger().println(userScriptName + ":");
+            FilePath userScript = scratch.child(userScriptName);
+            MessageDigest digest = ScriptCache.newDigest();
+            boolean valid;
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new TeeOutputStream(
+                    new DigestOutputStream(userScript.write(), digest),
+                    new CloseShieldOutputStream(listener.getLogger())),
+                    StandardCharsets.UTF_8))) {
+                valid = writeUserScript(getRawScript(), slurmNode.getPrefix(), out);
+            }
+            if (!valid) {
+                throw new AbortException("No valid script entered. Script is either empty or contains no valid content (batch options inside the script are not read).");
+            }
+            workspace.act(new ScriptCache.PublishCallable(key, userScriptPath, ScriptCache.MAX_SCRIPTS));
+            ScriptCache.putDigest(key, Util.toHexString(digest.digest()));
+        }
         listener.getLogger().print(systemScriptName + ":\n" + systemScript);
-        FilePath systemScriptPath = new FilePath(workspace, systemScriptName);
+        FilePath systemScriptPath = new FilePath(scratch, systemScriptName);
         systemScriptPath.write(systemScript, "utf-8");
+        timer.stop(PhaseTimer.Phase.WRITE_SCRIPTS, start);
 
         listener.getLogger().println("Scripts sent to remote");
+        return systemScriptName;
+    }
+
+    /**
+     * Get the queue to submit to: the queue entered, with variables expanded,
+     * or for {@link #AUTO_QUEUE}, whichever of the queues available on the
+     * agent the job is expected to finish soonest in.
+     *
+     * @param slurmNode     agent the job will be submitted through
+     * @param env           environment used to expand the queue
+     * @param batchSystem   batch system the job will be submitted to
+     * @param listener      where to report the queue picked
+     * @return the queue, or empty for the default
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    final String selectQueue(final SLURMSlave slurmNode, final EnvVars env,
+            final SLURMSystem batchSystem, final TaskListener listener)
+            throws InterruptedException, IOException {
+        String queue = getQueue() == null ? "" : env.expand(getQueue()).trim();
+        if (!AUTO_QUEUE.equalsIgnoreCase(queue)) {
+            return queue;
+        }
+        List<String> permitted = new ArrayList<String>();
+        ResourceConfig config = slurmNode.getResourceConfig();
+        if (config != null && config.getAvailableQueues() != null) {
+            for (String available : config.getAvailableQueues().split(",")) {
+                if (!available.trim().isEmpty()) {
+                    permitted.add(available.trim());
+                }
+            }
+        }
+        return batchSystem.selectQueue(permitted, getNodes(),
+                getTasks() * getCpusPerTask(), getWalltime());
+    }
 
-        //run job and recover artifacts
-        int cpuTime = getTasks() * getCpusPerTask() * getWalltime();
-        int[] output = batchSystem.submitJob(systemScriptName, cpuTime);
-        int jobID = output[0];
-        int exitCode = output[1];
-        int computeTimeSec = output[2];
+    /**
+     * Settle the reservation of a job which was cancelled before its result
+     * was known, e.g.&nbsp;because the build was aborted, charging the time
+     * sacct reports it used - or, failing that, the time since it was
+     * submitted. All of the reservation is returned if the job was never
+     * submitted.
+     *
+     * @param slurmNode         agent the time was reserved on
+     * @param batchSystem       batch system the job was submitted to, or null
+     *                          if it cannot be reached
+     * @param jobID             ID of the job, or null if it is not known
+     * @param submitTime        when the job was submitted (milliseconds since
+     *                          epoch), or -1 if it never was
+     * @param reservedSeconds   CPU time reserved for the job
+     * @param listener          where to report the time charged
+     */
+    final void settleCancelled(final SLURMSlave slurmNode, final SLURMSystem batchSystem,
+            final String jobID, final long submitTime, final long reservedSeconds,
+            final TaskListener listener) {
+        if (submitTime < 0) {
+            slurmNode.refundReservation(reservedSeconds);
+            return;
+        }
+        long used = -1;
+        if (jobID != null && batchSystem != null) {
+            try {
+                used = batchSystem.queryUsedSeconds(jobID);
+            } catch (IOException e) {
+                listener.getLogger().println("Could not look up the time used by job " + jobID + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long charged = getCancelledComputeSeconds(used,
+                System.currentTimeMillis() - submitTime, reservedSeconds);
+        listener.getLogger().println("Charging " + charged + " of the " + reservedSeconds
+                + " CPU seconds reserved for the cancelled job"
+                + (used < 0 ? " (time since submission)" : ""));
+        slurmNode.settleReservation(reservedSeconds, charged);
+    }
 
-        //account for time used - node handles if there are no limits on time
-        slurmNode.reduceAvailableSeconds(computeTimeSec);
+    /**
+     * Format the memory, tasks per node, GRES, licenses, QOS, account and
+     * minimum walltime requested, with any variables expanded.
+     *
+     * @param slurmNode   agent the job will be submitted through
+     * @param env         environment used to expand the options
+     */
+    final String formatResourceOptions(final SLURMSlave slurmNode, final EnvVars env) {
+        return slurmNode.formatResourceOptions(env.expand(getMemory()), env.expand(getMemoryPerCpu()),
+                getTasksPerNode(), env.expand(getGres()), env.expand(getLicenses()),
+                env.expand(getQos()), env.expand(getAccount()), getTimeMin());
+    }
 
-        //warn if job failed
-        if (exitCode != 0) {
-            listener.error("SLURM job did not complete successfully. Files will be recovered before this job is aborted.");
+    /**
+     * Check that SLURM would accept the job before anything is staged for
+     * it, reporting when it is expected to start.
+     *
+     * @param slurmNode     agent the job will be submitted through
+     * @param env           environment used to expand the features
+     * @param queue         queue the job will be submitted to
+     * @param batchSystem   batch system the job will be submitted to
+     * @param listener      where to report the verdict
+     * @throws AbortException if SLURM would reject the job
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    final void testSubmission(final SLURMSlave slurmNode, final EnvVars env,
+            final String queue, final SLURMSystem batchSystem, final TaskListener listener)
+            throws InterruptedException, IOException {
+        if (!SLURMPreflight.ENABLED) {
+            return;
         }
+        PhaseTimer timer = batchSystem.getPhaseTimer();
+        long start = timer.start();
+        String features = env.expand(getFeatures());
+        String resourceOptions = formatResourceOptions(slurmNode, env);
+        String key = SLURMPreflight.key(queue, getNodes(), getTasks(), getCpusPerTask(),
+                getWalltime(), features, isExclusive(), getArrayTasks(), getArrayMaxConcurrent(),
+                resourceOptions);
+        SLURMPreflight.Verdict verdict = batchSystem.testSubmission(key, slurmNode.formatBatchOptions(
+                getNodes(), getTasks(), getCpusPerTask(), getWalltime(), queue, features,
+                isExclusive(), getArrayTasks(), getArrayMaxConcurrent()) + resourceOptions);
+        timer.stop(PhaseTimer.Phase.PREFLIGHT, start);
+        long age = (System.currentTimeMillis() - verdict.getCreated()) / 1000;
+        String checked = age > 0 ? " (checked " + age + " seconds ago)" : "";
+        switch (verdict.getOutcome()) {
+            case ACCEPTED:
+                listener.getLogger().println("Pre-flight check: " + verdict.getMessage() + checked);
+                break;
+            case REJECTED:
+                throw new AbortException("SLURM would reject this job: " + verdict.getMessage() + checked);
+            default:
+                listener.getLogger().println("WARNING: Pre-flight check could not be made, submitting anyway: " + verdict.getMessage());
+                break;
+        }
+    }
 
-        //recover files from remote - useful to do before killing job if it's failed
+    /**
+     * Recover the output of a job and the communication file from the scratch
+     * directory, and any additional files requested by the user from the
+     * workspace.
+     *
+     * @param result        result of the job
+     * @param batchSystem   batch system the job was submitted to
+     * @param run           as provided to
+     *                          {@link #perform(Run, FilePath, Launcher, TaskListener)}
+     * @param launcher      as above
+     * @param listener      as above
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    final void recoverJobFiles(final SubmissionResult result,
+            final BatchSystem batchSystem, final Run<?, ?> run,
+            final Launcher launcher, final TaskListener listener)
+            throws InterruptedException, IOException {
         listener.getLogger().println("Recovering files from remote");
         ArrayList<String> filesToRecover = new ArrayList<String>();
-        if (jobID >= 0) { //job ran successfully
-            filesToRecover.add("slurm-" + jobID + "*");
+        if (result.isSubmitted()) {
+            filesToRecover.add("slurm-" + result.getJobID() + "*");
         }
-        filesToRecover.add("_sbatch_output.txt"); //TODO - make sbatchOutput property of SLURMSystem
-        filesToRecover.add(batchSystem.getCommunicationFile()); //TODO - remove this, purely for debug
-        String filesToRecoverString;
+        filesToRecover.add(isArrayJob() //TODO - remove this, purely for debug
+                ? SLURMSystem.taskFileName(batchSystem.getCommunicationFile(), "*")
+                : batchSystem.getCommunicationFile());
+        recoverFiles(String.join(",", filesToRecover), run,
+                batchSystem.getScratch(), launcher, listener);
         if (getAdditionalFilesToRecover() != null && !getAdditionalFilesToRecover().isEmpty()) {
-            filesToRecoverString = getAdditionalFilesToRecover() + "," + String.join(",", filesToRecover);
-        } else {
-            filesToRecoverString = String.join(",", filesToRecover);
-        }
-        String recoveryDestination = run.getRootDir().getAbsolutePath();
-        listener.getLogger().println("Recovery destination: " + recoveryDestination);
-        recoverFiles(filesToRecoverString, recoveryDestination, run, workspace,
-                launcher, listener);
-
-        //clean up - important that this is done before killing the job if it's failed
-        batchSystem.cleanUpFiles();
-
-        //kill the job if it failed
-        //does not prevent any code running here but changes Jenkins job status
-        if (exitCode != 0) {
-            throw new AbortException("SLURM job did not complete successfully");
+            recoverFiles(getAdditionalFilesToRecover(), run,
+                    batchSystem.getWorkspace(), launcher, listener);
         }
     }
 
@@ -189,5 +444,30 @@ public class SLURMBuilder extends BatchBuilder {
                 return FormValidation.error(Messages.errors_NotPositiveInteger());
             }
         }
+
+        public final FormValidation doCheckMemory(@QueryParameter final String value) {
+            return checkMemory(value);
+        }
+
+        public final FormValidation doCheckMemoryPerCpu(@QueryParameter final String value) {
+            return checkMemory(value);
+        }
+
+        private FormValidation checkMemory(final String value) {
+            if (value == null || value.trim().isEmpty() || value.contains("$")
+                    || parseMemory(value) >= 0) {
+                return FormValidation.ok();
+            } else {
+                return FormValidation.error(Messages.errors_InvalidMemory());
+            }
+        }
+
+        public final FormValidation doCheckArrayTasks(@QueryParameter final String value) {
+            if (value == null || value.trim().isEmpty() || countArrayTasks(value) >= 1) {
+                return FormValidation.ok();
+            } else {
+                return FormValidation.error(Messages.errors_InvalidArrayTasks());
+            }
+        }
     }
 }
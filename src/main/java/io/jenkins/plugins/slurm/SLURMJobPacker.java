@@ -0,0 +1,401 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Packs small jobs submitted through one agent at around the same time into
+ * a single allocation, in which each job runs as an srun job step, so that
+ * they pay the scheduling latency of one job rather than one each.
+ * <p>
+ * Requests are collected for {@link #PACK_WINDOW} milliseconds after the
+ * first one arrives, then grouped by queue and node features and split into
+ * single-node allocations which stay within the limits of the agent's
+ * {@link ResourceConfig}. Each job runs as a single-task step on one node,
+ * so an allocation spread over several nodes could leave CPUs free on each
+ * of them without room on any one for the next step.
+ * <p>
+ * Each request is completed with the ID of the allocation it was packed
+ * into; the job's exit code and output are written to its own scratch
+ * directory as usual, and its accounting is found in sacct by the name of
+ * its step.
+ *
+ * @author Eli Chadwick
+ */
+public class SLURMJobPacker {
+    private static final Logger LOGGER = Logger.getLogger(SLURMJobPacker.class.getName());
+
+    /**
+     * How long to collect requests before packing them (milliseconds).
+     */
+    static final long PACK_WINDOW = Long.getLong(
+            SLURMJobPacker.class.getName() + ".window", 5000L);
+
+    /**
+     * Largest number of jobs packed into one allocation.
+     */
+    static final int MAX_STEPS = Integer.getInteger(
+            SLURMJobPacker.class.getName() + ".maxSteps", 32);
+
+    /**
+     * Largest number of CPUs in one allocation, all on one node, where the
+     * agent has no {@link ResourceConfig} to say how large its nodes are.
+     */
+    static final int MAX_CPUS = Integer.getInteger(
+            SLURMJobPacker.class.getName() + ".maxCpus", 32);
+
+    /**
+     * Name of the file a job's scratch directory gets if it is cancelled
+     * before its step starts, so that the step never runs.
+     */
+    static final String CANCELLED_FILE = "_cancelled";
+
+    /**
+     * Name of the file a job's scratch directory gets once its step has
+     * finished, as the allocation only finishes with its last step.
+     */
+    static final String DONE_FILE = "_step_done";
+
+    /**
+     * Used to name the directories of allocations.
+     */
+    private static final AtomicLong PACK_COUNT = new AtomicLong();
+
+    /**
+     * The computer the jobs are submitted through.
+     */
+    private final SLURMSlaveComputer computer;
+
+    /**
+     * Requests waiting to be packed.
+     */
+    private final List<Request> pending = new ArrayList<Request>();
+
+    /**
+     * The scheduled packing of the pending requests, if any.
+     */
+    private ScheduledFuture<?> nextFlush;
+
+    /**
+     * @param computer   computer to submit the allocations through
+     */
+    public SLURMJobPacker(final SLURMSlaveComputer computer) {
+        this.computer = computer;
+    }
+
+    /**
+     * Queue a job to be packed into the next allocation.
+     *
+     * @param request   the job
+     * @return a future which completes with the ID of the allocation once
+     *         it has been submitted
+     */
+    public final synchronized CompletableFuture<String> submit(final Request request) {
+        pending.add(request);
+        if (nextFlush == null) {
+            nextFlush = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Computer.threadPoolForRemoting.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    });
+                }
+            }, PACK_WINDOW, TimeUnit.MILLISECONDS);
+        }
+        return request.getJobID();
+    }
+
+    /**
+     * Withdraw a job which has not been packed yet.
+     *
+     * @param request   the job
+     * @return false if the job has already been packed
+     */
+    public final synchronized boolean withdraw(final Request request) {
+        if (pending.remove(request)) {
+            request.getJobID().cancel(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Pack and submit all pending requests.
+     */
+    final void flush() {
+        List<Request> requests;
+        synchronized (this) {
+            requests = new ArrayList<Request>(pending);
+            pending.clear();
+            nextFlush = null;
+        }
+        SLURMSlave node = computer.getNode();
+        ResourceConfig config = node == null ? null : node.getResourceConfig();
+        for (List<Request> pack : plan(requests, config, MAX_STEPS)) {
+            try {
+                if (node == null) {
+                    throw new IOException("Agent " + computer.getName() + " has been removed");
+                }
+                String jobID = submitPack(node, config, pack);
+                for (Request request : pack) {
+                    request.getListener().getLogger().println("Packed with "
+                            + (pack.size() - 1) + " other job(s) into job " + jobID
+                            + ", as step " + request.getStepName());
+                    request.getJobID().complete(jobID);
+                }
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to submit packed job on " + computer.getName(), e);
+                for (Request request : pack) {
+                    request.getJobID().completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the script of an allocation and submit it.
+     *
+     * @return the ID of the allocation
+     * @throws IOException if it could not be submitted
+     * @throws InterruptedException
+     */
+    private String submitPack(final SLURMSlave node, final ResourceConfig config,
+            final List<Request> pack) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new IOException("Agent " + node.getNodeName() + " is not connected");
+        }
+        int cpus = 0;
+        int walltime = 0;
+        for (Request request : pack) {
+            cpus += request.getCpus();
+            walltime = Math.max(walltime, request.getWalltime());
+        }
+        String batchOptions = node.formatBatchOptions(1, cpus, 1, walltime,
+                pack.get(0).getQueue(), pack.get(0).getFeatures(), false);
+
+        FilePath dir = root.child("slurm-pack").child("pack-" + System.currentTimeMillis()
+                + "-" + PACK_COUNT.incrementAndGet());
+        dir.mkdirs();
+        dir.child("_pack_script.sh").write(generatePackScript(batchOptions, pack), "utf-8");
+        SubmitJobCallable.Output sbatch = dir.act(new SubmitJobCallable("_pack_script.sh",
+                "comms.txt", false, "slurm-%j.out", null));
+        String jobID = SLURMOutputParser.parseJobID(sbatch.getStdout());
+        if (jobID != null) {
+            //the steps write to their own scratch directories, so the
+            //directory of the allocation is only needed until it ends
+            computer.getJobPoller().watch(jobID).whenComplete((state, e) -> {
+                try {
+                    dir.deleteRecursive();
+                } catch (IOException | InterruptedException e2) {
+                    LOGGER.log(Level.FINE, "Failed to clean up " + dir, e2);
+                }
+            });
+            return jobID;
+        }
+        dir.deleteRecursive();
+        throw new IOException("sbatch exited with " + sbatch.getExitCode() + ": " + sbatch.getStdout());
+    }
+
+    /**
+     * Split requests into allocations. Only requests with the same queue and
+     * node features can share an allocation; each allocation has at most
+     * maxSteps jobs, fits on one node, and stays within the CPU time limit
+     * of the agent (or {@link #MAX_CPUS}, if it has no limits). Requests are packed
+     * first-fit in the order they arrived.
+     *
+     * @param requests   requests to pack
+     * @param config     limits of the agent, or null
+     * @param maxSteps   largest number of jobs in one allocation
+     * @return the requests of each allocation
+     */
+    static List<List<Request>> plan(final List<Request> requests, final ResourceConfig config,
+            final int maxSteps) {
+        int maxCpus = config == null ? MAX_CPUS : config.getCpusPerNode();
+        Map<String, List<List<Request>>> groups = new LinkedHashMap<String, List<List<Request>>>();
+        for (Request request : requests) {
+            List<List<Request>> packs = groups.computeIfAbsent(request.getKey(),
+                    k -> new ArrayList<List<Request>>());
+            List<Request> fit = null;
+            for (List<Request> pack : packs) {
+                if (fits(pack, request, config, maxCpus, maxSteps)) {
+                    fit = pack;
+                    break;
+                }
+            }
+            if (fit == null) {
+                fit = new ArrayList<Request>();
+                packs.add(fit);
+            }
+            fit.add(request);
+        }
+        List<List<Request>> plan = new ArrayList<List<Request>>();
+        for (List<List<Request>> packs : groups.values()) {
+            plan.addAll(packs);
+        }
+        return plan;
+    }
+
+    /**
+     * Check whether a request can be added to an allocation.
+     */
+    private static boolean fits(final List<Request> pack, final Request request,
+            final ResourceConfig config, final int maxCpus, final int maxSteps) {
+        if (pack.size() >= maxSteps) {
+            return false;
+        }
+        int cpus = request.getCpus();
+        int walltime = request.getWalltime();
+        for (Request packed : pack) {
+            cpus += packed.getCpus();
+            walltime = Math.max(walltime, packed.getWalltime());
+        }
+        if (cpus > maxCpus) {
+            return false;
+        }
+        //the allocation holds all of its CPUs for as long as its longest job
+        return config == null || (long) cpus * walltime <= config.getMaxCpuTimePerJob();
+    }
+
+    /**
+     * Create the script of an allocation, which starts each job as a step
+     * of its own, in its own workspace, marks each one done as it finishes,
+     * and waits for all of them.
+     *
+     * @param batchOptions   formatted options of the allocation
+     * @param pack           the jobs to run
+     * @return a bash script
+     */
+    static String generatePackScript(final String batchOptions, final List<Request> pack) {
+        StringBuilder script = new StringBuilder();
+        script.append("#!/bin/bash\n");
+        script.append("#Script automatically generated by SLURM Plugin\n");
+        script.append(batchOptions);
+        for (Request request : pack) {
+            String scratch = request.getScratch() + "/";
+            script.append("{ [ -e ").append(quote(scratch + CANCELLED_FILE))
+                    .append(" ] || srun --exclusive -N 1 -n 1 -c ").append(request.getCpus())
+                    .append(" -J ").append(quote(request.getStepName()))
+                    .append(" --chdir=").append(quote(request.getWorkspace()))
+                    .append(" -o ").append(quote(scratch + "slurm-%j.out"))
+                    .append(" bash ").append(quote(scratch + request.getScript()))
+                    .append("; touch ").append(quote(scratch + DONE_FILE))
+                    .append("; } &\n");
+        }
+        script.append("wait\n");
+        script.append("#End of automatically generated script\n");
+        return script.toString();
+    }
+
+    /**
+     * Quote a string for bash.
+     */
+    private static String quote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * A job waiting to be packed.
+     */
+    public static final class Request {
+        private final String stepName;
+        private final String workspace;
+        private final String scratch;
+        private final String script;
+        private final int cpus;
+        private final int walltime;
+        private final String queue;
+        private final String features;
+        private final TaskListener listener;
+        private final CompletableFuture<String> jobID = new CompletableFuture<String>();
+
+        /**
+         * @param stepName    name of the job step, unique to the job
+         * @param workspace   absolute path of the directory the job runs in
+         * @param scratch     absolute path of the scratch directory of the job
+         * @param script      name of the script to run, in the scratch directory
+         * @param cpus        number of CPUs the job needs, all on one node
+         * @param walltime    walltime required by the job (minutes)
+         * @param queue       queue to use, or empty for the default
+         * @param features    node features required, or empty
+         * @param listener    where to report when the job is packed
+         */
+        public Request(final String stepName, final String workspace, final String scratch,
+                final String script, final int cpus, final int walltime,
+                final String queue, final String features, final TaskListener listener) {
+            this.stepName = stepName;
+            this.workspace = workspace;
+            this.scratch = scratch;
+            this.script = script;
+            this.cpus = cpus;
+            this.walltime = walltime;
+            this.queue = queue == null ? "" : queue;
+            this.features = features == null ? "" : features;
+            this.listener = listener;
+        }
+
+        /**
+         * Get what a job must have in common with the others to share an allocation.
+         */
+        String getKey() {
+            return queue + "\n" + features;
+        }
+
+        public String getStepName() {
+            return stepName;
+        }
+
+        public String getWorkspace() {
+            return workspace;
+        }
+
+        public String getScratch() {
+            return scratch;
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        public int getCpus() {
+            return cpus;
+        }
+
+        public int getWalltime() {
+            return walltime;
+        }
+
+        public String getQueue() {
+            return queue;
+        }
+
+        public String getFeatures() {
+            return features;
+        }
+
+        TaskListener getListener() {
+            return listener;
+        }
+
+        CompletableFuture<String> getJobID() {
+            return jobID;
+        }
+    }
+}
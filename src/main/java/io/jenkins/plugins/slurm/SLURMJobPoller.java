@@ -0,0 +1,394 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the state of every SLURM job submitted through one agent, so that
+ * builds waiting on their jobs share a single squeue (and, where needed,
+ * sacct) call per poll instead of each running their own.
+ * <p>
+ * Each job is polled on its own adaptive interval: a job is polled often
+ * just after it is submitted or changes state, and the interval doubles
+ * (up to a maximum) for as long as its state stays the same. Jobs that are
+ * due at around the same time are queried together.
+ *
+ * @author Eli Chadwick
+ */
+public class SLURMJobPoller {
+    private static final Logger LOGGER = Logger.getLogger(SLURMJobPoller.class.getName());
+
+    /**
+     * Shortest interval between polls of a job (milliseconds).
+     */
+    private static final long MIN_INTERVAL = Long.getLong(
+            SLURMJobPoller.class.getName() + ".minInterval", 5000L);
+
+    /**
+     * Longest interval between polls of a job (milliseconds).
+     */
+    private static final long MAX_INTERVAL = Long.getLong(
+            SLURMJobPoller.class.getName() + ".maxInterval", 300000L);
+
+    /**
+     * Number of consecutive polls in which squeue and sacct both succeed
+     * without reporting on a job before it is given up as finished in an
+     * unknown state.
+     */
+    static final int MAX_MISSES = 5;
+
+    /**
+     * State reported for jobs which have disappeared without a known final state.
+     */
+    public static final String UNKNOWN_STATE = "UNKNOWN";
+
+    /**
+     * Job states reported by squeue and sacct once a job has stopped running for good.
+     */
+    public static final Set<String> TERMINAL_STATES = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("BOOT_FAIL", "CANCELLED",
+                    "COMPLETED", "DEADLINE", "FAILED", "NODE_FAIL",
+                    "OUT_OF_MEMORY", "PREEMPTED", "REVOKED", "TIMEOUT",
+                    UNKNOWN_STATE)));
+
+    /**
+     * The computer whose node the jobs were submitted from.
+     */
+    private final Computer computer;
+
+    /**
+     * Jobs currently being waited on, by job ID.
+     */
+    private final Map<String, TrackedJob> jobs = new ConcurrentHashMap<String, TrackedJob>();
+
+    /**
+     * Held while a poll is running, so that polls never overlap.
+     */
+    private final ReentrantLock pollLock = new ReentrantLock();
+
+    /**
+     * The next scheduled poll, if any.
+     */
+    private ScheduledFuture<?> nextPoll;
+
+    /**
+     * When the next scheduled poll will run (as {@link #now()}).
+     */
+    private long nextPollTime;
+
+    /**
+     * @param computer   computer to run squeue and sacct through
+     */
+    public SLURMJobPoller(final Computer computer) {
+        this.computer = computer;
+    }
+
+    /**
+     * Start tracking a job. If the job is already being tracked, the existing
+     * future is returned.
+     *
+     * @param jobID   ID of the job to track
+     * @return a future which completes with the final state of the job
+     */
+    public final CompletableFuture<String> watch(final String jobID) {
+        TrackedJob job = jobs.computeIfAbsent(jobID, TrackedJob::new);
+        schedule();
+        return job.result;
+    }
+
+    /**
+     * Stop tracking a job. Anything waiting on the job's future is cancelled.
+     *
+     * @param jobID   ID of the job to stop tracking
+     */
+    public final void forget(final String jobID) {
+        TrackedJob job = jobs.remove(jobID);
+        if (job != null) {
+            job.result.cancel(false);
+        }
+    }
+
+    /**
+     * Get the most recently polled state of a job.
+     *
+     * @param jobID   ID of the job
+     * @return the state, or null if the job is not tracked or has not been polled yet
+     */
+    public final String getState(final String jobID) {
+        TrackedJob job = jobs.get(jobID);
+        return job == null ? null : job.state;
+    }
+
+    /**
+     * Get the number of jobs currently being tracked.
+     */
+    public final int getJobCount() {
+        return jobs.size();
+    }
+
+    /**
+     * Make sure a poll is scheduled for when the earliest tracked job is due.
+     */
+    private synchronized void schedule() {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        long due = Long.MAX_VALUE;
+        for (TrackedJob job : jobs.values()) {
+            due = Math.min(due, job.nextPoll);
+        }
+        if (nextPoll != null && !nextPoll.isDone() && nextPollTime <= due) {
+            return; //an earlier poll will pick it up
+        }
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+        }
+        nextPollTime = due;
+        nextPoll = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        poll();
+                    }
+                });
+            }
+        }, Math.max(0, due - now()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Query the state of every job which is due, update the jobs' intervals
+     * and complete the futures of any which have finished.
+     */
+    final void poll() {
+        if (!pollLock.tryLock()) {
+            return; //the running poll reschedules when it finishes
+        }
+        try {
+            //poll anything due within half the minimum interval alongside
+            //what is due now, to keep the number of calls down
+            long horizon = now() + MIN_INTERVAL / 2;
+            List<TrackedJob> due = new ArrayList<TrackedJob>();
+            for (TrackedJob job : jobs.values()) {
+                if (job.nextPoll <= horizon) {
+                    due.add(job);
+                }
+            }
+            if (!due.isEmpty()) {
+                pollJobs(due);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to poll SLURM jobs on " + computer.getName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unexpected failure polling SLURM jobs on " + computer.getName(), e);
+        } finally {
+            pollLock.unlock();
+            schedule();
+        }
+    }
+
+    /**
+     * Run one squeue call (and at most one sacct call) for the given jobs.
+     */
+    private void pollJobs(final List<TrackedJob> due)
+            throws IOException, InterruptedException {
+        List<String> ids = new ArrayList<String>();
+        for (TrackedJob job : due) {
+            ids.add(job.jobID);
+            job.backOff(); //rescheduled even if the commands below fail
+        }
+        Launcher launcher = createLauncher();
+
+        //--states=all also lists jobs which have only just finished
+        CommandOutput squeue = runCommand(launcher, "squeue", "-h", "--states=all",
+                "--jobs=" + String.join(",", ids), "-o", "%F %T");
+        Map<String, String> states = parseStates(squeue.stdout);
+        boolean queried = squeue.exitCode == 0;
+
+        //ask sacct about anything squeue no longer knows about
+        List<String> missing = new ArrayList<String>();
+        for (TrackedJob job : due) {
+            if (!states.containsKey(job.jobID)) {
+                missing.add(job.jobID);
+            }
+        }
+        if (!missing.isEmpty()) {
+            CommandOutput sacct = runCommand(launcher, "sacct", "-n", "-P", "-X",
+                    "-j", String.join(",", missing), "-o", "JobID,State");
+            states.putAll(parseStates(sacct.stdout));
+            queried &= sacct.exitCode == 0;
+        }
+
+        for (TrackedJob job : due) {
+            String state = job.resolve(states.get(job.jobID), queried);
+            if (state == null) {
+                continue;
+            }
+            job.update(state);
+            if (TERMINAL_STATES.contains(state)) {
+                jobs.remove(job.jobID);
+                job.result.complete(state);
+            }
+        }
+    }
+
+    /**
+     * Create a launcher for the node the jobs were submitted from.
+     *
+     * @throws IOException if the node has been removed or is offline
+     */
+    private Launcher createLauncher() throws IOException {
+        Node node = computer.getNode();
+        if (node == null || computer.getChannel() == null) {
+            throw new IOException("Agent " + computer.getName() + " is not connected");
+        }
+        return node.createLauncher(TaskListener.NULL);
+    }
+
+    /**
+     * Parse squeue or sacct output of the form "jobID state" (space or pipe
+     * separated) into the state of each job. Array tasks and job steps are
+     * folded into their job: a job is only in a terminal state once all of
+     * its tasks are, and a failed task takes precedence over a completed one.
+     *
+     * @param output   output of squeue or sacct, may be null
+     * @return map of job ID to state
+     */
+    static Map<String, String> parseStates(final String output) {
+        Map<String, String> states = new HashMap<String, String>();
+        for (String[] fields : SLURMOutputParser.parseColumns(output, 2)) {
+            String jobID = fields[0];
+            int end = jobID.indexOf('_');
+            if (end < 0) {
+                end = jobID.indexOf('.');
+            }
+            if (end > 0) {
+                jobID = jobID.substring(0, end);
+            }
+            String state = fields[1];
+            if (state.endsWith("+")) { //sacct marks truncated states with +
+                state = state.substring(0, state.length() - 1);
+            }
+            String previous = states.get(jobID);
+            if (previous == null
+                    || (TERMINAL_STATES.contains(previous)
+                        && (!TERMINAL_STATES.contains(state) || "COMPLETED".equals(previous)))) {
+                states.put(jobID, state);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Run a short command on the agent.
+     */
+    private static CommandOutput runCommand(final Launcher launcher, final String... cmds)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int exitCode = launcher.launch().cmds(cmds).stdout(stdout)
+                .stderr(new ByteArrayOutputStream()).quiet(true).join();
+        return new CommandOutput(exitCode, new String(stdout.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Exit code and standard output of a command.
+     */
+    private static final class CommandOutput {
+        private final int exitCode;
+        private final String stdout;
+
+        CommandOutput(final int exitCode, final String stdout) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+        }
+    }
+
+    /**
+     * A job being waited on, and when it should next be polled.
+     */
+    static final class TrackedJob {
+        private final String jobID;
+        private final CompletableFuture<String> result = new CompletableFuture<String>();
+        private volatile String state;
+        private long interval = MIN_INTERVAL;
+        private long nextPoll = now() + MIN_INTERVAL;
+        private int misses;
+
+        TrackedJob(final String jobID) {
+            this.jobID = jobID;
+        }
+
+        /**
+         * Work out the state of the job from a poll.
+         *
+         * @param polledState   state reported by squeue or sacct, or null if
+         *                      neither listed the job
+         * @param queried       both commands succeeded, so a job neither
+         *                      listed was missed rather than not looked up
+         * @return the state, {@link #UNKNOWN_STATE} once the job has been
+         *         missed {@link #MAX_MISSES} polls in a row, or null if it is
+         *         not known yet
+         */
+        String resolve(final String polledState, final boolean queried) {
+            if (polledState != null) {
+                misses = 0;
+                return polledState;
+            }
+            //sacct can lag behind a job leaving squeue, and the controller may
+            //be unreachable, so only give up after several polls which worked
+            if (queried && ++misses >= MAX_MISSES) {
+                return UNKNOWN_STATE;
+            }
+            return null;
+        }
+
+        /**
+         * Double the polling interval, up to the maximum.
+         */
+        void backOff() {
+            nextPoll = now() + interval;
+            interval = Math.min(interval * 2, MAX_INTERVAL);
+        }
+
+        /**
+         * Record a newly polled state. A change of state means the job is
+         * active again, so the interval drops back to the minimum.
+         */
+        void update(final String newState) {
+            if (!newState.equals(state)) {
+                state = newState;
+                interval = MIN_INTERVAL;
+                nextPoll = now() + interval;
+            }
+        }
+    }
+}
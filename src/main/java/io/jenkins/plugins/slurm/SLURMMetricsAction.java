@@ -0,0 +1,61 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Serves the {@link PhaseMetrics} of every SLURM agent at
+ * {@code /slurm-metrics/} in the Prometheus text format, for scraping.
+ * Needs Overall/Read.
+ *
+ * @author Eli Chadwick
+ */
+@Extension
+public class SLURMMetricsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null; //not shown in the side panel
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "SLURM metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "slurm-metrics";
+    }
+
+    /**
+     * Write the metrics.
+     *
+     * @param req   request
+     * @param rsp   response
+     * @throws IOException
+     */
+    public void doIndex(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+        Jenkins jenkins = Jenkins.get();
+        jenkins.checkPermission(Jenkins.READ);
+        StringBuilder out = new StringBuilder();
+        PhaseMetrics.writeHeader(out);
+        for (Computer computer : jenkins.getComputers()) {
+            if (computer instanceof SLURMSlaveComputer) {
+                ((SLURMSlaveComputer) computer).getPhaseMetrics()
+                        .writePrometheus(computer.getName(), out);
+            }
+        }
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.print(out);
+        writer.flush();
+    }
+}
@@ -0,0 +1,417 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the output of sbatch, squeue and sacct, and the communication file
+ * written by the system script. Parsing is done in a single pass over the
+ * characters, without regular expressions or intermediate line arrays, as it
+ * sits on the path of every poll of every job. Nothing here throws on
+ * unexpected input: values which cannot be parsed are reported as missing.
+ *
+ * @author Eli Chadwick
+ */
+public final class SLURMOutputParser {
+
+    /**
+     * What sbatch prints before the job ID, without --parsable.
+     */
+    private static final String SUBMITTED = "Submitted batch job ";
+
+    private SLURMOutputParser() {
+    }
+
+    /**
+     * Find the job ID in the output of sbatch, which is either a line of the
+     * form "jobID[;cluster]" (with --parsable) or "Submitted batch job jobID"
+     * (without).
+     *
+     * @param output   output of sbatch, may be null
+     * @return the job ID, or null if the job was not submitted
+     */
+    public static String parseJobID(final CharSequence output) {
+        if (output == null) {
+            return null;
+        }
+        int length = output.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = indexOf(output, '\n', lineStart, length);
+            int start = skipWhitespace(output, lineStart, lineEnd);
+            int end = trimEnd(output, start, lineEnd);
+            if (regionMatches(output, start, end, SUBMITTED)) {
+                start += SUBMITTED.length();
+                end = indexOfWhitespace(output, start, end); //e.g. " on cluster x"
+            } else {
+                int semicolon = indexOf(output, ';', start, end);
+                end = semicolon;
+            }
+            if (end > start && isDigits(output, start, end)) {
+                return output.subSequence(start, end).toString();
+            }
+            lineStart = lineEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Split output into lines of fields separated by a single character, as
+     * printed by sacct -P. Blank lines and lines with fewer than minFields
+     * fields are skipped.
+     *
+     * @param output      output to parse, may be null
+     * @param separator   character between fields
+     * @param minFields   least number of fields a line must have
+     * @return the fields of each line
+     */
+    public static List<String[]> parseRecords(final CharSequence output,
+            final char separator, final int minFields) {
+        List<String[]> records = new ArrayList<String[]>();
+        if (output == null) {
+            return records;
+        }
+        int length = output.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = indexOf(output, '\n', lineStart, length);
+            int start = skipWhitespace(output, lineStart, lineEnd);
+            int end = trimEnd(output, start, lineEnd);
+            if (end > start) {
+                int count = 1;
+                for (int i = start; i < end; i++) {
+                    if (output.charAt(i) == separator) {
+                        count++;
+                    }
+                }
+                if (count >= minFields) {
+                    String[] fields = new String[count];
+                    int fieldStart = start;
+                    for (int f = 0; f < count; f++) {
+                        int fieldEnd = indexOf(output, separator, fieldStart, end);
+                        fields[f] = output.subSequence(fieldStart, fieldEnd).toString();
+                        fieldStart = fieldEnd + 1;
+                    }
+                    records.add(fields);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Split output into lines of columns separated by runs of whitespace or
+     * pipes, as printed by squeue -h -o or sacct -P, keeping only the first
+     * few columns of each line. Lines with fewer columns are skipped.
+     *
+     * @param output    output to parse, may be null
+     * @param columns   number of columns to keep
+     * @return the columns of each line
+     */
+    public static List<String[]> parseColumns(final CharSequence output, final int columns) {
+        List<String[]> records = new ArrayList<String[]>();
+        if (output == null || columns < 1) {
+            return records;
+        }
+        int length = output.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = indexOf(output, '\n', lineStart, length);
+            String[] fields = new String[columns];
+            int found = 0;
+            int i = lineStart;
+            while (found < columns) {
+                while (i < lineEnd && isColumnSeparator(output.charAt(i))) {
+                    i++;
+                }
+                if (i >= lineEnd) {
+                    break;
+                }
+                int start = i;
+                while (i < lineEnd && !isColumnSeparator(output.charAt(i))) {
+                    i++;
+                }
+                fields[found++] = output.subSequence(start, i).toString();
+            }
+            if (found == columns) {
+                records.add(fields);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Parse a SLURM duration of the form [DD-[HH:]]MM:SS[.mmm].
+     *
+     * @param duration   duration as printed by sacct, may be null
+     * @return the duration in seconds, or -1 if it cannot be parsed
+     */
+    public static double parseDuration(final CharSequence duration) {
+        if (duration == null) {
+            return -1;
+        }
+        int start = skipWhitespace(duration, 0, duration.length());
+        int end = trimEnd(duration, start, duration.length());
+        if (start >= end) {
+            return -1;
+        }
+        double seconds = 0;
+        int dash = indexOf(duration, '-', start, end);
+        if (dash < end) {
+            long days = parseLong(duration, start, dash, -1);
+            if (days < 0) {
+                return -1;
+            }
+            seconds += days * 86400.0;
+            start = dash + 1;
+        }
+        //up to three parts, the last of which may have a fraction
+        double[] parts = new double[3];
+        int count = 0;
+        int partStart = start;
+        while (true) {
+            int partEnd = indexOf(duration, ':', partStart, end);
+            if (count == parts.length) {
+                return -1;
+            }
+            double part = parseDecimal(duration, partStart, partEnd);
+            if (part < 0) {
+                return -1;
+            }
+            parts[count++] = part;
+            if (partEnd == end) {
+                break;
+            }
+            partStart = partEnd + 1;
+        }
+        double multiplier = 1;
+        for (int i = count - 1; i >= 0; i--) {
+            seconds += parts[i] * multiplier;
+            multiplier *= 60;
+        }
+        return seconds;
+    }
+
+    /**
+     * Parse a time printed by sacct with SLURM_TIME_FORMAT=%s.
+     *
+     * @param time   time as printed by sacct, may be null
+     * @return seconds since epoch, or -1 for "Unknown", "None" and the like
+     */
+    public static long parseEpochSeconds(final CharSequence time) {
+        long seconds = parseLong(time, -1);
+        return seconds > 0 ? seconds : -1;
+    }
+
+    /**
+     * Parse a whole number, ignoring surrounding whitespace.
+     *
+     * @param value          text to parse, may be null
+     * @param defaultValue   value to return if it is not a number
+     */
+    public static long parseLong(final CharSequence value, final long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        int start = skipWhitespace(value, 0, value.length());
+        int end = trimEnd(value, start, value.length());
+        boolean negative = start < end && value.charAt(start) == '-';
+        long parsed = parseLong(value, negative ? start + 1 : start, end, -1);
+        if (parsed < 0) {
+            return defaultValue;
+        }
+        return negative ? -parsed : parsed;
+    }
+
+    /**
+     * Parse a communication file written by the system script: the exit code
+     * of the user script on the first line, followed by the output of the
+     * bash builtin `times`, i.e.&nbsp;lines of the form "0m1.500s 0m0.250s".
+     *
+     * @param communication   contents of the file, may be null
+     * @return the exit code, user time and system time (seconds), or null
+     *         if there is no exit code. The times are -1 if they are missing
+     *         or malformed
+     */
+    public static double[] parseCommunication(final CharSequence communication) {
+        if (communication == null) {
+            return null;
+        }
+        int length = communication.length();
+        int lineStart = 0;
+        long exitCode = Long.MIN_VALUE;
+        double userTime = 0;
+        double systemTime = 0;
+        boolean timesValid = false;
+        while (lineStart < length) {
+            int lineEnd = indexOf(communication, '\n', lineStart, length);
+            int start = skipWhitespace(communication, lineStart, lineEnd);
+            int end = trimEnd(communication, start, lineEnd);
+            if (end > start) {
+                if (exitCode == Long.MIN_VALUE) {
+                    exitCode = parseLong(communication.subSequence(start, end), Long.MIN_VALUE);
+                    if (exitCode == Long.MIN_VALUE || exitCode > Integer.MAX_VALUE
+                            || exitCode < Integer.MIN_VALUE) {
+                        return null;
+                    }
+                } else {
+                    int gap = indexOfWhitespace(communication, start, end);
+                    double user = parseTime(communication, start, gap);
+                    double system = parseTime(communication, skipWhitespace(communication, gap, end), end);
+                    if (user < 0 || system < 0) {
+                        return new double[] {exitCode, -1, -1};
+                    }
+                    userTime += user;
+                    systemTime += system;
+                    timesValid = true;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (exitCode == Long.MIN_VALUE) {
+            return null;
+        }
+        return timesValid ? new double[] {exitCode, userTime, systemTime}
+                : new double[] {exitCode, -1, -1};
+    }
+
+    /**
+     * Parse a time printed by `times`, of the form "1m2.500s".
+     *
+     * @return seconds, or -1 if it cannot be parsed
+     */
+    private static double parseTime(final CharSequence text, final int start, final int end) {
+        int m = indexOf(text, 'm', start, end);
+        if (m == end || end - 1 <= m || text.charAt(end - 1) != 's') {
+            return -1;
+        }
+        long minutes = parseLong(text, start, m, -1);
+        double seconds = parseDecimal(text, m + 1, end - 1);
+        if (minutes < 0 || seconds < 0) {
+            return -1;
+        }
+        return minutes * 60 + seconds;
+    }
+
+    /**
+     * Parse the non-negative whole number between start and end.
+     *
+     * @return the number, or defaultValue if the region is empty, contains
+     *         anything but digits or overflows
+     */
+    private static long parseLong(final CharSequence text, final int start, final int end,
+            final long defaultValue) {
+        if (start >= end) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return defaultValue;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parse the non-negative decimal number between start and end, of the
+     * form digits[.digits].
+     *
+     * @return the number, or -1 if it cannot be parsed
+     */
+    private static double parseDecimal(final CharSequence text, final int start, final int end) {
+        int dot = indexOf(text, '.', start, end);
+        long whole = parseLong(text, start, dot, -1);
+        if (whole < 0) {
+            return -1;
+        }
+        if (dot == end) {
+            return whole;
+        }
+        //digits beyond the precision of a double are ignored
+        double fraction = 0;
+        double scale = 1;
+        if (dot + 1 == end) {
+            return -1;
+        }
+        for (int i = dot + 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            if (scale > 1e-15) {
+                scale /= 10;
+                fraction += (c - '0') * scale;
+            }
+        }
+        return whole + fraction;
+    }
+
+    private static int indexOf(final CharSequence text, final char c, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int indexOfWhitespace(final CharSequence text, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipWhitespace(final CharSequence text, final int start, final int end) {
+        int i = start;
+        while (i < end && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimEnd(final CharSequence text, final int start, final int end) {
+        int i = end;
+        while (i > start && Character.isWhitespace(text.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static boolean regionMatches(final CharSequence text, final int start, final int end,
+            final String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigits(final CharSequence text, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isColumnSeparator(final char c) {
+        return c == '|' || Character.isWhitespace(c);
+    }
+}
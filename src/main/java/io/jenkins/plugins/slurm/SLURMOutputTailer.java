@@ -0,0 +1,201 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the output of a running job into the build log as it is written.
+ * Only the bytes written since the last call are sent over the channel, in
+ * chunks of at most {@link #CHUNK_SIZE} bytes, so the transfer is spread
+ * over the lifetime of the job rather than done all at once at the end.
+ *
+ * @author Eli Chadwick
+ */
+public class SLURMOutputTailer implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Largest number of bytes fetched in one call to the agent.
+     */
+    static final int CHUNK_SIZE = Integer.getInteger(
+            SLURMOutputTailer.class.getName() + ".chunkSize", 64 * 1024);
+
+    /**
+     * Largest number of chunks fetched by one call to {@link #tail(FilePath, TaskListener)},
+     * so that a job writing a lot of output cannot hold up the build.
+     */
+    private static final int CHUNKS_PER_TAIL = 4;
+
+    /**
+     * Output files are those whose names start with this, e.g.&nbsp;slurm-1234.
+     */
+    private final String prefix;
+
+    /**
+     * Number of bytes of each output file already copied, by file name.
+     */
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+
+    /**
+     * Name of the file last copied from, so that a header is printed when
+     * output starts coming from a different file.
+     */
+    private String lastFile;
+
+    /**
+     * @param jobID   ID of the job whose output to copy
+     */
+    public SLURMOutputTailer(final String jobID) {
+        this.prefix = "slurm-" + jobID;
+    }
+
+    /**
+     * Copy any new output to the build log.
+     *
+     * @param dir        directory the output files are written to
+     * @param listener   where to copy the output to
+     * @return true if there may be more output waiting
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final synchronized boolean tail(final FilePath dir, final TaskListener listener)
+            throws InterruptedException, IOException {
+        for (int i = 0; i < CHUNKS_PER_TAIL; i++) {
+            List<Chunk> chunks = dir.act(new TailCallable(prefix,
+                    new HashMap<String, Long>(offsets), CHUNK_SIZE));
+            if (chunks.isEmpty()) {
+                return false;
+            }
+            PrintStream logger = listener.getLogger();
+            for (Chunk chunk : chunks) {
+                if (!chunk.getFileName().equals(lastFile)) {
+                    logger.println("[" + chunk.getFileName() + "]");
+                    lastFile = chunk.getFileName();
+                }
+                logger.write(chunk.getData());
+                offsets.put(chunk.getFileName(), chunk.getOffset() + chunk.getData().length);
+            }
+            logger.flush();
+        }
+        return true;
+    }
+
+    /**
+     * Copy all remaining output to the build log, once the job has finished.
+     *
+     * @param dir        directory the output files are written to
+     * @param listener   where to copy the output to
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final void drain(final FilePath dir, final TaskListener listener)
+            throws InterruptedException, IOException {
+        while (tail(dir, listener)) {
+            continue;
+        }
+        if (lastFile != null) {
+            listener.getLogger().println();
+            listener.getLogger().println("[end of " + prefix + " output]");
+        }
+    }
+
+    /**
+     * Reads up to a chunk of new output from the files in the directory acted on.
+     */
+    static final class TailCallable extends MasterToSlaveFileCallable<List<Chunk>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String prefix;
+        private final Map<String, Long> offsets;
+        private final int chunkSize;
+
+        TailCallable(final String prefix, final Map<String, Long> offsets,
+                final int chunkSize) {
+            this.prefix = prefix;
+            this.offsets = offsets;
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public List<Chunk> invoke(final File dir, final VirtualChannel channel) throws IOException {
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            //prefix is followed by . (or _ for array tasks), so that job 12
+            //does not pick up the output of job 123
+            File[] files = dir.listFiles((d, name) -> name.startsWith(prefix + ".")
+                    || name.startsWith(prefix + "_"));
+            if (files == null) {
+                return chunks;
+            }
+            Arrays.sort(files);
+            int remaining = chunkSize;
+            for (File file : files) {
+                if (remaining <= 0) {
+                    break;
+                }
+                Long copied = offsets.get(file.getName());
+                long offset = copied == null ? 0 : copied;
+                long length = file.length();
+                if (length < offset) { //truncated or replaced, so start again
+                    offset = 0;
+                }
+                int size = (int) Math.min(length - offset, remaining);
+                if (size <= 0) {
+                    continue;
+                }
+                byte[] data = new byte[size];
+                try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                    in.seek(offset);
+                    in.readFully(data);
+                }
+                chunks.add(new Chunk(file.getName(), offset, data));
+                remaining -= size;
+            }
+            return chunks;
+        }
+    }
+
+    /**
+     * Bytes read from one output file.
+     */
+    static final class Chunk implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String fileName;
+        private final long offset;
+        private final byte[] data;
+
+        Chunk(final String fileName, final long offset, final byte[] data) {
+            this.fileName = fileName;
+            this.offset = offset;
+            this.data = data;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+    }
+}
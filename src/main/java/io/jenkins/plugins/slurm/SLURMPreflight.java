@@ -0,0 +1,202 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks with {@code sbatch --test-only} whether SLURM would accept a job
+ * of a given shape, and when it would be expected to start, before any
+ * files are staged for it. Verdicts are kept on the computer of the agent
+ * for {@link #TTL} milliseconds (1 minute by default), by the resources
+ * requested, so that repeated builds of the same shape are not checked
+ * again.
+ * <p>
+ * Only clear verdicts are kept: the job was accepted, or sbatch reported
+ * that submission failed because of the job's configuration or the site's
+ * policy. Any other failure (e.g.&nbsp;the controller could not be reached,
+ * which sbatch also reports as a failed submission) leaves the decision to
+ * the real submission.
+ *
+ * @author Eli Chadwick
+ */
+public final class SLURMPreflight {
+
+    /**
+     * Set the system property io.jenkins.plugins.slurm.SLURMPreflight.disabled
+     * to skip the check.
+     */
+    static final boolean ENABLED = !Boolean.getBoolean(SLURMPreflight.class.getName() + ".disabled");
+
+    /**
+     * How long a verdict is kept (milliseconds).
+     */
+    static final long TTL = TimeUnit.SECONDS.toMillis(
+            Long.getLong(SLURMPreflight.class.getName() + ".ttl", 60));
+
+    /**
+     * Parts of sbatch errors (in lower case) which mean the controller could
+     * not be reached or was too busy, rather than that the job was refused.
+     */
+    private static final String[] TRANSIENT_ERRORS = {"unable to contact", "connect failure",
+        "connection refused", "timed out", "temporarily unavailable", "temporarily unable",
+        "zero bytes were transmitted", "try again"};
+
+    /**
+     * Verdicts by {@link #key}.
+     */
+    private final Map<String, Verdict> verdicts = Collections.synchronizedMap(
+            new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Verdict> eldest) {
+                    return size() > 256;
+                }
+            });
+
+    /**
+     * Get the verdict on a shape of job, if it was checked recently.
+     *
+     * @param key   shape of the job, from {@link #key}
+     * @return the verdict, or null if it must be checked again
+     */
+    public Verdict getVerdict(final String key) {
+        Verdict verdict = verdicts.get(key);
+        if (verdict == null || System.currentTimeMillis() - verdict.getCreated() >= TTL) {
+            return null;
+        }
+        return verdict;
+    }
+
+    /**
+     * Keep a verdict, if it is a clear one.
+     *
+     * @param key       shape of the job, from {@link #key}
+     * @param verdict   verdict on it
+     */
+    public void putVerdict(final String key, final Verdict verdict) {
+        if (verdict.getOutcome() != Outcome.UNKNOWN) {
+            verdicts.put(key, verdict);
+        }
+    }
+
+    /**
+     * Get the key of a shape of job.
+     *
+     * @param resourceOptions   other resources requested, as from
+     *                          {@link SLURMSlave#formatResourceOptions}
+     */
+    static String key(final String queue, final int nodes, final int tasks, final int cpusPerTask,
+            final int walltime, final String features, final boolean exclusive,
+            final String arrayTasks, final int arrayMaxConcurrent, final String resourceOptions) {
+        return queue + '|' + nodes + '|' + tasks + '|' + cpusPerTask + '|' + walltime + '|'
+                + features + '|' + exclusive + '|' + arrayTasks + '%' + arrayMaxConcurrent + '|'
+                + resourceOptions;
+    }
+
+    /**
+     * Build the script passed to sbatch --test-only: the batch options of
+     * the job, and nothing to run.
+     *
+     * @param formattedBatchOptions   options as from
+     *                                {@link SLURMSlave#formatBatchOptions}
+     */
+    static String testScript(final String formattedBatchOptions) {
+        return "#!/bin/bash\n" + formattedBatchOptions + "true\n";
+    }
+
+    /**
+     * Read the verdict from the output of sbatch --test-only, e.g.
+     * "sbatch: Job 1234 to start at 2021-10-17T10:00:00 using 8 processors
+     * on nodes node01 in partition compute", or "sbatch: error: Batch job
+     * submission failed: Requested node configuration is not available".
+     *
+     * @param exitCode   exit code of sbatch
+     * @param output     standard output and error of sbatch, may be null
+     */
+    static Verdict parse(final int exitCode, final String output) {
+        String estimate = null;
+        String error = null;
+        boolean rejected = false;
+        for (String line : output == null ? new String[0] : output.split("\n")) {
+            String text = line.trim();
+            if (text.startsWith("sbatch: ")) {
+                text = text.substring("sbatch: ".length());
+            }
+            if (text.contains(" to start at ")) {
+                estimate = text;
+            } else if (text.startsWith("error: ")) {
+                error = text.substring("error: ".length());
+                rejected |= error.contains("submission failed") && !isTransient(error);
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (exitCode == 0) {
+            return new Verdict(Outcome.ACCEPTED, estimate == null ? "accepted" : estimate, now);
+        }
+        if (error == null) {
+            error = "sbatch --test-only exited with code " + exitCode;
+        }
+        return new Verdict(rejected ? Outcome.REJECTED : Outcome.UNKNOWN, error, now);
+    }
+
+    /**
+     * Check whether an error from sbatch means the controller could not be
+     * reached or was too busy, so says nothing about the job.
+     */
+    static boolean isTransient(final String error) {
+        String lower = error.toLowerCase(Locale.ENGLISH);
+        for (String part : TRANSIENT_ERRORS) {
+            if (lower.contains(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Outcomes of a check.
+     */
+    public enum Outcome {
+        ACCEPTED, REJECTED, UNKNOWN
+    }
+
+    /**
+     * The verdict of sbatch --test-only on a job.
+     */
+    public static final class Verdict {
+        private final Outcome outcome;
+
+        /**
+         * When the job is expected to start, if accepted, or why it was
+         * rejected, or why it could not be checked.
+         */
+        private final String message;
+
+        /**
+         * When the check was made (milliseconds since epoch).
+         */
+        private final long created;
+
+        Verdict(final Outcome outcome, final String message, final long created) {
+            this.outcome = outcome;
+            this.message = message;
+            this.created = created;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+    }
+}
@@ -6,7 +6,9 @@ import hudson.model.Descriptor;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.RetentionStrategy;
+import hudson.util.ListBoxModel;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -22,6 +24,55 @@ public class SLURMSlave extends BatchSlave {
     private static final Logger LOGGER = Logger.getLogger(SLURMSlave.class.getName());
     private final String prefix = "#SBATCH";
 
+    /**
+     * How long the module cache stays fresh once rebuilt on the agent
+     * (minutes). If 0, the cache is rebuilt once per connection only.
+     */
+    private int moduleCacheTtl;
+
+    /**
+     * Default compression level when recovering files (gzip "fast").
+     */
+    static final int DEFAULT_RECOVERY_COMPRESSION_LEVEL = 1;
+
+    /**
+     * Default number of concurrent streams when recovering files.
+     */
+    static final int DEFAULT_RECOVERY_STREAMS = 4;
+
+    /**
+     * Default size above which recovered files are split into chunks (MB).
+     */
+    static final int DEFAULT_RECOVERY_CHUNK_SIZE = 64;
+
+    /**
+     * Compression used when recovering files: none, fast, default or best.
+     * Null means the default.
+     */
+    private String recoveryCompression;
+
+    /**
+     * Number of concurrent streams used when recovering files. 0 means the default.
+     */
+    private int recoveryStreams;
+
+    /**
+     * Size above which recovered files are split into chunks which can be
+     * transferred concurrently (MB). 0 means the default.
+     */
+    private int recoveryChunkSize;
+
+    /**
+     * Default size of the input staging cache on the agent (MB).
+     */
+    static final int DEFAULT_STAGING_CACHE_SIZE = 10240;
+
+    /**
+     * Largest size of the input staging cache on the agent (MB). 0 turns
+     * the cache off; null means the default.
+     */
+    private Integer stagingCacheSize;
+
     @DataBoundConstructor
     public SLURMSlave(final String name, final String nodeDescription,
             final String remoteFS, final String numExecutors, final Mode mode,
@@ -43,6 +94,67 @@ public class SLURMSlave extends BatchSlave {
         return prefix;
     }
 
+    public final int getModuleCacheTtl() {
+        return moduleCacheTtl;
+    }
+
+    @DataBoundSetter
+    public final void setModuleCacheTtl(final int moduleCacheTtl) {
+        this.moduleCacheTtl = Math.max(0, moduleCacheTtl);
+    }
+
+    public final String getRecoveryCompression() {
+        return recoveryCompression == null ? "fast" : recoveryCompression;
+    }
+
+    @DataBoundSetter
+    public final void setRecoveryCompression(final String recoveryCompression) {
+        this.recoveryCompression = recoveryCompression;
+    }
+
+    /**
+     * Get the Deflater level of the recovery compression, 0 for none.
+     */
+    public final int getRecoveryCompressionLevel() {
+        switch (getRecoveryCompression()) {
+            case "none":
+                return 0;
+            case "default":
+                return 6;
+            case "best":
+                return 9;
+            default:
+                return DEFAULT_RECOVERY_COMPRESSION_LEVEL;
+        }
+    }
+
+    public final int getRecoveryStreams() {
+        return recoveryStreams > 0 ? recoveryStreams : DEFAULT_RECOVERY_STREAMS;
+    }
+
+    @DataBoundSetter
+    public final void setRecoveryStreams(final int recoveryStreams) {
+        this.recoveryStreams = Math.max(0, Math.min(32, recoveryStreams));
+    }
+
+    public final int getRecoveryChunkSize() {
+        return recoveryChunkSize > 0 ? recoveryChunkSize : DEFAULT_RECOVERY_CHUNK_SIZE;
+    }
+
+    @DataBoundSetter
+    public final void setRecoveryChunkSize(final int recoveryChunkSize) {
+        this.recoveryChunkSize = Math.max(0, recoveryChunkSize);
+    }
+
+    public final int getStagingCacheSize() {
+        return stagingCacheSize == null ? DEFAULT_STAGING_CACHE_SIZE : stagingCacheSize;
+    }
+
+    @DataBoundSetter
+    public final void setStagingCacheSize(final int stagingCacheSize) {
+        this.stagingCacheSize = Math.max(0, stagingCacheSize);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -52,20 +164,45 @@ public class SLURMSlave extends BatchSlave {
         return new SLURMSlaveComputer(this);
     }
 
-    //TODO - migrate this method to SLURMBuilder/SLURMSystem
     /**
      * {@inheritDoc}
      */
     public final String formatBatchOptions(final int nodes, final int tasks,
             final int cpusPerTask, final int walltime, final String queue,
             final String features, final boolean exclusive) {
+        return formatBatchOptions(nodes, tasks, cpusPerTask, walltime, queue,
+                features, exclusive, null, 0);
+    }
+
+    //TODO - migrate this method to SLURMBuilder/SLURMSystem
+    /**
+     * {@inheritDoc}
+     */
+    public final String formatBatchOptions(final int nodes, final int tasks,
+            final int cpusPerTask, final int walltime, final String queue,
+            final String features, final boolean exclusive,
+            final String arrayTasks, final int arrayMaxConcurrent) {
             //final NotificationConfig notificationConfig) {
+        return formatBatchOptions(prefix, nodes, tasks, cpusPerTask, walltime,
+                queue, features, exclusive, arrayTasks, arrayMaxConcurrent);
+    }
+
+    /**
+     * Format batch options as lines of a SLURM script, independent of any
+     * particular agent.
+     *
+     * @param prefix   prefix of each line, e.g.&nbsp;#SBATCH
+     * @return the formatted options, one per line
+     */
+    static String formatBatchOptions(final String prefix, final int nodes, final int tasks,
+            final int cpusPerTask, final int walltime, final String queue,
+            final String features, final boolean exclusive,
+            final String arrayTasks, final int arrayMaxConcurrent) {
         StringBuffer buffer = new StringBuffer();
         buffer.append(prefix + " -N " + nodes + "\n");
         buffer.append(prefix + " -n " + tasks + "\n");
         buffer.append(prefix + " -c " + cpusPerTask + "\n");
         buffer.append(prefix + " -t " + walltime + "\n");
-        buffer.append(prefix + " -W #added by SLURM plugin\n");
         if (queue != null && !queue.isEmpty()) {
             buffer.append(prefix + " -p " + queue + "\n");
         }
@@ -75,6 +212,10 @@ public class SLURMSlave extends BatchSlave {
         if (exclusive) {
             buffer.append(prefix + " --exclusive \n");
         }
+        if (arrayTasks != null && !arrayTasks.trim().isEmpty()) {
+            buffer.append(prefix + " --array=" + arrayTasks.trim()
+                    + (arrayMaxConcurrent > 0 ? "%" + arrayMaxConcurrent : "") + "\n");
+        }
         //NotificationConfig must be formatted by this class as it is not SLURM-specific
         /*
         if (notificationConfig != null) {
@@ -102,6 +243,51 @@ public class SLURMSlave extends BatchSlave {
         return finalString;
     }
 
+    /**
+     * Format the optional resource options of a job as lines of a SLURM
+     * script, as for {@link #formatResourceOptions(String, String, String, int,
+     * String, String, String, String, int)} with this agent's prefix.
+     */
+    public final String formatResourceOptions(final String memory, final String memoryPerCpu,
+            final int tasksPerNode, final String gres, final String licenses,
+            final String qos, final String account, final int timeMin) {
+        return formatResourceOptions(prefix, memory, memoryPerCpu, tasksPerNode,
+                gres, licenses, qos, account, timeMin);
+    }
+
+    /**
+     * Format the optional resource options of a job as lines of a SLURM
+     * script. Options which are null, empty or 0 are left out.
+     *
+     * @param prefix   prefix of each line, e.g.&nbsp;#SBATCH
+     * @return the formatted options, one per line
+     */
+    static String formatResourceOptions(final String prefix, final String memory,
+            final String memoryPerCpu, final int tasksPerNode, final String gres,
+            final String licenses, final String qos, final String account, final int timeMin) {
+        StringBuilder buffer = new StringBuilder();
+        appendOption(buffer, prefix, "--mem=", memory);
+        appendOption(buffer, prefix, "--mem-per-cpu=", memoryPerCpu);
+        if (tasksPerNode > 0) {
+            buffer.append(prefix + " --ntasks-per-node=" + tasksPerNode + "\n");
+        }
+        appendOption(buffer, prefix, "--gres=", gres);
+        appendOption(buffer, prefix, "--licenses=", licenses);
+        appendOption(buffer, prefix, "--qos=", qos);
+        appendOption(buffer, prefix, "--account=", account);
+        if (timeMin > 0) {
+            buffer.append(prefix + " --time-min=" + timeMin + "\n");
+        }
+        return buffer.toString();
+    }
+
+    private static void appendOption(final StringBuilder buffer, final String prefix,
+            final String option, final String value) {
+        if (value != null && !value.trim().isEmpty()) {
+            buffer.append(prefix + " " + option + value.trim() + "\n");
+        }
+    }
+
     @Extension
     public static final class DescriptorImpl extends SlaveDescriptor {
         public String getDisplayName() {
@@ -112,5 +298,14 @@ public class SLURMSlave extends BatchSlave {
         public boolean isInstantiable() {
             return true;
         }
+
+        public ListBoxModel doFillRecoveryCompressionItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("None", "none");
+            items.add("Fast", "fast");
+            items.add("Default", "default");
+            items.add("Best", "best");
+            return items;
+        }
     }
 }
@@ -1,5 +1,15 @@
 package io.jenkins.plugins.slurm;
 
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
@@ -9,6 +19,68 @@ import java.util.logging.Logger;
 public class SLURMSlaveComputer extends BatchSlaveComputer {
     protected static final Logger LOGGER = Logger.getLogger(SLURMSlaveComputer.class.getName());
 
+    /**
+     * Shared poller for the state of all jobs submitted through this computer.
+     */
+    private final SLURMJobPoller jobPoller = new SLURMJobPoller(this);
+
+    /**
+     * Packs small jobs submitted through this computer into shared allocations.
+     */
+    private final SLURMJobPacker jobPacker = new SLURMJobPacker(this);
+
+    /**
+     * Predicts which partition jobs submitted through this computer will
+     * finish soonest in.
+     */
+    private final QueuePredictor queuePredictor = new QueuePredictor();
+
+    /**
+     * Recent verdicts of sbatch --test-only on jobs submitted through this
+     * computer.
+     */
+    private final SLURMPreflight preflight = new SLURMPreflight();
+
+    /**
+     * Time spent in each phase by builds run through this computer.
+     */
+    private final PhaseMetrics phaseMetrics = new PhaseMetrics();
+
+    /**
+     * Number of finished jobs whose accounting is kept.
+     */
+    private static final int ACCOUNTING_CACHE_SIZE = 256;
+
+    /**
+     * Output of sacct for recently finished jobs, by job ID.
+     */
+    private final Map<String, String> accountingCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                    return size() > ACCOUNTING_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Held while the module cache is checked and rebuilt. Separate from the
+     * computer's own monitor, which Jenkins uses elsewhere, and
+     * interruptible, so that an aborted build stops waiting for a rebuild.
+     */
+    private final ReentrantLock moduleCacheLock = new ReentrantLock();
+
+    /**
+     * The connection on which the module cache was last rebuilt.
+     */
+    private VirtualChannel moduleCacheChannel;
+
+    /**
+     * When the module cache was last rebuilt (milliseconds since epoch).
+     */
+    private long moduleCacheRebuilt;
+
     /**
      * @param slave   node to spawn a computer for
      */
@@ -25,4 +97,86 @@ public class SLURMSlaveComputer extends BatchSlaveComputer {
     public SLURMSlave getNode() {
         return (SLURMSlave) super.getNode();
     }
+
+    public final SLURMJobPoller getJobPoller() {
+        return jobPoller;
+    }
+
+    public final SLURMJobPacker getJobPacker() {
+        return jobPacker;
+    }
+
+    public final QueuePredictor getQueuePredictor() {
+        return queuePredictor;
+    }
+
+    public final SLURMPreflight getPreflight() {
+        return preflight;
+    }
+
+    public final PhaseMetrics getPhaseMetrics() {
+        return phaseMetrics;
+    }
+
+    /**
+     * Get the accounting of a finished job, if it has been looked up before.
+     *
+     * @param jobID   ID of the job
+     * @return output of sacct for the job, or null
+     */
+    public final String getCachedAccounting(final String jobID) {
+        return accountingCache.get(jobID);
+    }
+
+    /**
+     * Keep the accounting of a finished job, which no longer changes.
+     *
+     * @param jobID    ID of the job
+     * @param output   output of sacct for the job
+     */
+    public final void cacheAccounting(final String jobID, final String output) {
+        accountingCache.put(jobID, output);
+    }
+
+    /**
+     * Rebuild the environment module cache on the agent, unless it has already
+     * been rebuilt on the current connection within the lifetime configured on
+     * the {@link SLURMSlave}. Concurrent builds wait for a rebuild in progress
+     * rather than starting their own. A rebuild which fails is not recorded,
+     * so the next build tries again.
+     *
+     * @param launcher   launcher for the agent
+     * @param listener   where to report the time taken
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public final void refreshModuleCache(final Launcher launcher,
+            final TaskListener listener) throws IOException, InterruptedException {
+        moduleCacheLock.lockInterruptibly();
+        try {
+            SLURMSlave node = getNode();
+            long ttl = node == null ? 0 : TimeUnit.MINUTES.toMillis(node.getModuleCacheTtl());
+            VirtualChannel channel = getChannel();
+            if (channel != null && channel == moduleCacheChannel
+                    && (ttl == 0 || System.currentTimeMillis() - moduleCacheRebuilt < ttl)) {
+                listener.getLogger().println("Module cache is up to date");
+                return;
+            }
+            long start = System.nanoTime();
+            //module is a shell function, so a login shell is needed
+            int ret = launcher.launch().cmds("bash", "-l", "-c", "module avail >/dev/null 2>&1")
+                    .quiet(true).join();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (ret != 0) {
+                listener.getLogger().println("Failed to rebuild module cache (exit code " + ret
+                        + ") after " + elapsed + " ms");
+                return;
+            }
+            moduleCacheChannel = channel;
+            moduleCacheRebuilt = System.currentTimeMillis();
+            listener.getLogger().println("Rebuilt module cache in " + elapsed + " ms");
+        } finally {
+            moduleCacheLock.unlock();
+        }
+    }
 }
@@ -0,0 +1,356 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pipeline step which submits a job to a SLURM agent and waits for it to
+ * finish without holding an executor or a CPS VM thread. Unlike
+ * {@link SLURMBuilder}, it is used outside of a node block: the agent to
+ * submit through is given by {@link #getAgent()}.
+ *
+ * @author Eli Chadwick
+ */
+public class SLURMStep extends Step implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name or label of the SLURM agent to submit the job through.
+     */
+    private final String agent;
+
+    /**
+     * Script as entered by user (i.e. without any filtering of invalid lines).
+     */
+    private final String rawScript;
+
+    /**
+     * Number of nodes to reserve.
+     */
+    private final int nodes;
+
+    /**
+     * Number of tasks to run.
+     */
+    private final int tasks;
+
+    /**
+     * Number of CPUs to reserve per task.
+     */
+    private final int cpusPerTask;
+
+    /**
+     * Expected walltime required for batch job.
+     */
+    private final int walltime;
+
+    /**
+     * Batch system queue to use.
+     */
+    private String queue;
+
+    /**
+     * Specific node properties required. May contain non-alphanumeric characters.
+     */
+    private String features;
+
+    /**
+     * Require exclusive use of reserved nodes.
+     */
+    private boolean exclusive;
+
+    /**
+     * Extra files that are not recovered by default.
+     */
+    private String additionalFilesToRecover;
+
+    /**
+     * Indices of the tasks to run as a job array, or null for a single job.
+     */
+    private String arrayTasks;
+
+    /**
+     * Largest number of array tasks to run at once, or 0 for no limit.
+     */
+    private int arrayMaxConcurrent;
+
+    /**
+     * Memory required on each node, or null for the default of the cluster.
+     */
+    private String memory;
+
+    /**
+     * Memory required for each CPU, or null for the default of the cluster.
+     */
+    private String memoryPerCpu;
+
+    /**
+     * Largest number of tasks to run on each node, or 0 for no limit.
+     */
+    private int tasksPerNode;
+
+    /**
+     * Generic resources required on each node.
+     */
+    private String gres;
+
+    /**
+     * Licenses required by the job.
+     */
+    private String licenses;
+
+    /**
+     * Quality of service requested for the job.
+     */
+    private String qos;
+
+    /**
+     * Account to charge the job to.
+     */
+    private String account;
+
+    /**
+     * Least walltime the job may be given (minutes), or 0 for the full walltime.
+     */
+    private int timeMin;
+
+    @DataBoundConstructor
+    public SLURMStep(final String agent, final String rawScript, final int nodes,
+            final int tasks, final int cpusPerTask, final int walltime) {
+        this.agent = agent;
+        this.rawScript = rawScript;
+        this.nodes = nodes;
+        this.tasks = tasks;
+        this.cpusPerTask = cpusPerTask;
+        this.walltime = walltime;
+    }
+
+    /**
+     * Get the name or label of the SLURM agent to submit the job through.
+     */
+    public final String getAgent() {
+        return agent;
+    }
+
+    public final String getRawScript() {
+        return rawScript;
+    }
+
+    public final int getNodes() {
+        return nodes;
+    }
+
+    public final int getTasks() {
+        return tasks;
+    }
+
+    public final int getCpusPerTask() {
+        return cpusPerTask;
+    }
+
+    public final int getWalltime() {
+        return walltime;
+    }
+
+    public final String getQueue() {
+        return queue;
+    }
+
+    @DataBoundSetter
+    public final void setQueue(final String queue) {
+        this.queue = queue;
+    }
+
+    public final String getFeatures() {
+        return features;
+    }
+
+    @DataBoundSetter
+    public final void setFeatures(final String features) {
+        this.features = features;
+    }
+
+    public final boolean isExclusive() {
+        return exclusive;
+    }
+
+    @DataBoundSetter
+    public final void setExclusive(final boolean exclusive) {
+        this.exclusive = exclusive;
+    }
+
+    public final String getAdditionalFilesToRecover() {
+        return additionalFilesToRecover;
+    }
+
+    @DataBoundSetter
+    public final void setAdditionalFilesToRecover(final String additionalFilesToRecover) {
+        this.additionalFilesToRecover = additionalFilesToRecover;
+    }
+
+    public final String getArrayTasks() {
+        return arrayTasks;
+    }
+
+    @DataBoundSetter
+    public final void setArrayTasks(final String arrayTasks) {
+        this.arrayTasks = arrayTasks;
+    }
+
+    public final int getArrayMaxConcurrent() {
+        return arrayMaxConcurrent;
+    }
+
+    @DataBoundSetter
+    public final void setArrayMaxConcurrent(final int arrayMaxConcurrent) {
+        this.arrayMaxConcurrent = arrayMaxConcurrent;
+    }
+
+    public final String getMemory() {
+        return memory;
+    }
+
+    @DataBoundSetter
+    public final void setMemory(final String memory) {
+        this.memory = memory;
+    }
+
+    public final String getMemoryPerCpu() {
+        return memoryPerCpu;
+    }
+
+    @DataBoundSetter
+    public final void setMemoryPerCpu(final String memoryPerCpu) {
+        this.memoryPerCpu = memoryPerCpu;
+    }
+
+    public final int getTasksPerNode() {
+        return tasksPerNode;
+    }
+
+    @DataBoundSetter
+    public final void setTasksPerNode(final int tasksPerNode) {
+        this.tasksPerNode = tasksPerNode;
+    }
+
+    public final String getGres() {
+        return gres;
+    }
+
+    @DataBoundSetter
+    public final void setGres(final String gres) {
+        this.gres = gres;
+    }
+
+    public final String getLicenses() {
+        return licenses;
+    }
+
+    @DataBoundSetter
+    public final void setLicenses(final String licenses) {
+        this.licenses = licenses;
+    }
+
+    public final String getQos() {
+        return qos;
+    }
+
+    @DataBoundSetter
+    public final void setQos(final String qos) {
+        this.qos = qos;
+    }
+
+    public final String getAccount() {
+        return account;
+    }
+
+    @DataBoundSetter
+    public final void setAccount(final String account) {
+        this.account = account;
+    }
+
+    public final int getTimeMin() {
+        return timeMin;
+    }
+
+    @DataBoundSetter
+    public final void setTimeMin(final int timeMin) {
+        this.timeMin = timeMin;
+    }
+
+    /**
+     * Create an equivalent build step, which provides the validation and
+     * script generation shared with freestyle jobs.
+     */
+    final SLURMBuilder toBuilder() {
+        SLURMBuilder builder = new SLURMBuilder(rawScript, nodes, tasks, cpusPerTask,
+                walltime, queue, features, exclusive, additionalFilesToRecover);
+        builder.setArrayTasks(arrayTasks);
+        builder.setArrayMaxConcurrent(arrayMaxConcurrent);
+        builder.setMemory(memory);
+        builder.setMemoryPerCpu(memoryPerCpu);
+        builder.setTasksPerNode(tasksPerNode);
+        builder.setGres(gres);
+        builder.setLicenses(licenses);
+        builder.setQos(qos);
+        builder.setAccount(account);
+        builder.setTimeMin(timeMin);
+        return builder;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        return new SLURMStepExecution(this, context);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+        @Override
+        public final String getFunctionName() {
+            return "slurmJob";
+        }
+
+        @Override
+        public final String getDisplayName() {
+            return "Run SLURM script without holding an executor";
+        }
+
+        @Override
+        public final Set<? extends Class<?>> getRequiredContext() {
+            return Collections.unmodifiableSet(new HashSet<Class<?>>(
+                    Arrays.asList(Run.class, TaskListener.class)));
+        }
+
+        /**
+         * {@inheritDoc}
+         * Falls back to the help of {@link SLURMBuilder} for the fields the
+         * two have in common.
+         */
+        @Override
+        public String getHelpFile(final String fieldName) {
+            String helpFile = super.getHelpFile(fieldName);
+            if (helpFile == null && fieldName != null) {
+                helpFile = Jenkins.get().getDescriptorByType(SLURMBuilder.DescriptorImpl.class)
+                        .getHelpFile(fieldName);
+            }
+            return helpFile;
+        }
+    }
+}
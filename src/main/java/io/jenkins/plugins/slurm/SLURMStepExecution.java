@@ -0,0 +1,490 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a {@link SLURMStep}. The job is submitted on a remoting thread and
+ * the step then waits on the agent's {@link SLURMJobPoller}, so no executor
+ * or Pipeline thread is held while the job is queued or running. The job ID
+ * is saved with the Pipeline, so waiting resumes if Jenkins restarts.
+ *
+ * @author Eli Chadwick
+ */
+public class SLURMStepExecution extends StepExecution {
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(SLURMStepExecution.class.getName());
+
+    private static final String COMMUNICATION_FILE = "comms.txt";
+
+    /**
+     * The step being run.
+     */
+    private final SLURMStep step;
+
+    /**
+     * Name of the agent the job was submitted through.
+     */
+    private String nodeName;
+
+    /**
+     * Remote directory the job was submitted from.
+     */
+    private String workingDirectory;
+
+    /**
+     * Directory, relative to {@link #workingDirectory}, holding the files of
+     * this step only.
+     */
+    private String scratchDirectory;
+
+    /**
+     * ID of the job, once submitted.
+     */
+    private String jobID;
+
+    /**
+     * When the job was submitted (milliseconds since epoch).
+     */
+    private long submitTime;
+
+    /**
+     * CPU time requested for the job (minutes).
+     */
+    private int cpuTime;
+
+    /**
+     * CPU time reserved on the agent for the job (seconds).
+     */
+    private long reservedSeconds;
+
+    /**
+     * Set once the reservation has been settled or refunded.
+     */
+    private boolean settled;
+
+    /**
+     * Copies the output of the job to the build log while it runs.
+     */
+    private SLURMOutputTailer tailer;
+
+    /**
+     * Periodic task copying output, while the job runs.
+     */
+    private transient ScheduledFuture<?> tailing;
+
+    /**
+     * Set once the step has been stopped, so that the job finishing (or being
+     * cancelled) afterwards does not complete the step a second time, and a
+     * submission still in progress is abandoned.
+     */
+    private transient volatile boolean stopped;
+
+    SLURMStepExecution(final SLURMStep step, final StepContext context) {
+        super(context);
+        this.step = step;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Submits the job in the background and returns straight away.
+     */
+    @Override
+    public boolean start() throws Exception {
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                submit();
+            } catch (Throwable t) {
+                if (!stopped) { //otherwise stop() has already failed the step
+                    getContext().onFailure(t);
+                }
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Pick an agent, write the scripts, submit the job and start waiting for it.
+     *
+     * @throws Exception
+     */
+    private void submit() throws Exception {
+        Run<?, ?> run = getContext().get(Run.class);
+        TaskListener listener = getContext().get(TaskListener.class);
+        EnvVars env = getContext().get(EnvVars.class);
+        if (env == null) {
+            env = run.getEnvironment(listener);
+        }
+        SLURMBuilder builder = step.toBuilder();
+
+        //find an online SLURM agent and a scratch directory on it for this step
+        SLURMSlave node = findAgent(step.getAgent());
+        FilePath workspace = run.getParent() instanceof TopLevelItem
+                ? node.getWorkspaceFor((TopLevelItem) run.getParent())
+                : node.getWorkspaceRoot();
+        if (workspace == null) {
+            throw new AbortException("Agent " + node.getNodeName() + " is offline");
+        }
+        nodeName = node.getNodeName();
+        workingDirectory = workspace.getRemote();
+        scratchDirectory = BatchBuilder.newScratchDirectoryName(run);
+        listener.getLogger().println("Submitting through " + nodeName);
+        listener.getLogger().println("Remote: " + workingDirectory + "/" + scratchDirectory);
+
+        //verify script and resource configuration
+        if (!builder.isScriptValid(step.getRawScript(), node.getPrefix())) {
+            throw new AbortException("No valid script entered. Script is either empty or contains no valid content (batch options inside the script are not read).");
+        }
+        if (!builder.isConfigurationValid(node, listener)) {
+            throw new AbortException("Configuration is invalid");
+        }
+        reservedSeconds = builder.getRequestedSeconds();
+
+        String id = null;
+        try {
+            checkStopped();
+            SLURMSystem system = createSystem(run, workspace, node, listener);
+            String queue = builder.selectQueue(node, env, system, listener);
+            builder.testSubmission(node, env, queue, system, listener);
+            checkStopped();
+            String systemScriptName = builder.writeScripts(node, env, queue, system, listener);
+            cpuTime = (int) (builder.getRequestedSeconds() / 60);
+            if (stopped) {
+                system.cleanUpFiles();
+                checkStopped();
+            }
+            id = system.submitJobAsync(systemScriptName);
+            if (id == null) {
+                system.cleanUpFiles();
+                throw new AbortException("SLURM job could not be submitted");
+            }
+        } finally {
+            if (id == null) {
+                refund(node);
+            }
+        }
+        if (!publish(id)) {
+            //stopped while sbatch ran, too late for stop() to see the job
+            cancel(id);
+            return;
+        }
+        getContext().saveState();
+        watch();
+    }
+
+    /**
+     * Give up submitting if the step has been stopped.
+     *
+     * @throws InterruptedException if it has
+     */
+    private void checkStopped() throws InterruptedException {
+        if (stopped) {
+            throw new InterruptedException("SLURM step stopped before its job was submitted");
+        }
+    }
+
+    /**
+     * Record the ID of the submitted job, unless the step has been stopped.
+     * Either this or {@link #stop(Throwable)} sees the job, never neither.
+     *
+     * @return false if the step has been stopped, so the job must be cancelled
+     */
+    private synchronized boolean publish(final String id) {
+        jobID = id;
+        submitTime = System.currentTimeMillis();
+        return !stopped;
+    }
+
+    /**
+     * Set up the SLURM system for the directories of this step.
+     */
+    private SLURMSystem createSystem(final Run<?, ?> run, final FilePath workspace,
+            final SLURMSlave node, final TaskListener listener) {
+        return new SLURMSystem(run, workspace, scratchDirectory,
+                node.createLauncher(listener), listener, COMMUNICATION_FILE, true,
+                step.toBuilder().isArrayJob());
+    }
+
+    /**
+     * Mark the reservation as settled.
+     *
+     * @return false if it had already been settled or refunded
+     */
+    private synchronized boolean markSettled() {
+        if (settled) {
+            return false;
+        }
+        settled = true;
+        return true;
+    }
+
+    /**
+     * Return the time reserved for the job, unless it has already been settled.
+     */
+    private void refund(final SLURMSlave node) {
+        if (markSettled()) {
+            node.refundReservation(reservedSeconds);
+        }
+    }
+
+    /**
+     * Find an online SLURM agent with the given name or label.
+     *
+     * @throws AbortException if there is none
+     */
+    private static SLURMSlave findAgent(final String agent) throws AbortException {
+        if (agent == null || agent.trim().isEmpty()) {
+            throw new AbortException("No SLURM agent given");
+        }
+        Jenkins jenkins = Jenkins.get();
+        Node named = jenkins.getNode(agent.trim());
+        if (named instanceof SLURMSlave) {
+            if (isOnline(named)) {
+                return (SLURMSlave) named;
+            }
+            throw new AbortException("Agent " + agent + " is offline");
+        }
+        Label label = jenkins.getLabel(agent.trim());
+        if (label != null) {
+            for (Node node : label.getNodes()) {
+                if (node instanceof SLURMSlave && isOnline(node)) {
+                    return (SLURMSlave) node;
+                }
+            }
+        }
+        throw new AbortException("No online SLURM agent matches " + agent);
+    }
+
+    private static boolean isOnline(final Node node) {
+        Computer computer = node.toComputer();
+        return computer != null && computer.isOnline();
+    }
+
+    /**
+     * Get the agent the job was submitted through.
+     *
+     * @throws AbortException if it no longer exists
+     */
+    private SLURMSlave getNode() throws AbortException {
+        Node node = Jenkins.get().getNode(nodeName);
+        if (!(node instanceof SLURMSlave)) {
+            throw new AbortException("SLURM agent " + nodeName + " no longer exists");
+        }
+        return (SLURMSlave) node;
+    }
+
+    /**
+     * Wait for the job on the agent's poller, finishing the step on a
+     * remoting thread once it reaches a terminal state.
+     *
+     * @throws AbortException if the agent no longer exists
+     */
+    private void watch() throws AbortException {
+        Computer computer = getNode().toComputer();
+        if (!(computer instanceof SLURMSlaveComputer)) {
+            throw new AbortException("SLURM agent " + nodeName + " is not available");
+        }
+        startTailing();
+        ((SLURMSlaveComputer) computer).getJobPoller().watch(jobID)
+                .whenCompleteAsync((state, error) -> {
+                    if (stopped || error instanceof CancellationException) {
+                        return;
+                    }
+                    try {
+                        if (error != null) {
+                            throw new IOException("Failed to wait for job " + jobID, error);
+                        }
+                        finish(state);
+                    } catch (Throwable t) {
+                        getContext().onFailure(t);
+                    }
+                }, Computer.threadPoolForRemoting);
+    }
+
+    /**
+     * Start copying the output of the job to the build log periodically.
+     */
+    private synchronized void startTailing() {
+        if (tailer == null) {
+            tailer = new SLURMOutputTailer(jobID);
+        }
+        tailing = Timer.get().scheduleWithFixedDelay(
+                () -> Computer.threadPoolForRemoting.submit(this::tailOutput),
+                SLURMSystem.STATE_REPORT_INTERVAL, SLURMSystem.STATE_REPORT_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop copying output periodically.
+     */
+    private synchronized void stopTailing() {
+        if (tailing != null) {
+            tailing.cancel(false);
+            tailing = null;
+        }
+    }
+
+    /**
+     * Copy any new output of the job to the build log.
+     */
+    private void tailOutput() {
+        try {
+            SLURMSlave node = getNode();
+            FilePath workspace = node.createPath(workingDirectory);
+            if (workspace != null) {
+                TaskListener listener = getContext().get(TaskListener.class);
+                createSystem(getContext().get(Run.class), workspace, node, listener)
+                        .copyOutput(jobID, tailer, false);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to copy output of SLURM job " + jobID, e);
+        }
+    }
+
+    /**
+     * Recover the result and files of the finished job, charge the agent for
+     * the time used and complete the step.
+     *
+     * @param state   final state of the job
+     * @throws Exception
+     */
+    private void finish(final String state) throws Exception {
+        stopTailing();
+        Run<?, ?> run = getContext().get(Run.class);
+        TaskListener listener = getContext().get(TaskListener.class);
+
+        SLURMSlave node = getNode();
+        FilePath workspace = node.createPath(workingDirectory);
+        if (workspace == null) {
+            throw new AbortException("Agent " + nodeName + " is offline");
+        }
+        SLURMSystem system = createSystem(run, workspace, node, listener);
+        system.copyOutput(jobID, tailer, true);
+        listener.getLogger().println("Job " + jobID + " finished: " + state);
+        SubmissionResult result = system.getFinishedJobResult(jobID);
+        if (markSettled()) {
+            node.settleReservation(reservedSeconds,
+                    BatchBuilder.getComputeSeconds(result, cpuTime));
+        }
+
+        if (!result.isSuccessful()) {
+            listener.error("SLURM job did not complete successfully. Files will be recovered before this job is aborted.");
+        }
+        step.toBuilder().recoverJobFiles(result, system, run,
+                system.getLauncher(), listener);
+        system.cleanUpFiles();
+
+        if (result.isSuccessful()) {
+            getContext().onSuccess(jobID);
+        } else {
+            getContext().onFailure(new AbortException("SLURM job did not complete successfully"));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Cancels the job, if it has been submitted.
+     */
+    @Override
+    public void stop(final Throwable cause) throws Exception {
+        final String id;
+        synchronized (this) {
+            stopped = true;
+            id = jobID;
+        }
+        stopTailing();
+        //a job still being submitted is cancelled by the submitting thread
+        if (id != null) {
+            Computer.threadPoolForRemoting.submit(() -> cancel(id));
+        }
+        getContext().onFailure(cause);
+    }
+
+    /**
+     * Cancel the job and charge the time it used before it was cancelled.
+     *
+     * @param id   ID of the job
+     */
+    private void cancel(final String id) {
+        try {
+            SLURMSlave node = getNode();
+            Computer computer = node.toComputer();
+            if (computer instanceof SLURMSlaveComputer) {
+                ((SLURMSlaveComputer) computer).getJobPoller().forget(id);
+            }
+            TaskListener listener = getContext().get(TaskListener.class);
+            FilePath workspace = node.createPath(workingDirectory);
+            SLURMSystem system = null;
+            try {
+                if (workspace != null) {
+                    system = createSystem(getContext().get(Run.class), workspace, node,
+                            listener);
+                    system.cancelJob(id);
+                }
+            } finally {
+                //charge what the job used before it was cancelled
+                if (markSettled()) {
+                    step.toBuilder().settleCancelled(node, system, id, submitTime,
+                            reservedSeconds, listener);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to cancel SLURM job " + id, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Resumes waiting for the job after Jenkins restarts.
+     */
+    @Override
+    public void onResume() {
+        if (jobID == null) {
+            //the job was never submitted, so none of the time reserved was used
+            if (nodeName != null) {
+                try {
+                    refund(getNode());
+                } catch (AbortException e) {
+                    LOGGER.log(Level.FINE, "Could not refund time reserved on " + nodeName, e);
+                }
+            }
+            getContext().onFailure(new AbortException("Jenkins restarted while the SLURM job was being submitted"));
+            return;
+        }
+        try {
+            watch();
+        } catch (AbortException e) {
+            getContext().onFailure(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getStatus() {
+        if (jobID == null) {
+            return "submitting SLURM job";
+        }
+        return "waiting for SLURM job " + jobID + " on " + nodeName;
+    }
+}
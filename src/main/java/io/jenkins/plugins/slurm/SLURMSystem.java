@@ -1,20 +1,26 @@
 package io.jenkins.plugins.slurm;
 
-import com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier;
+import hudson.AbortException;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import hudson.tasks.Shell;
-import jenkins.util.BuildListenerAdapter;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Scanner;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Provides methods for interfacing with SLURM to submit jobs and 
@@ -24,118 +30,1020 @@ import java.util.Scanner;
  */
 public class SLURMSystem extends BatchSystem {
 
+    /**
+     * How often to report changes in job state and copy new output to the
+     * build log while waiting (milliseconds). Job state is only queried by
+     * the agent's {@link SLURMJobPoller}.
+     */
+    static final long STATE_REPORT_INTERVAL = 10000L;
+
+    /**
+     * Fields requested from sacct for each line of a job. CPUTimeRAW is what
+     * the job is charged for; TotalCPU stands in where user and system time
+     * are not reported separately.
+     */
+    static final String ACCOUNTING_FORMAT = "JobID,ExitCode,UserCPU,SystemCPU,"
+            + "Submit,Start,End,NodeList,TotalCPU,CPUTimeRAW,Elapsed,AllocCPUS,JobName";
+
+    /**
+     * Number of fields in {@link #ACCOUNTING_FORMAT}.
+     */
+    static final int ACCOUNTING_FIELDS = 13;
+
+    /**
+     * Submit the job without -W and poll squeue until it finishes, rather
+     * than keeping sbatch (and the remote process behind it) alive for the
+     * whole lifetime of the job.
+     */
+    private final boolean pollForCompletion;
+
+    /**
+     * The job is a job array, so each task writes its own output and
+     * communication file, named by {@link #taskFileName(String, String)}.
+     */
+    private final boolean arrayJob;
+
+    /**
+     * When a job was first handed to SLURM through this system (milliseconds
+     * since epoch), or -1 if none has been.
+     */
+    private volatile long submitTime = -1;
+
+    /**
+     * ID of the job submitted through this system, once known.
+     */
+    private volatile String submittedJobID;
+
+    /**
+     * Name of the job step the job runs as, if it was packed with others.
+     */
+    private volatile String packedStepName;
+
     public SLURMSystem(final Run<?, ?> run, final FilePath workspace,
             final Launcher launcher, final TaskListener listener,
             final String communicationFile) {
-        super(run, workspace, launcher, listener, communicationFile);
+        this(run, workspace, launcher, listener, communicationFile, false);
+    }
+
+    public SLURMSystem(final Run<?, ?> run, final FilePath workspace,
+            final Launcher launcher, final TaskListener listener,
+            final String communicationFile, final boolean pollForCompletion) {
+        this(run, workspace, null, launcher, listener, communicationFile,
+                pollForCompletion);
+    }
+
+    public SLURMSystem(final Run<?, ?> run, final FilePath workspace,
+            final String scratchDirectory, final Launcher launcher,
+            final TaskListener listener, final String communicationFile,
+            final boolean pollForCompletion) {
+        this(run, workspace, scratchDirectory, launcher, listener, communicationFile,
+                pollForCompletion, false);
+    }
+
+    public SLURMSystem(final Run<?, ?> run, final FilePath workspace,
+            final String scratchDirectory, final Launcher launcher,
+            final TaskListener listener, final String communicationFile,
+            final boolean pollForCompletion, final boolean arrayJob) {
+        super(run, workspace, scratchDirectory, launcher, listener, communicationFile);
+        this.pollForCompletion = pollForCompletion;
+        this.arrayJob = arrayJob;
+    }
+
+    public final boolean isPollForCompletion() {
+        return pollForCompletion;
+    }
+
+    public final boolean isArrayJob() {
+        return arrayJob;
+    }
+
+    /**
+     * Get when a job was first handed to SLURM through this system, e.g.&nbsp;to
+     * work out how long it may have run if the build is aborted.
+     *
+     * @return milliseconds since epoch, or -1 if no job has been submitted
+     */
+    public final long getSubmitTime() {
+        return submitTime;
+    }
+
+    /**
+     * Get the ID of the job submitted through this system.
+     *
+     * @return null if no job has been submitted, or its ID is not known
+     *         (e.g.&nbsp;sbatch was stopped before reporting it)
+     */
+    public final String getSubmittedJobID() {
+        return submittedJobID;
+    }
+
+    /**
+     * Get the name of the file of one task of a job array, e.g.&nbsp;comms_3.txt
+     * for task 3 and comms.txt.
+     *
+     * @param fileName   name of the file for a single job
+     * @param index      index of the task, or a shell variable or glob
+     *                   standing for it
+     */
+    static String taskFileName(final String fileName, final String index) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return fileName + "_" + index;
+        }
+        return fileName.substring(0, dot) + "_" + index + fileName.substring(dot);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public int[] submitJob(final String jobFileName, final int cpuTime)
+    public SubmissionResult submitJob(final String jobFileName, final int cpuTime)
             throws InterruptedException, IOException {
 
-        String sbatchOutputFile = "_sbatch_output.txt"; //TODO - make this a SLURMSystem property
-
-        //submit the job to SLURM
-        //save stdout and exit code of sbatch to sbatchOutputFile on the remote
-        Shell shell = new Shell("#!/bin/bash +xl\n" + "cd '" + getRemoteWorkingDirectory().replace("'", "'\\''") + "'\n"
-                            + "module avail >/dev/null 2>&1\n" //rebuilds module cache
-                            + "chmod 755 " + jobFileName + "\n"
-                            + "sbatch " + jobFileName + " > " + sbatchOutputFile + " 2>&1\n"
-                            + "echo $? >> " + sbatchOutputFile + "\n");
-        shell.perform(getAbstractBuild(), getLauncher(), getBuildListener());
-
-        //TODO - make separate function for recovering info?
-        //copy files to master
-        CopyToMasterNotifier copyFileToMaster =
-                new CopyToMasterNotifier(getCommunicationFile() + "," + sbatchOutputFile,
-                        "", true, getMasterWorkingDirectory(), true);
-        BuildListenerAdapter fakeListener = new BuildListenerAdapter(TaskListener.NULL);
-        copyFileToMaster.perform(getAbstractBuild(), getLauncher(), fakeListener);
-
-        //set default outputs
-        int jobID = -1;
-        int exitCode = -1;
-        float computeTimeSec = 0;
-        boolean failedToSubmit = false;
-
-        //TODO - neaten this up
-        //read sbatch output file
-        BufferedReader fileReader = new BufferedReader(new InputStreamReader(
-                new FileInputStream(getMasterWorkingDirectory() + "/" + sbatchOutputFile), "utf-8"));
-        //recover job ID / check for job submission failure
+        //submit the job to SLURM - without polling, sbatch waits (-W) and
+        //the communication file is returned in the same call to the remote
+        SubmitJobCallable.Output sbatch = submit(jobFileName, !pollForCompletion);
+        String jobID = parseJobID(sbatch);
+        if (jobID == null) { //failed, or can't tell - either way no time will be subtracted
+            return SubmissionResult.notSubmitted(sbatch.getExitCode());
+        }
+        submittedJobID = jobID;
+
+        //when polling, sbatch returns as soon as the job is queued, so wait
+        //for the job here and only then fetch the communication file
+        if (pollForCompletion) {
+            waitForJob(jobID);
+            return getFinishedJobResult(jobID);
+        }
+        long start = getPhaseTimer().start();
         try {
-            //read lines from sbatch output, search for either submission or failure
-            String line = fileReader.readLine();
-            while (line != null && !line.contains("Submitted batch job")) {
-                if (line.contains("Batch job submission failed")) {
-                    failedToSubmit = true;
-                    getListener().getLogger().println(line);
-                }
-                line = fileReader.readLine();
+            if (arrayJob) {
+                return buildArrayResult(jobID, sbatch.getExitCode());
             }
-            if (line.contains("Submitted batch job")) { //submitted successfully
-                String[] splitLine = line.split(" ");
-                jobID = Integer.parseInt(splitLine[splitLine.length - 1]);
-                getListener().getLogger().println("Job ID: " + jobID);
-            } else { //line == null - shouldn't happen (job should always either submit or fail)
-                getListener().getLogger().println("Could not identify if job was submitted. No job ID found.");
-                failedToSubmit = true; //uncertain, but means no time will be subtracted
+            return buildResult(jobID, sbatch.getExitCode(), sbatch.getCommunication(), false);
+        } finally {
+            getPhaseTimer().stop(PhaseTimer.Phase.READ_RESULT, start);
+        }
+    }
+
+    /**
+     * Submit a job to SLURM and return as soon as it is queued. Once the job
+     * has finished (e.g.&nbsp;as reported by the {@link SLURMJobPoller} of the
+     * agent), its result can be recovered with {@link #getFinishedJobResult(String)}.
+     *
+     * @param jobFileName   name of script to submit (must already exist on the remote)
+     * @return the job ID, or null if the job could not be submitted
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final String submitJobAsync(final String jobFileName)
+            throws InterruptedException, IOException {
+        submittedJobID = parseJobID(submit(jobFileName, false));
+        return submittedJobID;
+    }
+
+    /**
+     * Submit a job to be packed, along with other small jobs submitted through
+     * the agent at around the same time, into one allocation by the
+     * {@link SLURMJobPacker} of the agent, and wait for it. The job runs as a
+     * job step on a single node, named after the scratch directory of the
+     * build, and its result is taken from its own communication file and the
+     * accounting of its step. Its batch options are replaced by those of the
+     * allocation, and it does not see the environment of the build.
+     *
+     * @param jobFileName   name of script to run (must already exist on the remote)
+     * @param cpus          number of CPUs the job needs
+     * @param walltime      walltime required by the job (minutes)
+     * @param queue         queue to use, or empty for the default
+     * @param features      node features required, or empty
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final SubmissionResult submitPackedJob(final String jobFileName, final int cpus,
+            final int walltime, final String queue, final String features)
+            throws InterruptedException, IOException {
+        if (getScratchDirectory() == null) {
+            throw new AbortException("Packed jobs need a scratch directory of their own");
+        }
+        refreshModuleCache();
+
+        String stepName = "jenkins" + getScratchDirectory();
+        packedStepName = stepName;
+        SLURMJobPacker packer = getSLURMComputer().getJobPacker();
+        SLURMJobPacker.Request request = new SLURMJobPacker.Request(stepName,
+                getWorkspace().getRemote(), getScratch().getRemote(), jobFileName,
+                cpus, walltime, queue, features, getListener());
+        getListener().getLogger().println("Waiting to be packed with other jobs");
+        String jobID;
+        long start = getPhaseTimer().start();
+        try {
+            jobID = packer.submit(request).get();
+        } catch (InterruptedException e) {
+            getListener().getLogger().println("Build interrupted");
+            if (!packer.withdraw(request)) {
+                //packed in the meantime - stop the step before it starts
+                submitTime = System.currentTimeMillis();
+                submittedJobID = request.getJobID().getNow(null);
+                getScratch().child(SLURMJobPacker.CANCELLED_FILE).touch(System.currentTimeMillis());
             }
-        } catch (NullPointerException | NumberFormatException e) {
-            getListener().getLogger().println("Could not recover job ID: " + e.getMessage());
+            throw e;
+        } catch (ExecutionException e) {
+            getListener().getLogger().println("Could not submit packed job: " + e.getCause().getMessage());
+            return SubmissionResult.notSubmitted(-1);
+        } finally {
+            getPhaseTimer().stop(PhaseTimer.Phase.SUBMIT, start);
+        }
+        submitTime = System.currentTimeMillis();
+        submittedJobID = jobID;
+        getListener().getLogger().println("Job ID: " + jobID);
+        waitForJob(jobID, stepName);
+
+        start = getPhaseTimer().start();
+        String communication = getWorkspace().act(new SubmitJobCallable.ReadFileCallable(
+                getScratchPath(getCommunicationFile())));
+        int exitCode = -1;
+        double userTimeSec = -1;
+        double sysTimeSec = -1;
+        double[] parsed = parseCommunication(communication);
+        if (parsed != null) {
+            exitCode = (int) parsed[0];
+            userTimeSec = parsed[1];
+            sysTimeSec = parsed[2];
+        } else {
+            getListener().getLogger().println("WARNING: Runtime information could not be retrieved. The job may have timed out or been cancelled.");
         }
-        //recover sbatch exit code
+        String[] step = queryStepAccounting(jobID, stepName);
+        SubmissionResult result = step == null
+                ? new SubmissionResult(jobID, -1, exitCode, 0, userTimeSec, sysTimeSec, -1, -1, -1, null)
+                : toResult(jobID, step, exitCode, userTimeSec, sysTimeSec);
+        getPhaseTimer().stop(PhaseTimer.Phase.READ_RESULT, start);
+        reportComputeTime(result);
+        return result;
+    }
+
+    /**
+     * Recover the result of a job which has finished.
+     *
+     * @param jobID   ID of the job
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final SubmissionResult getFinishedJobResult(final String jobID)
+            throws InterruptedException, IOException {
+        long start = getPhaseTimer().start();
         try {
-            String line = "";
-            String lastLine = "";
-            while ((line = fileReader.readLine()) != null) {
-                lastLine = line;
+            if (arrayJob) {
+                return buildArrayResult(jobID, -1);
+            }
+            String communication = getWorkspace().act(new SubmitJobCallable.ReadFileCallable(
+                    getScratchPath(getCommunicationFile())));
+            return buildResult(jobID, -1, communication, true);
+        } finally {
+            getPhaseTimer().stop(PhaseTimer.Phase.READ_RESULT, start);
+        }
+    }
+
+    /**
+     * Run sbatch on the remote, in a single call which returns its output and
+     * exit code and, if sbatch waited for the job, the contents of the
+     * communication file.
+     *
+     * @param jobFileName   name of script to submit
+     * @param waitForJob    pass -W to sbatch
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private SubmitJobCallable.Output submit(final String jobFileName, final boolean waitForJob)
+            throws InterruptedException, IOException {
+        refreshModuleCache();
+
+        //the job runs in the workspace, but its output goes to the scratch
+        //directory along with the rest of the files of this build
+        long start = getPhaseTimer().start();
+        if (submitTime < 0) {
+            submitTime = System.currentTimeMillis();
+        }
+        SubmitJobCallable.Output sbatch = getWorkspace().act(new SubmitJobCallable(
+                getScratchPath(jobFileName), getScratchPath(getCommunicationFile()),
+                waitForJob, getScratchDirectory() != null
+                        ? getScratchPath(arrayJob ? "slurm-%A_%a.out" : "slurm-%j.out") : null,
+                getRun().getEnvironment(getListener())));
+        getPhaseTimer().stop(PhaseTimer.Phase.SUBMIT, start);
+        getListener().getLogger().print(sbatch.getStdout());
+        return sbatch;
+    }
+
+    /**
+     * Pick the partition in which a job is expected to finish soonest, as
+     * predicted by the {@link QueuePredictor} of the agent from a snapshot of
+     * the cluster, taking a new snapshot if the last has expired.
+     *
+     * @param permitted   partitions which may be used, or empty for any
+     * @param nodes       nodes the job needs
+     * @param cpus        CPUs the job needs
+     * @param walltime    walltime of the job (minutes)
+     * @return the partition; if the job cannot run in any of them (or the
+     *         cluster could not be queried), the first permitted partition,
+     *         or empty for the default partition if any may be used
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final String selectQueue(final List<String> permitted, final int nodes,
+            final int cpus, final int walltime) throws InterruptedException, IOException {
+        QueuePredictor.Snapshot snapshot = getSnapshot(getSLURMComputer().getQueuePredictor());
+        Map<String, Double> estimates = new LinkedHashMap<String, Double>();
+        String queue = QueuePredictor.select(snapshot, permitted, nodes, cpus, walltime, estimates);
+        getListener().getLogger().println("Queue 'auto': predictions for " + nodes + " node(s), "
+                + cpus + " CPU(s), " + walltime + " minute(s)");
+        for (Map.Entry<String, Double> estimate : estimates.entrySet()) {
+            getListener().getLogger().println("  " + estimate.getKey() + ": "
+                    + (estimate.getValue().isInfinite() ? "cannot run this job"
+                            : "expected to finish in " + Math.round(estimate.getValue()) + " seconds"));
+        }
+        if (queue == null && !permitted.isEmpty()) {
+            //the default partition may not be one the agent allows
+            getListener().getLogger().println("Queue 'auto': no partition found for this job - using "
+                    + permitted.get(0));
+            return permitted.get(0);
+        }
+        if (queue == null) {
+            getListener().getLogger().println("Queue 'auto': no partition found for this job - using the default partition");
+            return "";
+        }
+        getListener().getLogger().println("Queue 'auto': picked " + queue);
+        return queue;
+    }
+
+    /**
+     * Get the snapshot of the cluster kept by a predictor, taking a new one if
+     * it has expired. One build takes the snapshot while the others wait for
+     * it, without holding a lock across the remote commands. A snapshot is
+     * only kept if all of sinfo, squeue and sacct succeeded.
+     *
+     * @param predictor   predictor of the agent
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private QueuePredictor.Snapshot getSnapshot(final QueuePredictor predictor)
+            throws InterruptedException, IOException {
+        while (true) {
+            QueuePredictor.Snapshot snapshot = predictor.getSnapshot();
+            if (snapshot != null) {
+                return snapshot;
+            }
+            CompletableFuture<QueuePredictor.Snapshot> taking = new CompletableFuture<QueuePredictor.Snapshot>();
+            CompletableFuture<QueuePredictor.Snapshot> other = predictor.claim(taking);
+            if (other == null) {
+                try {
+                    String sinfo = runCommand("sinfo", "-h", "-o", QueuePredictor.SINFO_FORMAT);
+                    String squeue = runCommand("squeue", "-h", "-t", "PD", "-o", QueuePredictor.SQUEUE_FORMAT);
+                    String sacct = runCommand(new String[] {"SLURM_TIME_FORMAT=%s"},
+                            "sacct", "-a", "-X", "-n", "-P",
+                            "-S", "now-" + QueuePredictor.HISTORY_HOURS + "hours", "-E", "now",
+                            "-o", QueuePredictor.SACCT_FORMAT);
+                    snapshot = QueuePredictor.parse(sinfo, squeue, sacct);
+                    if (sinfo != null && squeue != null && sacct != null) {
+                        predictor.setSnapshot(snapshot);
+                    } else {
+                        getListener().getLogger().println("Queue 'auto': could not query the cluster"
+                                + (sinfo == null ? " (sinfo failed)" : "")
+                                + (squeue == null ? " (squeue failed)" : "")
+                                + (sacct == null ? " (sacct failed)" : ""));
+                    }
+                    return snapshot;
+                } finally {
+                    //builds waiting on a snapshot which could not be taken try again
+                    taking.complete(snapshot);
+                }
+            }
+            try {
+                snapshot = other.get();
+            } catch (ExecutionException e) {
+                snapshot = null;
+            }
+            if (snapshot != null) {
+                return snapshot;
             }
-            exitCode = Integer.parseInt(lastLine);
-        } catch (NumberFormatException e) {
-            getListener().getLogger().println("Could not recover sbatch exit code: " + e.getMessage());
         }
-        fileReader.close();
+    }
+
+    /**
+     * Check whether SLURM would accept a job, with sbatch --test-only, unless
+     * a job of the same shape was checked recently through the agent.
+     *
+     * @param key                     shape of the job, as from {@link SLURMPreflight#key}
+     * @param formattedBatchOptions   batch options of the job
+     * @return the verdict
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final SLURMPreflight.Verdict testSubmission(final String key,
+            final String formattedBatchOptions) throws InterruptedException, IOException {
+        SLURMPreflight preflight = getSLURMComputer().getPreflight();
+        SLURMPreflight.Verdict verdict = preflight.getVerdict(key);
+        if (verdict != null) {
+            return verdict;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] script = SLURMPreflight.testScript(formattedBatchOptions).getBytes(StandardCharsets.UTF_8);
+        int ret = getLauncher().launch().cmds("sbatch", "--test-only").pwd(getWorkspace())
+                .stdin(new ByteArrayInputStream(script)).stdout(output).stderr(output)
+                .quiet(true).join();
+        verdict = SLURMPreflight.parse(ret, new String(output.toByteArray(), StandardCharsets.UTF_8));
+        preflight.putVerdict(key, verdict);
+        return verdict;
+    }
+
+    /**
+     * Rebuild the module cache on the agent, if it has not been rebuilt recently.
+     *
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void refreshModuleCache() throws InterruptedException, IOException {
+        long start = getPhaseTimer().start();
+        getSLURMComputer().refreshModuleCache(getLauncher(), getListener());
+        getPhaseTimer().stop(PhaseTimer.Phase.MODULE_CACHE, start);
+    }
+
+    /**
+     * Find the job ID in the output of sbatch.
+     *
+     * @return the job ID, or null if the job was not submitted
+     */
+    private String parseJobID(final SubmitJobCallable.Output sbatch) {
+        String jobID = SLURMOutputParser.parseJobID(sbatch.getStdout());
+        if (jobID != null) {
+            getListener().getLogger().println("Job ID: " + jobID);
+            return jobID;
+        }
+        getListener().getLogger().println("Could not identify if job was submitted. No job ID found.");
+        return null;
+    }
+
+    /**
+     * Build the result of a finished job from its communication file and sacct.
+     *
+     * @param jobID              ID of the job
+     * @param exitCode           exit code of sbatch
+     * @param communication      contents of the communication file, may be null
+     * @param exitCodeFromFile   take the exit code from the communication file
+     *                           rather than sbatch (i.e.&nbsp;sbatch did not wait)
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private SubmissionResult buildResult(final String jobID, final int exitCode,
+            final String communication, final boolean exitCodeFromFile)
+            throws InterruptedException, IOException {
+        int jobExitCode = exitCode;
+        double userTimeSec = -1;
+        double sysTimeSec = -1;
 
         //retrieve user script exit code & time information from communication file
-        try {
-            File file = new File(getMasterWorkingDirectory() + "/" + getCommunicationFile());
-            Scanner scanner = new Scanner(file, "utf-8");
-            //get exit code
-            int exitCodeInternal = scanner.nextInt(); //first line of file should be exit code
-            if (exitCodeInternal != exitCode) {
+        double[] parsed = parseCommunication(communication);
+        if (parsed != null) {
+            int exitCodeInternal = (int) parsed[0];
+            if (exitCodeFromFile) {
+                jobExitCode = exitCodeInternal;
+            } else if (exitCodeInternal != exitCode) {
                 getListener().getLogger().println("WARNING: Exit code of user script does not equal sbatch exit code");
             }
-            //get time information
-            String line = scanner.nextLine(); //empty line before `times` output //TODO - make this nicer...
-            while (scanner.hasNextLine()) {
-                line = scanner.nextLine();
-                String[] split = line.split("\\p{Alpha}\\s*");
-                float userTimeMin = Float.parseFloat(split[0]);
-                float userTimeSec = Float.parseFloat(split[1]);
-                float sysTimeMin = Float.parseFloat(split[2]);
-                float sysTimeSec = Float.parseFloat(split[3]);
-                getListener().getLogger().println(userTimeMin + " " + userTimeSec + " " + sysTimeMin + " " + sysTimeSec);
-                computeTimeSec += userTimeMin * 60 + userTimeSec + sysTimeMin * 60 + sysTimeSec;
-            }
-            getListener().getLogger().println("Total compute time: " + computeTimeSec + " seconds");
-        } catch (FileNotFoundException e) {
-            if (failedToSubmit) {
-                computeTimeSec = 0;
+            userTimeSec = parsed[1];
+            sysTimeSec = parsed[2];
+        } else {
+            getListener().getLogger().println("WARNING: Runtime information could not be retrieved. The job may have timed out.");
+            if (exitCodeFromFile) {
+                jobExitCode = -1; //job was accepted but did not finish its script
+            }
+        }
+
+        //fill in the rest from accounting, which also covers the job's steps
+        SubmissionResult result = queryAccounting(jobID, jobExitCode, userTimeSec, sysTimeSec);
+        reportComputeTime(result);
+        return result;
+    }
+
+    /**
+     * Read the exit code and `times` output written to a communication file
+     * by the system script.
+     *
+     * @param communication   contents of the communication file, may be null
+     * @return the exit code, user time and system time (seconds), or null
+     *         if the file is missing or has no exit code; the times are -1
+     *         if they are missing or malformed
+     */
+    static double[] parseCommunication(final String communication) {
+        return SLURMOutputParser.parseCommunication(communication);
+    }
+
+    /**
+     * Report the CPU time a job used and was allocated in the build log.
+     *
+     * @param result   result of the job
+     */
+    private void reportComputeTime(final SubmissionResult result) {
+        if (result.hasCpuTime()) {
+            getListener().getLogger().println("Total compute time: " + result.getCpuSeconds()
+                    + " seconds (user " + result.getUserCpuSeconds()
+                    + ", system " + result.getSystemCpuSeconds() + ")");
+        }
+        if (result.hasAllocatedCpuTime()) {
+            getListener().getLogger().println("Allocated CPU time: " + result.getAllocatedCpuSeconds()
+                    + " seconds (" + result.getElapsedSeconds() + " seconds elapsed)");
+        }
+    }
+
+    /**
+     * Build the result of a finished job array from the communication files
+     * of its tasks and sacct, reporting each task which failed.
+     *
+     * @param jobID      ID of the array
+     * @param exitCode   exit code of sbatch, or -1 if it did not wait
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private SubmissionResult buildArrayResult(final String jobID, final int exitCode)
+            throws InterruptedException, IOException {
+        //exit codes and times by task index, from the communication files
+        Map<String, String> files = getScratch().act(new SubmitJobCallable.ReadFilesCallable(
+                taskFileName(getCommunicationFile(), "*")));
+        Map<Integer, double[]> communications = new TreeMap<Integer, double[]>();
+        String[] around = taskFileName(getCommunicationFile(), "*").split("\\*", -1);
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            String name = file.getKey();
+            int index = parseInt(name.substring(around[0].length(),
+                    name.length() - around[1].length()), -1);
+            double[] parsed = parseCommunication(file.getValue());
+            if (index >= 0 && parsed != null) {
+                communications.put(index, parsed);
+            }
+        }
+
+        //one line per task from sacct, plus any tasks it does not know about
+        Map<Integer, SubmissionResult> tasks = new TreeMap<Integer, SubmissionResult>();
+        for (String[] fields : queryAccountingLines(jobID)) {
+            if (fields[0].contains("[")) { //tasks still pending, which never ran
+                continue;
+            }
+            SubmissionResult task = toResult(jobID, fields, -1, -1, -1);
+            if (task.getArrayTaskIndex() >= 0) {
+                tasks.put(task.getArrayTaskIndex(), task);
+            }
+        }
+        for (Map.Entry<Integer, double[]> communication : communications.entrySet()) {
+            if (!tasks.containsKey(communication.getKey())) {
+                tasks.put(communication.getKey(), new SubmissionResult(jobID,
+                        communication.getKey(), -1, 0, -1, -1, -1, -1, -1, null));
+            }
+        }
+
+        //a task's exit code comes from its communication file - without one,
+        //the task did not finish its script
+        List<SubmissionResult> results = new ArrayList<SubmissionResult>();
+        int failed = 0;
+        for (SubmissionResult task : tasks.values()) {
+            double[] parsed = communications.get(task.getArrayTaskIndex());
+            int taskExitCode = parsed == null ? -1 : (int) parsed[0];
+            double userCpu = task.getUserCpuSeconds();
+            double systemCpu = task.getSystemCpuSeconds();
+            if (!task.hasCpuTime() && parsed != null) {
+                userCpu = parsed[1];
+                systemCpu = parsed[2];
+            }
+            SubmissionResult result = new SubmissionResult(jobID, task.getArrayTaskIndex(),
+                    taskExitCode, task.getSignal(), userCpu, systemCpu,
+                    task.getAllocatedCpuSeconds(), task.getElapsedSeconds(),
+                    task.getQueueWaitSeconds(), task.getStartTime(), task.getEndTime(),
+                    task.getNodeList());
+            if (!result.isSuccessful()) {
+                failed++;
+                getListener().getLogger().println("Array task " + jobID + "_" + task.getArrayTaskIndex()
+                        + " failed: exit code " + taskExitCode
+                        + (task.getSignal() != 0 ? ", signal " + task.getSignal() : ""));
+            }
+            results.add(result);
+        }
+        getListener().getLogger().println("Array job " + jobID + ": " + results.size()
+                + " task(s), " + (results.size() - failed) + " succeeded, " + failed + " failed");
+        if (results.isEmpty()) {
+            getListener().getLogger().println("WARNING: No information could be retrieved for any array task.");
+        }
+
+        SubmissionResult result = SubmissionResult.aggregate(jobID, results);
+        if (exitCode > 0 && result.isSuccessful()) { //sbatch -W saw a failure we did not
+            result = new SubmissionResult(jobID, -1, exitCode, 0, result.getUserCpuSeconds(),
+                    result.getSystemCpuSeconds(), result.getAllocatedCpuSeconds(),
+                    result.getElapsedSeconds(), result.getQueueWaitSeconds(),
+                    result.getStartTime(), result.getEndTime(), result.getNodeList());
+        }
+        reportComputeTime(result);
+        return result;
+    }
+
+    /**
+     * Cancel a job.
+     *
+     * @param jobID   ID of the job to cancel
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final void cancelJob(final String jobID) throws InterruptedException, IOException {
+        getListener().getLogger().println("Cancelling job " + jobID);
+        runCommand("scancel", jobID);
+    }
+
+    /**
+     * Cancel a single step of a job, leaving the rest of the job running.
+     *
+     * @param jobID      ID of the job
+     * @param stepName   name of the step to cancel
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final void cancelStep(final String jobID, final String stepName)
+            throws InterruptedException, IOException {
+        //mark the step as cancelled in case it has not started yet
+        getScratch().child(SLURMJobPacker.CANCELLED_FILE).touch(System.currentTimeMillis());
+        String output = runCommand("squeue", "-h", "-s", "-j", jobID, "-o", "%i %j");
+        for (String[] step : SLURMOutputParser.parseColumns(output, 2)) {
+            if (step[1].equals(stepName)) {
+                getListener().getLogger().println("Cancelling job step " + step[0]);
+                runCommand("scancel", step[0]);
+            }
+        }
+    }
+
+    /**
+     * Look up how much compute time a job has been allocated so far, e.g.&nbsp;once
+     * it has been cancelled. For a packed job, only its own step is counted,
+     * and nothing if the step never started.
+     *
+     * @param jobID   ID of the job
+     * @return seconds of CPU time allocated to the job on all of its nodes
+     *         (over all tasks, for a job array), or -1 if sacct does not know
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final long queryUsedSeconds(final String jobID) throws InterruptedException, IOException {
+        List<String[]> lines = queryAllAccountingLines(jobID);
+        if (packedStepName != null) {
+            if (lines.isEmpty()) {
+                return -1;
+            }
+            for (String[] fields : lines) {
+                if (fields[0].contains(".") && fields[12].equals(packedStepName)) {
+                    SubmissionResult step = toResult(jobID, fields, -1, -1, -1);
+                    return step.hasAllocatedCpuTime() ? step.getAllocatedCpuSeconds() : -1;
+                }
+            }
+            return 0;
+        }
+        long used = -1;
+        for (String[] fields : lines) {
+            if (!fields[0].contains(".")) {
+                SubmissionResult task = toResult(jobID, fields, -1, -1, -1);
+                if (!task.hasAllocatedCpuTime()) {
+                    return -1;
+                }
+                used = Math.max(0, used) + task.getAllocatedCpuSeconds();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Get the line of a named step of a job from sacct.
+     *
+     * @param jobID      ID of the job
+     * @param stepName   name of the step
+     * @return the fields of the line, as from {@link #queryAccountingLines(String)},
+     *         or null if sacct has no such step
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private String[] queryStepAccounting(final String jobID, final String stepName)
+            throws InterruptedException, IOException {
+        for (String[] fields : queryAllAccountingLines(jobID)) {
+            if (fields[0].contains(".") && fields[12].equals(stepName)) {
+                return fields;
+            }
+        }
+        getListener().getLogger().println("No accounting information found for step " + stepName);
+        return null;
+    }
+
+    /**
+     * Look up a finished job in sacct and build its result. Where sacct has
+     * no information (e.g.&nbsp;accounting is disabled), the values passed in
+     * are used instead.
+     *
+     * @param jobID         ID of the job
+     * @param exitCode      exit code of the job as seen by Jenkins
+     * @param userTimeSec   user CPU time to use if sacct has none, or -1
+     * @param sysTimeSec    system CPU time to use if sacct has none, or -1
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private SubmissionResult queryAccounting(final String jobID, final int exitCode,
+            final double userTimeSec, final double sysTimeSec)
+            throws InterruptedException, IOException {
+        List<String[]> lines = queryAccountingLines(jobID);
+        if (lines.isEmpty()) {
+            getListener().getLogger().println("No accounting information found for job " + jobID);
+            return new SubmissionResult(jobID, -1, exitCode, 0,
+                    userTimeSec, sysTimeSec, -1, -1, -1, null);
+        }
+        return toResult(jobID, lines.get(0), exitCode, userTimeSec, sysTimeSec);
+    }
+
+    /**
+     * Get the allocation line of a job from sacct - one line per task, for
+     * a job array.
+     *
+     * @param jobID   ID of the job
+     * @return the fields of each line, in the order of {@link #ACCOUNTING_FORMAT}
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private List<String[]> queryAccountingLines(final String jobID)
+            throws InterruptedException, IOException {
+        List<String[]> lines = new ArrayList<String[]>();
+        for (String[] fields : queryAllAccountingLines(jobID)) {
+            if (!fields[0].contains(".")) { //steps have IDs of the form job.step
+                lines.add(fields);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Get every line of a job from sacct - its allocation (or one per array
+     * task) and all of its steps. Once every allocation has ended, the
+     * output is cached on the computer, so that the job is only looked up
+     * once however many results are built from it.
+     *
+     * @param jobID   ID of the job
+     * @return the fields of each line, in the order of {@link #ACCOUNTING_FORMAT}
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private List<String[]> queryAllAccountingLines(final String jobID)
+            throws InterruptedException, IOException {
+        SLURMSlaveComputer computer = getSLURMComputer();
+        String output = computer.getCachedAccounting(jobID);
+        if (output != null) {
+            return parseAccounting(jobID, output);
+        }
+        //%s makes sacct print times as seconds since epoch, so the time zone
+        //of the cluster does not matter
+        output = runCommand(new String[] {"SLURM_TIME_FORMAT=%s"},
+                "sacct", "-n", "-P", "-j", jobID, "-o", ACCOUNTING_FORMAT);
+        List<String[]> lines = parseAccounting(jobID, output);
+        boolean ended = !lines.isEmpty();
+        for (String[] fields : lines) {
+            if (!fields[0].contains(".") && parseEpochSeconds(fields[6]) < 0) {
+                ended = false;
+            }
+        }
+        if (ended) {
+            computer.cacheAccounting(jobID, output);
+        }
+        return lines;
+    }
+
+    /**
+     * Split the output of sacct into the lines of a job.
+     *
+     * @param jobID    ID of the job
+     * @param output   output of sacct -n -P -o {@link #ACCOUNTING_FORMAT}, may be null
+     * @return the fields of each line belonging to the job
+     */
+    static List<String[]> parseAccounting(final String jobID, final String output) {
+        List<String[]> lines = new ArrayList<String[]>();
+        for (String[] fields : SLURMOutputParser.parseRecords(output, '|', ACCOUNTING_FIELDS)) {
+            if (fields[0].equals(jobID) || fields[0].startsWith(jobID + "_")
+                    || fields[0].startsWith(jobID + "+") || fields[0].startsWith(jobID + ".")) {
+                lines.add(fields);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Build a result from a line of sacct output.
+     *
+     * @param jobID         ID of the job
+     * @param fields        fields of the line, as from {@link #queryAccountingLines(String)}
+     * @param exitCode      exit code of the job as seen by Jenkins
+     * @param userTimeSec   user CPU time to use if sacct has none, or -1
+     * @param sysTimeSec    system CPU time to use if sacct has none, or -1
+     */
+    static SubmissionResult toResult(final String jobID, final String[] fields,
+            final int exitCode, final double userTimeSec, final double sysTimeSec) {
+        int arrayTaskIndex = -1;
+        int underscore = fields[0].indexOf('_');
+        if (underscore > 0) {
+            arrayTaskIndex = parseInt(fields[0].substring(underscore + 1), -1);
+        }
+        int signal = 0;
+        int colon = fields[1].indexOf(':');
+        if (colon >= 0) {
+            signal = parseInt(fields[1].substring(colon + 1), 0);
+        }
+        double userCpu = parseDuration(fields[2]);
+        double systemCpu = parseDuration(fields[3]);
+        if (userCpu < 0 || systemCpu < 0) {
+            double totalCpu = parseDuration(fields[8]);
+            if (totalCpu >= 0) {
+                userCpu = totalCpu;
+                systemCpu = 0;
+            } else {
+                userCpu = userTimeSec;
+                systemCpu = sysTimeSec;
+            }
+        }
+        //CPUTimeRAW is elapsed time multiplied by CPUs allocated on all nodes
+        long elapsed = (long) parseDuration(fields[10]);
+        long allocatedCpu = parseLong(fields[9], -1);
+        int allocCpus = parseInt(fields[11], -1);
+        if (allocatedCpu < 0 && elapsed >= 0 && allocCpus >= 0) {
+            allocatedCpu = elapsed * allocCpus;
+        }
+        long submit = parseEpochSeconds(fields[4]);
+        long start = parseEpochSeconds(fields[5]);
+        long end = parseEpochSeconds(fields[6]);
+        long queueWait = submit >= 0 && start >= submit ? start - submit : -1;
+        return new SubmissionResult(jobID, arrayTaskIndex, exitCode, signal,
+                userCpu, systemCpu, allocatedCpu, elapsed, queueWait,
+                start >= 0 ? start * 1000 : -1, end >= 0 ? end * 1000 : -1,
+                fields[7].isEmpty() ? null : fields[7]);
+    }
+
+    /**
+     * Parse a SLURM duration of the form [DD-[HH:]]MM:SS[.mmm].
+     *
+     * @param duration   duration as printed by sacct
+     * @return the duration in seconds, or -1 if it cannot be parsed
+     */
+    static double parseDuration(final String duration) {
+        return SLURMOutputParser.parseDuration(duration);
+    }
+
+    /**
+     * Parse a time printed by sacct with SLURM_TIME_FORMAT=%s.
+     *
+     * @return seconds since epoch, or -1 for "Unknown", "None" and the like
+     */
+    static long parseEpochSeconds(final String time) {
+        return SLURMOutputParser.parseEpochSeconds(time);
+    }
+
+    private static long parseLong(final String value, final long defaultValue) {
+        return SLURMOutputParser.parseLong(value, defaultValue);
+    }
+
+    private static int parseInt(final String value, final int defaultValue) {
+        long parsed = SLURMOutputParser.parseLong(value, defaultValue);
+        return parsed > Integer.MAX_VALUE || parsed < Integer.MIN_VALUE ? defaultValue : (int) parsed;
+    }
+
+    /**
+     * Get the SLURM agent computer on which the build is running.
+     *
+     * @throws AbortException if the build is not running on a SLURM agent
+     */
+    final SLURMSlaveComputer getSLURMComputer() throws AbortException {
+        Computer computer = getWorkspace().toComputer();
+        if (!(computer instanceof SLURMSlaveComputer)) {
+            throw new AbortException("Not running on a SLURM agent");
+        }
+        return (SLURMSlaveComputer) computer;
+    }
+
+    /**
+     * Wait for the job to reach a terminal state, as reported by the shared
+     * {@link SLURMJobPoller} of the agent, copying its output to the build log
+     * as it is written. If the build is interrupted while waiting, the job is
+     * cancelled.
+     *
+     * @param jobID   ID of the job to wait for
+     * @throws InterruptedException if the build is aborted while waiting
+     * @throws IOException
+     */
+    private void waitForJob(final String jobID) throws InterruptedException, IOException {
+        waitForJob(jobID, null);
+    }
+
+    /**
+     * As {@link #waitForJob(String)}, except that if stepName is given, only
+     * that step is cancelled when the build is interrupted, as the rest of
+     * the job belongs to other builds.
+     *
+     * @param jobID      ID of the job to wait for
+     * @param stepName   name of the step of this build, or null for the whole job
+     * @throws InterruptedException if the build is aborted while waiting
+     * @throws IOException
+     */
+    private void waitForJob(final String jobID, final String stepName)
+            throws InterruptedException, IOException {
+        SLURMJobPoller poller = getSLURMComputer().getJobPoller();
+        Future<String> finalState = poller.watch(jobID);
+        SLURMOutputTailer tailer = new SLURMOutputTailer(jobID);
+        getListener().getLogger().println("Waiting for job " + jobID + " to finish");
+        String lastState = null;
+        long start = getPhaseTimer().start();
+        try {
+            while (true) {
+                try {
+                    String state = finalState.get(STATE_REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+                    copyOutput(jobID, tailer, true);
+                    getListener().getLogger().println("Job " + jobID + " finished: " + state);
+                    return;
+                } catch (TimeoutException e) {
+                    String state = poller.getState(jobID);
+                    if (state != null && !state.equals(lastState)) {
+                        getListener().getLogger().println("Job " + jobID + " is " + state);
+                        lastState = state;
+                    }
+                    //a packed step can finish long before the rest of its job
+                    if (stepName != null && getScratch().child(SLURMJobPacker.DONE_FILE).exists()) {
+                        copyOutput(jobID, tailer, true);
+                        getListener().getLogger().println("Job step " + stepName + " finished");
+                        return;
+                    }
+                    copyOutput(jobID, tailer, false);
+                }
+            }
+        } catch (InterruptedException e) {
+            getListener().getLogger().println("Build interrupted");
+            if (stepName != null) {
+                //other builds are still waiting on the job
+                cancelStep(jobID, stepName);
+            } else {
+                poller.forget(jobID);
+                cancelJob(jobID);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to wait for job " + jobID, e.getCause());
+        } finally {
+            getPhaseTimer().stop(PhaseTimer.Phase.WAIT, start);
+        }
+    }
+
+    /**
+     * Copy new output of a job to the build log. Failures are only reported,
+     * as the output files are recovered once the job has finished anyway.
+     *
+     * @param jobID      ID of the job
+     * @param tailer     tracks how much output has been copied already
+     * @param finished   the job has finished, so copy all remaining output
+     * @throws InterruptedException
+     */
+    final void copyOutput(final String jobID, final SLURMOutputTailer tailer,
+            final boolean finished) throws InterruptedException {
+        try {
+            if (finished) {
+                tailer.drain(getScratch(), getListener());
             } else {
-                getListener().getLogger().println("WARNING: Runtime information could not be retrieved. The job may have timed out.");
-                computeTimeSec = cpuTime * 60;
+                tailer.tail(getScratch(), getListener());
             }
+        } catch (IOException e) {
+            getListener().getLogger().println("Could not copy output of job " + jobID + ": " + e.getMessage());
         }
+    }
 
-        //return job ID, exit code and CPU time used
-        int[] output = {jobID, exitCode, (int) Math.ceil(computeTimeSec)};
-        return output;
+    /**
+     * Run a short command on the remote, in the remote working directory.
+     *
+     * @param cmds   the command and its arguments
+     * @return standard output of the command, or null if it exited non-zero
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private String runCommand(final String... cmds) throws InterruptedException, IOException {
+        return runCommand(new String[0], cmds);
+    }
 
+    /**
+     * Run a short command on the remote, in the remote working directory.
+     *
+     * @param envs   environment variable overrides, of the form NAME=value
+     * @param cmds   the command and its arguments
+     * @return standard output of the command, or null if it exited non-zero
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private String runCommand(final String[] envs, final String... cmds)
+            throws InterruptedException, IOException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int ret = getLauncher().launch().cmds(cmds).envs(envs).pwd(getWorkspace())
+                .stdout(stdout).stderr(new ByteArrayOutputStream())
+                .quiet(true).join();
+        if (ret != 0) {
+            return null;
+        }
+        return new String(stdout.toByteArray(), StandardCharsets.UTF_8);
     }
 
     /**
@@ -143,14 +1051,23 @@ public class SLURMSystem extends BatchSystem {
      */
     @Override
     public final void cleanUpFiles() throws InterruptedException {
+        //only remove the files of this build, as other builds may share the workspace
+        if (getScratchDirectory() != null) {
+            getListener().getLogger().println("Cleaning up " + getScratchDirectory());
+            try {
+                getScratch().deleteRecursive();
+            } catch (IOException e) {
+                getListener().getLogger().println("Failed to clean up " + getScratchDirectory() + ": " + e.getMessage());
+            }
+            return;
+        }
         getListener().getLogger().println("Cleaning up workspace");
         if (getRemoteWorkingDirectory().contains("workspace")) {
-            Shell shell = new Shell("#!/bin/bash +x\n"
-                                   + "echo " + getRemoteWorkingDirectory().replace("'", "\\'") + "\n"
-                                   + "mkdir -p /tmp/jenkins\n"
-                                   + "[ -d '" + getRemoteWorkingDirectory().replace("'", "'\\''") + "' ] && mv '" + getRemoteWorkingDirectory().replace("'", "'\\''") + "' /tmp/jenkins/\n"
-                                   + "rm -rf /tmp/jenkins\n");
-            shell.perform(getAbstractBuild(), getLauncher(), getBuildListener());
+            try {
+                getWorkspace().deleteRecursive();
+            } catch (IOException e) {
+                getListener().getLogger().println("Failed to clean up " + getRemoteWorkingDirectory() + ": " + e.getMessage());
+            }
         } else {
             getListener().getLogger().println("Something is wrong - remote directory does not contain 'workspace': " + getRemoteWorkingDirectory());
         }
@@ -0,0 +1,277 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Cache of generated user scripts in a workspace, so that a job which is run
+ * again with the same script does not filter it and send it to the agent
+ * again.
+ * <p>
+ * Scripts are stored under {@code _slurm_scripts} in the workspace, named by
+ * the hash of what they are generated from (the raw script and the batch
+ * option prefix), and shared by every build in that workspace. The master
+ * remembers the SHA-256 digest of each script it has written, and a script
+ * is only reused if the file in the workspace still has that digest, so a
+ * file changed or damaged on the agent is written again. The least recently
+ * used scripts are deleted once there are more than
+ * {@link #MAX_SCRIPTS} in a workspace.
+ * <p>
+ * Jobs never run a script from the cache itself: each build gets its own
+ * copy in its scratch directory, hard-linked where possible. Scripts in the
+ * cache are only ever replaced by an atomic rename, so a job that is still
+ * queued, or a Pipeline step resumed after a restart, keeps the script it
+ * was submitted with whatever happens to the cache.
+ *
+ * @author Eli Chadwick
+ */
+public final class ScriptCache {
+
+    /**
+     * Directory of the cache, relative to the workspace.
+     */
+    public static final String DIRECTORY = "_slurm_scripts";
+
+    /**
+     * Most scripts kept in the cache of a workspace.
+     */
+    static final int MAX_SCRIPTS = Integer.getInteger(ScriptCache.class.getName() + ".maxScripts", 32);
+
+    /**
+     * Changed whenever the way user scripts are generated changes, so that
+     * scripts generated the old way are not reused.
+     */
+    private static final String VERSION = "1";
+
+    /**
+     * Digests of the scripts written, by key. Lost on restart, after which
+     * each script is written once more.
+     */
+    private static final Map<String, String> DIGESTS = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                    return size() > 1024;
+                }
+            });
+
+    /**
+     * Held on the agent while a cache is looked up, added to or evicted
+     * from, so that a script found by one build cannot be evicted by another
+     * before it is copied.
+     */
+    private static final Object LOCK = new Object();
+
+    private ScriptCache() {
+    }
+
+    /**
+     * Compute the key of a user script.
+     *
+     * @param rawScript   script entered by the user
+     * @param prefix      batch option prefix filtered out of the script
+     * @return the SHA-256 hash of the script and prefix, in hex
+     */
+    public static String key(final String rawScript, final String prefix) {
+        MessageDigest digest = newDigest();
+        for (String part : new String[] {VERSION, prefix, rawScript}) {
+            if (part != null) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0); //so that parts cannot run into each other
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Get the path of a cached script, relative to the workspace.
+     *
+     * @param key   key of the script
+     */
+    public static String getPath(final String key) {
+        return DIRECTORY + "/" + key + ".sh";
+    }
+
+    /**
+     * Get the digest of the script last written for a key.
+     *
+     * @return the digest in hex, or null if no script has been written for
+     *         the key since Jenkins started
+     */
+    static String getDigest(final String key) {
+        return DIGESTS.get(key);
+    }
+
+    /**
+     * Record the digest of a script written for a key.
+     */
+    static void putDigest(final String key, final String digest) {
+        DIGESTS.put(key, digest);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //every JVM has SHA-256
+        }
+    }
+
+    /**
+     * Checks whether a script is in the cache of the workspace acted on with
+     * the expected digest and, if so, marks it as used and copies it to where
+     * the build runs it from.
+     */
+    static final class LookupCallable extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final String digest;
+        private final String target;
+
+        /**
+         * @param key      key of the script
+         * @param digest   expected digest of the script, or null if not
+         *                 known, in which case it is never found
+         * @param target   where to copy the script, relative to the workspace
+         */
+        LookupCallable(final String key, final String digest, final String target) {
+            this.key = key;
+            this.digest = digest;
+            this.target = target;
+        }
+
+        /**
+         * {@inheritDoc}
+         * @return true if the script is in the cache and unchanged, and was
+         *         copied to the target
+         */
+        @Override
+        public Boolean invoke(final File workspace, final VirtualChannel channel) throws IOException {
+            File script = new File(new File(workspace, DIRECTORY), key + ".sh");
+            synchronized (LOCK) {
+                //a stale script is left in place, to be replaced atomically
+                //when the script is published again
+                if (digest == null || !script.isFile() || !digest.equals(StagingCache.digestOf(script))) {
+                    return false;
+                }
+                script.setLastModified(System.currentTimeMillis());
+                place(script, new File(workspace, target));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds a script written by a build to the cache of the workspace acted
+     * on, replacing any older copy atomically, then evicts the least recently
+     * used scripts.
+     */
+    static final class PublishCallable extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final String source;
+        private final int maxScripts;
+
+        /**
+         * @param key          key of the script
+         * @param source       the script, relative to the workspace
+         * @param maxScripts   most scripts to keep in the cache
+         */
+        PublishCallable(final String key, final String source, final int maxScripts) {
+            this.key = key;
+            this.source = source;
+            this.maxScripts = maxScripts;
+        }
+
+        @Override
+        public Void invoke(final File workspace, final VirtualChannel channel) throws IOException {
+            File dir = new File(workspace, DIRECTORY);
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create " + dir);
+            }
+            File partial = new File(dir, key + ".sh.part-" + UUID.randomUUID());
+            synchronized (LOCK) {
+                place(new File(workspace, source), partial);
+                Files.move(partial.toPath(), new File(dir, key + ".sh").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                evict(dir, maxScripts);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Hard-link a file to a new path, or copy it where it cannot be linked
+     * (e.g.&nbsp;across file systems).
+     */
+    static void place(final File source, final File target) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Delete the least recently used scripts in a cache directory, and any
+     * scripts left partly written more than an hour ago. Builds run their
+     * own copies, so no job depends on a script in the cache.
+     *
+     * @param dir    cache directory
+     * @param keep   most scripts to keep
+     * @return the number of files deleted
+     */
+    static int evict(final File dir, final int keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        long staleBefore = System.currentTimeMillis() - 60 * 60 * 1000L;
+        File[] scripts = new File[files.length];
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(".sh")) {
+                scripts[count++] = file;
+            } else if (file.lastModified() < staleBefore && file.delete()) {
+                deleted++;
+            }
+        }
+        if (count <= keep) {
+            return deleted;
+        }
+        scripts = Arrays.copyOf(scripts, count);
+        Arrays.sort(scripts, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                return Long.compare(b.lastModified(), a.lastModified()); //newest first
+            }
+        });
+        for (int i = Math.max(keep, 0); i < count; i++) {
+            if (scripts[i].delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+}
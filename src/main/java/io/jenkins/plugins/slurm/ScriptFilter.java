@@ -0,0 +1,85 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Filters batch options out of a user's script in a single pass, writing
+ * the remaining lines straight to their destination (e.g.&nbsp;a stream to
+ * the remote workspace) rather than building the filtered script up in
+ * memory, and finding out at the same time whether anything but whitespace
+ * is left.
+ * <p>
+ * Lines are split as {@link java.util.Scanner#nextLine()} splits them, and
+ * every line kept is written with a trailing "\n".
+ *
+ * @author Eli Chadwick
+ */
+public final class ScriptFilter {
+
+    private ScriptFilter() {
+    }
+
+    /**
+     * Filter a script.
+     *
+     * @param script   script to filter
+     * @param prefix   lines beginning with this string are left out
+     * @param out      where to write the lines kept, or null to only check
+     *                 whether there are any
+     * @return true if the lines kept contain anything but whitespace
+     * @throws IOException if out cannot be written to
+     */
+    public static boolean filter(final String script, final String prefix,
+            final Appendable out) throws IOException {
+        if (script == null) {
+            return false;
+        }
+        boolean content = false;
+        int length = script.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && !isLineSeparator(script.charAt(lineEnd))) {
+                lineEnd++;
+            }
+            if (!script.startsWith(prefix, lineStart)) {
+                if (!content) {
+                    for (int i = lineStart; i < lineEnd; i++) {
+                        if (script.charAt(i) > ' ') {
+                            content = true;
+                            break;
+                        }
+                    }
+                }
+                if (out != null) {
+                    write(out, script, lineStart, lineEnd);
+                    out.append('\n');
+                }
+            }
+            lineStart = lineEnd + 1;
+            if (lineEnd + 1 < length && script.charAt(lineEnd) == '\r'
+                    && script.charAt(lineEnd + 1) == '\n') {
+                lineStart++; //\r\n ends a single line
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Write part of a string without copying it first, where the destination
+     * allows.
+     */
+    private static void write(final Appendable out, final String text, final int start,
+            final int end) throws IOException {
+        if (out instanceof Writer) {
+            ((Writer) out).write(text, start, end - start);
+        } else {
+            out.append(text, start, end);
+        }
+    }
+
+    private static boolean isLineSeparator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
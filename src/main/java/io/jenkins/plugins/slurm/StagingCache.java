@@ -0,0 +1,511 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed cache of input files on an agent, so that files which
+ * have not changed since they were last sent are not sent again.
+ * <p>
+ * Files are stored on the agent under {@code slurm-cache/blobs} in its root
+ * directory, named by their SHA-256 digest, and hard-linked into the
+ * workspace, or copied where hard links are not possible. Cached files are
+ * read-only, so a job cannot change them through a link: a hard-linked input
+ * is the same file in every workspace it was staged to, and a job which needs
+ * to change one must copy it first.
+ * <p>
+ * Before each build is staged, the least recently used files are evicted
+ * until the cache is no larger than the size set on the agent. A file is
+ * never evicted while it is linked into a workspace, or within
+ * {@link #LEASE} of a build finding it in the cache, so that it cannot be
+ * removed between a build finding it and linking it.
+ * <p>
+ * The master keeps a manifest for each agent of the digests of the files it
+ * has sent, by path, size and modification time, so that unchanged files
+ * are not hashed again either.
+ *
+ * @author Eli Chadwick
+ */
+public final class StagingCache {
+
+    private static final Logger LOGGER = Logger.getLogger(StagingCache.class.getName());
+
+    /**
+     * Caches by agent name.
+     */
+    private static final Map<String, StagingCache> CACHES =
+            new ConcurrentHashMap<String, StagingCache>();
+
+    /**
+     * How long a file found in the cache by a build is protected from
+     * eviction while the build links it (milliseconds). Set with the system
+     * property io.jenkins.plugins.slurm.StagingCache.leaseMinutes.
+     */
+    static final long LEASE = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(StagingCache.class.getName() + ".leaseMinutes", 10));
+
+    /**
+     * Held on the agent while files are leased and evicted, so that one
+     * build cannot evict a file another build is leasing.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Used to make the names of partly sent files unique.
+     */
+    private static final Random RANDOM = new Random();
+
+    /**
+     * The manifest file on the master.
+     */
+    private final File manifestFile;
+
+    /**
+     * Digests of files on the master, by absolute path. Null until loaded.
+     */
+    private Map<String, ManifestEntry> manifest;
+
+    StagingCache(final File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Get the cache of an agent, with its manifest stored under
+     * JENKINS_HOME/slurm/staging.
+     *
+     * @param nodeName   name of the agent
+     * @return null if Jenkins is not running
+     */
+    static StagingCache forNode(final String nodeName) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        File file = new File(jenkins.getRootDir(),
+                "slurm" + File.separator + "staging" + File.separator + nodeName + ".manifest");
+        return CACHES.computeIfAbsent(file.getAbsolutePath(), k -> new StagingCache(file));
+    }
+
+    /**
+     * Copy files from the master to a workspace through the cache of the
+     * agent the workspace is on.
+     *
+     * @param source     directory on the master to copy from
+     * @param includes   comma-separated patterns of the files to copy
+     * @param excludes   comma-separated patterns of files not to copy, or null
+     * @param target     workspace to copy to
+     * @param listener   where to report progress
+     * @return false if the files were not copied because the agent has no
+     *         cache, in which case the caller should copy them itself
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public static boolean stage(final FilePath source, final String includes,
+            final String excludes, final FilePath target, final TaskListener listener)
+            throws InterruptedException, IOException {
+        if (!target.isRemote() || source.isRemote()) {
+            return false;
+        }
+        Computer computer = target.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        if (!(node instanceof SLURMSlave) || ((SLURMSlave) node).getStagingCacheSize() <= 0) {
+            return false;
+        }
+        FilePath root = node.getRootPath();
+        StagingCache cache = forNode(node.getNodeName());
+        if (root == null || cache == null) {
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+        FilePath cacheDir = root.child("slurm-cache");
+        long capBytes = ((SLURMSlave) node).getStagingCacheSize() * 1024L * 1024L;
+
+        File sourceDir = new File(source.getRemote());
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        Map<String, String> pathsByDigest = new HashMap<String, String>();
+        if (sourceDir.isDirectory()) {
+            for (String path : Util.createFileSet(sourceDir, includes, excludes)
+                    .getDirectoryScanner().getIncludedFiles()) {
+                String digest = cache.digest(new File(sourceDir, path));
+                String relative = path.replace(File.separatorChar, '/');
+                digests.put(relative, digest);
+                pathsByDigest.put(digest, relative);
+            }
+        }
+        cache.save();
+        if (digests.isEmpty()) {
+            listener.getLogger().println("No files found matching " + includes);
+            return true;
+        }
+
+        Set<String> missing = cacheDir.act(new FindMissingCallable(pathsByDigest.keySet(), capBytes));
+        long sentBytes = 0;
+        for (String digest : missing) {
+            FilePath file = source.child(pathsByDigest.get(digest));
+            String partName = digest + ".part-" + Integer.toHexString(RANDOM.nextInt());
+            FilePath part = cacheDir.child("blobs/" + partName);
+            try {
+                file.copyTo(part);
+                cacheDir.child("blobs").act(new StoreCallable(partName, digest));
+            } catch (IOException | InterruptedException e) {
+                try {
+                    part.delete();
+                } catch (IOException | InterruptedException e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            }
+            sentBytes += file.length();
+        }
+        target.act(new LinkCallable(cacheDir.child("blobs").getRemote(), digests));
+        listener.getLogger().println("Staged " + digests.size() + " file(s) in "
+                + (System.currentTimeMillis() - startTime) + " ms: " + missing.size()
+                + " sent (" + sentBytes + " bytes), "
+                + (pathsByDigest.size() - missing.size()) + " reused from the cache on "
+                + node.getNodeName());
+        return true;
+    }
+
+    /**
+     * Get the digest of a file, from the manifest if the file has not
+     * changed since it was last hashed.
+     *
+     * @param file   file on the master
+     * @return SHA-256 digest of the file, in hex
+     * @throws IOException
+     */
+    synchronized String digest(final File file) throws IOException {
+        load();
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        ManifestEntry entry = manifest.get(path);
+        if (entry != null && entry.size == size && entry.modified == modified) {
+            return entry.digest;
+        }
+        String digest = digestOf(file);
+        manifest.put(path, new ManifestEntry(size, modified, digest));
+        return digest;
+    }
+
+    /**
+     * Compute the SHA-256 digest of a file.
+     *
+     * @return the digest, in hex
+     * @throws IOException
+     */
+    static String digestOf(final File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Load the manifest from disk, if it is not already loaded. Lines which
+     * cannot be read are ignored, so a damaged manifest only costs rehashing.
+     */
+    private void load() {
+        if (manifest != null) {
+            return;
+        }
+        manifest = new HashMap<String, ManifestEntry>();
+        if (!manifestFile.isFile()) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ", 4);
+                try {
+                    manifest.put(fields[3], new ManifestEntry(Long.parseLong(fields[0]),
+                            Long.parseLong(fields[1]), fields[2]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    continue;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read staging manifest " + manifestFile, e);
+        }
+    }
+
+    /**
+     * Write the manifest to disk, forgetting files which no longer exist.
+     */
+    synchronized void save() {
+        if (manifest == null) {
+            return;
+        }
+        manifest.keySet().removeIf(path -> !new File(path).isFile());
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, ManifestEntry> entry : manifest.entrySet()) {
+            ManifestEntry value = entry.getValue();
+            lines.add(value.size + " " + value.modified + " " + value.digest + " " + entry.getKey());
+        }
+        try {
+            File dir = manifestFile.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            File tmp = new File(manifestFile.getPath() + ".tmp");
+            Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write staging manifest " + manifestFile, e);
+        }
+    }
+
+    /**
+     * Evict the least recently used files from a cache until it is no
+     * larger than the cap, skipping files which are linked into a workspace
+     * or were used within {@link #LEASE}. Partly sent files are left alone
+     * for an hour, then deleted as abandoned.
+     *
+     * @param blobs      the cache directory
+     * @param capBytes   largest size of the cache (bytes)
+     * @param keep       names of files not to evict
+     * @return the number of files evicted
+     */
+    static int evict(final File blobs, final long capBytes, final Set<String> keep) {
+        File[] files = blobs.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long total = 0;
+        long staleBefore = System.currentTimeMillis() - 60 * 60 * 1000L;
+        int evicted = 0;
+        for (File file : files) {
+            if (file.getName().contains(".part-") && file.lastModified() < staleBefore
+                    && file.delete()) {
+                evicted++;
+                continue;
+            }
+            total += file.length();
+        }
+        //oldest first; a partly sent file counts as used when last written
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (total <= capBytes) {
+                break;
+            }
+            if (!file.exists() || keep.contains(file.getName()) || file.getName().contains(".part-")
+                    || System.currentTimeMillis() - file.lastModified() < LEASE
+                    || linkCount(file) > 1) {
+                continue;
+            }
+            long size = file.length();
+            if (file.delete()) {
+                total -= size;
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Get the number of hard links to a file.
+     *
+     * @return the number of links, or 1 if it cannot be told
+     */
+    static int linkCount(final File file) {
+        try {
+            return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Leases the files of a set of digests which are in the cache directory
+     * acted on, evicts other files if the cache has grown too large, and
+     * finds which of the digests are not in the cache.
+     */
+    static final class FindMissingCallable extends MasterToSlaveFileCallable<Set<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Set<String> digests;
+        private final long capBytes;
+
+        /**
+         * @param digests    digests of the files a build needs
+         * @param capBytes   largest size of the cache (bytes)
+         */
+        FindMissingCallable(final Set<String> digests, final long capBytes) {
+            this.digests = new HashSet<String>(digests);
+            this.capBytes = capBytes;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Set<String> invoke(final File dir, final VirtualChannel channel) throws IOException {
+            File blobs = new File(dir, "blobs");
+            if (!blobs.isDirectory() && !blobs.mkdirs() && !blobs.isDirectory()) {
+                throw new IOException("Could not create " + blobs);
+            }
+            Set<String> missing = new HashSet<String>();
+            synchronized (LOCK) {
+                long now = System.currentTimeMillis();
+                for (String digest : digests) {
+                    File blob = new File(blobs, digest);
+                    if (!blob.isFile() || !blob.setLastModified(now)) {
+                        missing.add(digest);
+                    }
+                }
+                evict(blobs, capBytes, digests);
+            }
+            return missing;
+        }
+    }
+
+    /**
+     * Moves a fully sent file into place in the cache directory acted on.
+     * Builds staging the same new file at once each send their own copy; the
+     * first to arrive is kept and the others are deleted.
+     */
+    static final class StoreCallable extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String partName;
+        private final String digest;
+
+        /**
+         * @param partName   name of the partly sent file
+         * @param digest     digest of its contents, which it is stored as
+         */
+        StoreCallable(final String partName, final String digest) {
+            this.partName = partName;
+            this.digest = digest;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Void invoke(final File dir, final VirtualChannel channel) throws IOException {
+            Path part = new File(dir, partName).toPath();
+            Path blob = new File(dir, digest).toPath();
+            //linking fails, rather than replacing, if another build stored it first
+            try {
+                Files.createLink(blob, part);
+            } catch (FileAlreadyExistsException e) {
+                //already stored
+            } catch (IOException | UnsupportedOperationException e) {
+                if (!Files.exists(blob)) {
+                    Files.move(part, blob, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            Files.deleteIfExists(part);
+            return null;
+        }
+    }
+
+    /**
+     * Links files from the cache into the directory acted on.
+     */
+    static final class LinkCallable extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String blobs;
+        private final Map<String, String> digests;
+
+        /**
+         * @param blobs      path of the cache directory
+         * @param digests    digests of the files to link, by path relative
+         *                   to the directory acted on
+         */
+        LinkCallable(final String blobs, final Map<String, String> digests) {
+            this.blobs = blobs;
+            this.digests = new LinkedHashMap<String, String>(digests);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Void invoke(final File dir, final VirtualChannel channel) throws IOException {
+            File cacheDir = new File(blobs);
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, String> entry : digests.entrySet()) {
+                File blob = new File(cacheDir, entry.getValue());
+                if (!blob.isFile()) {
+                    throw new IOException("Missing from the staging cache: " + blob);
+                }
+                blob.setWritable(false, false);
+                blob.setLastModified(now);
+                File file = new File(dir, entry.getKey());
+                File parent = file.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()
+                        && !parent.isDirectory()) {
+                    throw new IOException("Could not create " + parent);
+                }
+                Files.deleteIfExists(file.toPath());
+                //not symlinked: a symlink would dangle once the file is evicted
+                try {
+                    Files.createLink(file.toPath(), blob.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(blob.toPath(), file.toPath());
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Digest of a file as it was when last hashed.
+     */
+    private static final class ManifestEntry {
+        private final long size;
+        private final long modified;
+        private final String digest;
+
+        ManifestEntry(final long size, final long modified, final String digest) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The outcome of a job submitted to a batch system: its ID, how it exited,
+ * the CPU time it used and when and where it ran. Values which the batch
+ * system could not provide are -1 (or null, for strings).
+ *
+ * @author Eli Chadwick
+ */
+public final class SubmissionResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * ID of the job, or of the array the job belongs to. Null if the job
+     * was not submitted.
+     */
+    private final String jobID;
+
+    /**
+     * Index of the job within its array, or -1 if it is not an array task.
+     */
+    private final int arrayTaskIndex;
+
+    /**
+     * Exit code of the job.
+     */
+    private final int exitCode;
+
+    /**
+     * Signal which terminated the job, or 0 if it exited normally.
+     */
+    private final int signal;
+
+    /**
+     * User CPU time used by the job (seconds).
+     */
+    private final double userCpuSeconds;
+
+    /**
+     * System CPU time used by the job (seconds).
+     */
+    private final double systemCpuSeconds;
+
+    /**
+     * CPU time allocated to the job (seconds) - its elapsed time multiplied
+     * by the number of CPUs allocated to it, over all of its nodes. This is
+     * what the job is charged for, whether or not it kept its CPUs busy.
+     */
+    private final long allocatedCpuSeconds;
+
+    /**
+     * Time the job ran for (seconds).
+     */
+    private final long elapsedSeconds;
+
+    /**
+     * Time the job spent in the queue before starting (seconds).
+     */
+    private final long queueWaitSeconds;
+
+    /**
+     * When the job started (milliseconds since epoch).
+     */
+    private final long startTime;
+
+    /**
+     * When the job ended (milliseconds since epoch).
+     */
+    private final long endTime;
+
+    /**
+     * Nodes the job ran on, in the batch system's compressed notation.
+     */
+    private final String nodeList;
+
+    public SubmissionResult(final String jobID, final int arrayTaskIndex,
+            final int exitCode, final int signal, final double userCpuSeconds,
+            final double systemCpuSeconds, final long queueWaitSeconds,
+            final long startTime, final long endTime, final String nodeList) {
+        this(jobID, arrayTaskIndex, exitCode, signal, userCpuSeconds, systemCpuSeconds,
+                -1, -1, queueWaitSeconds, startTime, endTime, nodeList);
+    }
+
+    public SubmissionResult(final String jobID, final int arrayTaskIndex,
+            final int exitCode, final int signal, final double userCpuSeconds,
+            final double systemCpuSeconds, final long allocatedCpuSeconds,
+            final long elapsedSeconds, final long queueWaitSeconds,
+            final long startTime, final long endTime, final String nodeList) {
+        this.jobID = jobID;
+        this.arrayTaskIndex = arrayTaskIndex;
+        this.exitCode = exitCode;
+        this.signal = signal;
+        this.userCpuSeconds = userCpuSeconds;
+        this.systemCpuSeconds = systemCpuSeconds;
+        this.allocatedCpuSeconds = allocatedCpuSeconds;
+        this.elapsedSeconds = elapsedSeconds;
+        this.queueWaitSeconds = queueWaitSeconds;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.nodeList = nodeList;
+    }
+
+    /**
+     * Create a result for a job which was never submitted.
+     *
+     * @param exitCode   exit code of the submission command
+     */
+    public static SubmissionResult notSubmitted(final int exitCode) {
+        return new SubmissionResult(null, -1, exitCode, 0, -1, -1, -1, -1, -1, null);
+    }
+
+    /**
+     * Combine the results of the tasks of a job array into one result for
+     * the array. The array exits with the exit code and signal of the first
+     * task (by index) which failed, and its CPU time is the total over all
+     * tasks - unknown if any task's is unknown, so that the array is not
+     * undercharged. The same goes for its allocated CPU time; its elapsed
+     * time is that of its longest task.
+     *
+     * @param jobID   ID of the array
+     * @param tasks   results of the tasks, in order of index
+     * @return the combined result, which fails if there are no tasks
+     */
+    public static SubmissionResult aggregate(final String jobID, final List<SubmissionResult> tasks) {
+        if (tasks.isEmpty()) {
+            return new SubmissionResult(jobID, -1, -1, 0, -1, -1, -1, -1, -1, null);
+        }
+        int exitCode = 0;
+        int signal = 0;
+        double userCpu = 0;
+        double systemCpu = 0;
+        long allocatedCpu = 0;
+        long elapsed = -1;
+        long queueWait = -1;
+        long start = -1;
+        long end = -1;
+        Set<String> nodeLists = new LinkedHashSet<String>();
+        for (SubmissionResult task : tasks) {
+            if (exitCode == 0 && signal == 0 && !task.isSuccessful()) {
+                exitCode = task.getExitCode();
+                signal = task.getSignal();
+            }
+            if (userCpu >= 0 && task.hasCpuTime()) {
+                userCpu += task.getUserCpuSeconds();
+                systemCpu += task.getSystemCpuSeconds();
+            } else {
+                userCpu = -1;
+                systemCpu = -1;
+            }
+            if (allocatedCpu >= 0 && task.hasAllocatedCpuTime()) {
+                allocatedCpu += task.getAllocatedCpuSeconds();
+            } else {
+                allocatedCpu = -1;
+            }
+            elapsed = Math.max(elapsed, task.getElapsedSeconds());
+            if (task.getQueueWaitSeconds() >= 0) {
+                queueWait = queueWait < 0 ? task.getQueueWaitSeconds()
+                        : Math.min(queueWait, task.getQueueWaitSeconds());
+            }
+            if (task.getStartTime() >= 0) {
+                start = start < 0 ? task.getStartTime() : Math.min(start, task.getStartTime());
+            }
+            end = Math.max(end, task.getEndTime());
+            if (task.getNodeList() != null) {
+                nodeLists.add(task.getNodeList());
+            }
+        }
+        return new SubmissionResult(jobID, -1, exitCode, signal, userCpu, systemCpu,
+                allocatedCpu, elapsed, queueWait, start, end, nodeLists.isEmpty() ? null : String.join(",", nodeLists));
+    }
+
+    /**
+     * Get the ID of the job.
+     * @return null if the job was not submitted
+     */
+    public String getJobID() {
+        return jobID;
+    }
+
+    public boolean isSubmitted() {
+        return jobID != null;
+    }
+
+    public int getArrayTaskIndex() {
+        return arrayTaskIndex;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public int getSignal() {
+        return signal;
+    }
+
+    /**
+     * Check whether the job completed successfully.
+     */
+    public boolean isSuccessful() {
+        return isSubmitted() && exitCode == 0 && signal == 0;
+    }
+
+    public double getUserCpuSeconds() {
+        return userCpuSeconds;
+    }
+
+    public double getSystemCpuSeconds() {
+        return systemCpuSeconds;
+    }
+
+    /**
+     * Check whether CPU time used by the job is known.
+     */
+    public boolean hasCpuTime() {
+        return userCpuSeconds >= 0 && systemCpuSeconds >= 0;
+    }
+
+    /**
+     * Get the total (user and system) CPU time used by the job.
+     * @return seconds, or -1 if not known
+     */
+    public double getCpuSeconds() {
+        return hasCpuTime() ? userCpuSeconds + systemCpuSeconds : -1;
+    }
+
+    /**
+     * Check whether CPU time allocated to the job is known.
+     */
+    public boolean hasAllocatedCpuTime() {
+        return allocatedCpuSeconds >= 0;
+    }
+
+    /**
+     * Get the CPU time allocated to the job, over all of its nodes.
+     * @return seconds, or -1 if not known
+     */
+    public long getAllocatedCpuSeconds() {
+        return allocatedCpuSeconds;
+    }
+
+    /**
+     * Get the time the job ran for.
+     * @return seconds, or -1 if not known
+     */
+    public long getElapsedSeconds() {
+        return elapsedSeconds;
+    }
+
+    public long getQueueWaitSeconds() {
+        return queueWaitSeconds;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public String getNodeList() {
+        return nodeList;
+    }
+
+    @Override
+    public String toString() {
+        return "SubmissionResult[jobID=" + jobID
+                + (arrayTaskIndex >= 0 ? "_" + arrayTaskIndex : "")
+                + ", exitCode=" + exitCode + ", signal=" + signal
+                + ", userCpuSeconds=" + userCpuSeconds
+                + ", systemCpuSeconds=" + systemCpuSeconds
+                + ", allocatedCpuSeconds=" + allocatedCpuSeconds
+                + ", queueWaitSeconds=" + queueWaitSeconds
+                + ", nodeList=" + nodeList + "]";
+    }
+}
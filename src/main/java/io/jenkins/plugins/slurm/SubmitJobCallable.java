@@ -0,0 +1,325 @@
+package io.jenkins.plugins.slurm;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs sbatch in a directory on the agent and returns its output, exit code
+ * and (once the job has finished) the contents of the communication file,
+ * all in a single call over the remoting channel. If the call is interrupted
+ * (the build is aborted), sbatch is killed and the job it submitted is
+ * cancelled.
+ *
+ * @author Eli Chadwick
+ */
+public class SubmitJobCallable extends MasterToSlaveFileCallable<SubmitJobCallable.Output> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How long to wait for scancel when a build is aborted (seconds).
+     */
+    private static final int CANCEL_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Name of the script to submit, relative to the directory acted on.
+     */
+    private final String jobFileName;
+
+    /**
+     * Name of the communication file, relative to the directory acted on.
+     */
+    private final String communicationFile;
+
+    /**
+     * Pass -W to sbatch, so that it only returns once the job has finished.
+     */
+    private final boolean waitForJob;
+
+    /**
+     * File for the standard output and error of the job, relative to the
+     * directory acted on, or null for the SLURM default.
+     */
+    private final String outputFile;
+
+    /**
+     * Environment variables of the build, passed on to sbatch (and from there
+     * to the job).
+     */
+    private final Map<String, String> envVars;
+
+    /**
+     * @param jobFileName         script to submit
+     * @param communicationFile   file the job writes its exit code and time
+     *                            information to
+     * @param waitForJob          wait for the job to finish before returning
+     * @param outputFile          file for the output of the job (may contain
+     *                            sbatch filename patterns), or null
+     * @param envVars             environment of the build
+     */
+    public SubmitJobCallable(final String jobFileName, final String communicationFile,
+            final boolean waitForJob, final String outputFile,
+            final Map<String, String> envVars) {
+        this.jobFileName = jobFileName;
+        this.communicationFile = communicationFile;
+        this.waitForJob = waitForJob;
+        this.outputFile = outputFile;
+        this.envVars = envVars;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Output invoke(final File dir, final VirtualChannel channel)
+            throws IOException, InterruptedException {
+        File jobFile = new File(dir, jobFileName);
+        jobFile.setReadable(true, false);
+        jobFile.setExecutable(true, false);
+
+        //sbatch is run from a login shell, as the Shell step used to, so the
+        //job inherits any modules loaded by the user's profile. --parsable
+        //makes sbatch print the bare job ID
+        List<String> cmds = new ArrayList<String>();
+        cmds.add("bash");
+        cmds.add("-l");
+        cmds.add("-c");
+        cmds.add("sbatch --parsable " + (waitForJob ? "-W " : "")
+                + (outputFile != null ? "-o " + quote(outputFile) + " " : "")
+                + quote(jobFileName));
+        ProcessBuilder builder = new ProcessBuilder(cmds).directory(dir)
+                .redirectErrorStream(true);
+        if (envVars != null) {
+            builder.environment().putAll(envVars);
+        }
+        final Process process = builder.start();
+        //the output is read on a thread of its own, so that waiting for sbatch
+        //-W can be interrupted when the build is aborted
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    IOUtils.copy(process.getInputStream(), stdout);
+                } catch (IOException e) {
+                    //process destroyed
+                }
+            }
+        }, "sbatch output reader for " + jobFileName);
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            process.getOutputStream().close();
+            int exitCode = process.waitFor();
+            reader.join();
+            String communication = waitForJob ? readFile(new File(dir, communicationFile)) : null;
+            return new Output(exitCode, toString(stdout), communication);
+        } catch (InterruptedException e) {
+            //killing sbatch -W leaves the job running, so cancel it as well
+            process.destroy();
+            String jobID = awaitJobID(reader, stdout);
+            if (jobID != null) {
+                cancel(dir, jobID);
+            }
+            throw e;
+        } finally {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Get the job ID printed by sbatch, giving it a few seconds to appear if
+     * sbatch had not printed it yet. The thread has been interrupted, so the
+     * flag is cleared while waiting and set again after.
+     *
+     * @return the job ID, or null if the job was not submitted
+     */
+    private static String awaitJobID(final Thread reader, final ByteArrayOutputStream stdout) {
+        boolean interrupted = Thread.interrupted();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        String jobID = SLURMOutputParser.parseJobID(toString(stdout));
+        try {
+            while (jobID == null && reader.isAlive() && System.currentTimeMillis() < deadline) {
+                reader.join(100);
+                jobID = SLURMOutputParser.parseJobID(toString(stdout));
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return jobID;
+    }
+
+    private static String toString(final ByteArrayOutputStream stdout) {
+        return new String(stdout.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Cancel a job with scancel, from a login shell as sbatch is run, waiting
+     * a short time for it to return. The thread has been interrupted, so the
+     * flag is cleared while waiting and set again after.
+     *
+     * @param dir     directory to run scancel in
+     * @param jobID   ID of the job
+     */
+    private void cancel(final File dir, final String jobID) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            ProcessBuilder builder = new ProcessBuilder("bash", "-l", "-c", "scancel " + quote(jobID))
+                    .directory(dir).redirectErrorStream(true);
+            if (envVars != null) {
+                builder.environment().putAll(envVars);
+            }
+            Process scancel = builder.start();
+            scancel.getOutputStream().close();
+            if (!scancel.waitFor(CANCEL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                scancel.destroy();
+            }
+        } catch (IOException e) {
+            //nothing more can be done from here
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Quote a string for bash.
+     */
+    private static String quote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Read a small text file.
+     *
+     * @param file   file to read
+     * @return contents of the file, or null if it does not exist
+     * @throws IOException
+     */
+    static String readFile(final File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a file in the directory acted on, returning null if it does not exist.
+     */
+    public static class ReadFileCallable extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Name of the file to read, relative to the directory acted on.
+         */
+        private final String fileName;
+
+        public ReadFileCallable(final String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String invoke(final File dir, final VirtualChannel channel) throws IOException {
+            return readFile(new File(dir, fileName));
+        }
+    }
+
+    /**
+     * Reads the files in the directory acted on which match a pattern, such
+     * as the communication files of the tasks of a job array.
+     */
+    public static class ReadFilesCallable extends MasterToSlaveFileCallable<Map<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Ant-style pattern of the files to read, relative to the directory acted on.
+         */
+        private final String pattern;
+
+        public ReadFilesCallable(final String pattern) {
+            this.pattern = pattern;
+        }
+
+        /**
+         * {@inheritDoc}
+         * @return contents of the matching files, by path relative to the
+         *         directory acted on
+         */
+        @Override
+        public Map<String, String> invoke(final File dir, final VirtualChannel channel)
+                throws IOException {
+            Map<String, String> files = new LinkedHashMap<String, String>();
+            if (!dir.isDirectory()) {
+                return files;
+            }
+            for (String path : Util.createFileSet(dir, pattern)
+                    .getDirectoryScanner().getIncludedFiles()) {
+                files.put(path.replace(File.separatorChar, '/'), readFile(new File(dir, path)));
+            }
+            return files;
+        }
+    }
+
+    /**
+     * What sbatch printed and returned, and the contents of the communication
+     * file if the job has finished.
+     */
+    public static final class Output implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int exitCode;
+        private final String stdout;
+        private final String communication;
+
+        public Output(final int exitCode, final String stdout, final String communication) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.communication = communication;
+        }
+
+        /**
+         * Get the exit code of sbatch.
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * Get the standard output and error of sbatch.
+         */
+        public String getStdout() {
+            return stdout;
+        }
+
+        /**
+         * Get the contents of the communication file.
+         * @return null if the file did not exist, or the job was not waited for
+         */
+        public String getCommunication() {
+            return communication;
+        }
+    }
+}
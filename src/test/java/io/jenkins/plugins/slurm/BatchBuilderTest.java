@@ -11,6 +11,7 @@ import hudson.slaves.DumbSlave;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.RetentionStrategy;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -172,4 +173,106 @@ public class BatchBuilderTest {//tests methods in BatchBuilder
         Assert.assertEquals(actualScript,expectedScript);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void countArrayTasks_CountsIndicesRangesAndSteps() {
+        Assert.assertEquals(100,BatchBuilder.countArrayTasks("0-99"));
+        Assert.assertEquals(5,BatchBuilder.countArrayTasks("1,3,5-7"));
+        Assert.assertEquals(50,BatchBuilder.countArrayTasks("0-98:2"));
+        Assert.assertEquals(1,BatchBuilder.countArrayTasks(" 7 "));
+    }
+
+    @Test
+    public void countArrayTasks_NegativeForInvalidInput() {
+        Assert.assertEquals(-1,BatchBuilder.countArrayTasks(""));
+        Assert.assertEquals(-1,BatchBuilder.countArrayTasks("9-1"));
+        Assert.assertEquals(-1,BatchBuilder.countArrayTasks("0-9:0"));
+        Assert.assertEquals(-1,BatchBuilder.countArrayTasks("0-9%2"));
+        Assert.assertEquals(-1,BatchBuilder.countArrayTasks("1,,2"));
+    }
+
+    @Test
+    public void getRequestedSeconds_CountsEveryArrayTask() {
+        BatchBuilder builder=new SLURMBuilder("test", 1, 2, 3, 4, "queue", "", false, "");
+        builder.setArrayTasks("0-9");
+
+        Assert.assertEquals(10*2*3*4*60,builder.getRequestedSeconds());
+    }
+
+    @Test
+    public void getComputeSeconds_ChargesAllocatedCpuTime() {
+        SubmissionResult allocated=new SubmissionResult("1",-1,0,0,10,5,480,60,0,0,0,null);
+        SubmissionResult usedOnly=new SubmissionResult("1",-1,0,0,10,5,0,0,0,null);
+        SubmissionResult unknown=new SubmissionResult("1",-1,0,0,-1,-1,0,0,0,null);
+
+        Assert.assertEquals(480,BatchBuilder.getComputeSeconds(allocated,100));
+        Assert.assertEquals(15,BatchBuilder.getComputeSeconds(usedOnly,100));
+        Assert.assertEquals(6000,BatchBuilder.getComputeSeconds(unknown,100));
+        Assert.assertEquals(0,BatchBuilder.getComputeSeconds(SubmissionResult.notSubmitted(1),100));
+    }
+
+    @Test
+    public void getCancelledComputeSeconds_PrefersReportedTimeAndStaysWithinReservation() {
+        BatchBuilder builder=new SLURMBuilder("test", 1, 2, 3, 60, "queue", "", false, ""); //6 CPUs, 21600 seconds
+
+        Assert.assertEquals(480,builder.getCancelledComputeSeconds(480,600000,21600));
+        Assert.assertEquals(6*600,builder.getCancelledComputeSeconds(-1,600000,21600)); //10 minutes since submission
+        Assert.assertEquals(21600,builder.getCancelledComputeSeconds(-1,24*3600000L,21600));
+        Assert.assertEquals(0,builder.getCancelledComputeSeconds(-1,-5,21600));
+    }
+
+    @Test
+    public void parseMemory_ConvertsUnitsToMB() {
+        Assert.assertEquals(4096,BatchBuilder.parseMemory("4096"));
+        Assert.assertEquals(500,BatchBuilder.parseMemory("500M"));
+        Assert.assertEquals(4096,BatchBuilder.parseMemory("4G"));
+        Assert.assertEquals(4096,BatchBuilder.parseMemory("4gb"));
+        Assert.assertEquals(2*1024*1024,BatchBuilder.parseMemory("2T"));
+        Assert.assertEquals(1,BatchBuilder.parseMemory("1K"));
+        Assert.assertEquals(-1,BatchBuilder.parseMemory("4.5G"));
+        Assert.assertEquals(-1,BatchBuilder.parseMemory("lots"));
+        Assert.assertEquals(-1,BatchBuilder.parseMemory(null));
+    }
+
+    @Test
+    public void getResourceNames_DropsCounts() {
+        Assert.assertEquals(Arrays.asList("gpu:v100","mps","gpu"),BatchBuilder.getResourceNames("gpu:v100:2, mps:100,gpu"));
+        Assert.assertEquals(Arrays.asList("matlab","ansys@db"),BatchBuilder.getResourceNames("matlab:1,ansys@db:2"));
+        Assert.assertTrue(BatchBuilder.getResourceNames(null).isEmpty());
+    }
+
+    @Test
+    public void getRequestedMemoryPerNode_UsesBusiestNode() {
+        BatchBuilder builder=new SLURMBuilder("test", 2, 6, 2, 4, "queue", "", false, "");
+        Assert.assertEquals(-1,builder.getRequestedMemoryPerNode());
+        builder.setMemoryPerCpu("1G");
+        Assert.assertEquals(3*2*1024,builder.getRequestedMemoryPerNode()); //6 tasks on 2 nodes
+        builder.setTasksPerNode(4);
+        Assert.assertEquals(4*2*1024,builder.getRequestedMemoryPerNode());
+        builder.setMemoryPerCpu("");
+        builder.setMemory("8G");
+        Assert.assertEquals(8192,builder.getRequestedMemoryPerNode());
+    }
+
+    @Test
+    public void isPacked_FalseWithResourceOptions() {
+        BatchBuilder builder=new SLURMBuilder("test", 1, 1, 1, 4, "queue", "", false, "");
+        builder.setPack(true);
+        Assert.assertTrue(builder.isPacked());
+        builder.setGres("gpu:1");
+        Assert.assertFalse(builder.isPacked());
+    }
+
+    @Test
+    public void formatResourceOptions_OmitsUnsetOptions() {
+        Assert.assertEquals("",SLURMSlave.formatResourceOptions("#SBATCH",null,"",0,null,null,null,null,0));
+        Assert.assertEquals("#SBATCH --mem=4G\n"
+                + "#SBATCH --ntasks-per-node=2\n"
+                + "#SBATCH --gres=gpu:1\n"
+                + "#SBATCH --licenses=matlab:1\n"
+                + "#SBATCH --qos=high\n"
+                + "#SBATCH --account=proj\n"
+                + "#SBATCH --time-min=30\n",
+                SLURMSlave.formatResourceOptions("#SBATCH","4G",null,2,"gpu:1","matlab:1","high","proj",30));
+    }
+
+}
@@ -0,0 +1,116 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every JMH benchmark in this package, writing the full results
+ * (including allocation per operation, from the GC profiler) to
+ * target/jmh-report.json and the score of each benchmark (microseconds per
+ * operation) to target/jmh-baseline.properties. Not picked up by a normal
+ * test run - use mvn test -P jmh-benchmark.
+ * <p>
+ * To catch regressions, keep the baseline file of a release and pass it back
+ * with -Dbenchmark.baseline=path; the run fails if any benchmark is slower
+ * than its baseline by more than -Dbenchmark.tolerance (0.25 by default,
+ * i.e.&nbsp;25%). Baselines are only comparable on the same machine.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark")
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .addProfiler(GCProfiler.class) //reports bytes allocated per operation
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .build();
+        Properties scores = toScores(new Runner(options).run());
+        try (OutputStream out = new FileOutputStream("target/jmh-baseline.properties")) {
+            scores.store(out, "JMH scores, microseconds per operation");
+        }
+
+        String baseline = System.getProperty("benchmark.baseline");
+        if (baseline != null && !baseline.isEmpty()) {
+            double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.25"));
+            List<String> regressions = compare(load(new File(baseline)), scores, tolerance);
+            Assert.assertTrue("Slower than " + baseline + ":\n" + String.join("\n", regressions),
+                    regressions.isEmpty());
+        }
+    }
+
+    /**
+     * Key each score by its benchmark and parameters,
+     * e.g.&nbsp;io.jenkins.plugins.slurm.ScriptGenerationBenchmark.filterScript[script=small].
+     */
+    static Properties toScores(final Collection<RunResult> results) {
+        Properties scores = new Properties();
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            List<String> values = new ArrayList<String>();
+            for (String key : new TreeSet<String>(params.getParamsKeys())) {
+                values.add(key + "=" + params.getParam(key));
+            }
+            String name = params.getBenchmark()
+                    + (values.isEmpty() ? "" : "[" + String.join(",", values) + "]");
+            scores.setProperty(name, Double.toString(result.getPrimaryResult().getScore()));
+        }
+        return scores;
+    }
+
+    /**
+     * List the benchmarks which are slower than their baseline by more than
+     * the tolerance. Benchmarks missing from either side are ignored.
+     */
+    static List<String> compare(final Properties baseline, final Properties scores,
+            final double tolerance) {
+        List<String> regressions = new ArrayList<String>();
+        for (String name : new TreeSet<String>(scores.stringPropertyNames())) {
+            String before = baseline.getProperty(name);
+            if (before == null) {
+                continue;
+            }
+            double was = Double.parseDouble(before);
+            double now = Double.parseDouble(scores.getProperty(name));
+            if (now > was * (1 + tolerance)) {
+                regressions.add(String.format("%s: %.3f us/op, was %.3f us/op (+%.0f%%)",
+                        name, now, was, (now / was - 1) * 100));
+            }
+        }
+        return regressions;
+    }
+
+    private static Properties load(final File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,63 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClusterModelTest {//tests parsing sinfo and scontrol output into a ClusterModel
+
+    private static final String SCONTROL = "PartitionName=compute AllowGroups=ALL Default=YES MaxNodes=16 MaxTime=2-00:00:00 MaxCPUsPerNode=UNLIMITED Nodes=node[001-032] State=UP TotalCPUs=1024 TotalNodes=32\n"
+            + "PartitionName=gpu AllowGroups=ALL Default=NO MaxNodes=UNLIMITED MaxTime=UNLIMITED MaxCPUsPerNode=24 Nodes=gpu[01-04] State=UP TotalCPUs=160 TotalNodes=4\n"
+            + "PartitionName=old Default=NO State=DOWN TotalCPUs=0 TotalNodes=0\n";
+
+    private static final String SINFO = "compute|32|192000|haswell,ib|(null)\n"
+            + "compute|32+|384000+|broadwell,ib|(null)\n"
+            + "gpu|40|384000|skylake|gpu:v100:4(S:0-1),mps:400\n"
+            + "hidden|8|1000|(null)|(null)\n";
+
+    @Test
+    public void parse_ReadsLimitsAndNodes() {
+        ClusterModel model = ClusterModel.parse(SINFO, SCONTROL, 1000L);
+        Assert.assertEquals("compute", model.getDefaultPartition());
+        Assert.assertEquals(3, model.getPartitions().size());
+
+        ClusterModel.Partition compute = model.getPartition("");
+        Assert.assertEquals("compute", compute.getName());
+        Assert.assertTrue(compute.isUp());
+        Assert.assertEquals(16, compute.getMaxNodesPerJob());
+        Assert.assertEquals(32, compute.getUsableCpusPerNode());
+        Assert.assertEquals(172800, compute.getTimeLimitSeconds());
+        Assert.assertEquals(384000, compute.getMemoryPerNode());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("haswell", "broadwell", "ib")), compute.getFeatures());
+
+        ClusterModel.Partition gpu = model.getPartition("gpu");
+        Assert.assertEquals(4, gpu.getMaxNodesPerJob()); //unlimited, so all of its nodes
+        Assert.assertEquals(24, gpu.getUsableCpusPerNode());
+        Assert.assertEquals(-1, gpu.getTimeLimitSeconds());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("gpu:v100", "mps")), gpu.getGres());
+
+        Assert.assertFalse(model.getPartition("old").isUp());
+        Assert.assertNull(model.getPartition("hidden"));
+    }
+
+    @Test
+    public void parse_EmptyWithoutOutput() {
+        ClusterModel model = ClusterModel.parse(null, null, 0L);
+        Assert.assertTrue(model.getPartitions().isEmpty());
+        Assert.assertNull(model.getPartition(""));
+    }
+
+    @Test
+    public void getClusterModel_OnlyWhenDiscoveringAndFresh() {
+        ResourceConfig config = new ResourceConfig(1, 1, 100, 100, "");
+        ClusterModel model = ClusterModel.parse(SINFO, SCONTROL, System.currentTimeMillis());
+        config.setClusterModel(model);
+        Assert.assertNull(config.getClusterModel());
+        config.setAutoDiscover(true);
+        Assert.assertSame(model, config.getClusterModel());
+        config.setClusterModel(ClusterModel.parse(SINFO, SCONTROL,
+                System.currentTimeMillis() - ClusterModel.TTL));
+        Assert.assertNull(config.getClusterModel());
+    }
+}
@@ -0,0 +1,65 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CpuTimeLedgerTest {//tests replay and compaction of the CPU time journal
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replay_AppliesChangesAfterBalance() {
+        String journal = "B 6000\nR 600\nS 600 15\nR 1200\nF 1200\nC 30\n";
+
+        Assert.assertEquals(6000-15-30,CpuTimeLedger.replay(journal,0));
+    }
+
+    @Test
+    public void replay_ChargesOpenReservationsInFull() {
+        String journal = "B 6000\nR 600\nR 300\nS 300 100\n"; //first job never settled
+
+        Assert.assertEquals(6000-600-100,CpuTimeLedger.replay(journal,0));
+    }
+
+    @Test
+    public void replay_IgnoresTornAndMalformedLines() {
+        String journal = "B 6000\nR x\nQ 5\nC\nR 60"; //last line cut short by a crash
+
+        Assert.assertEquals(6000,CpuTimeLedger.replay(journal,0));
+    }
+
+    @Test
+    public void replay_NeverGoesNegative() {
+        String journal = "B 60\nC 100\nF 30\n";
+
+        Assert.assertEquals(30,CpuTimeLedger.replay(journal,0));
+    }
+
+    @Test
+    public void replay_CompactsJournalToBalance() throws Exception {
+        File file = new File(folder.getRoot(),"ledger/node.log");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(),"B 6000\nR 600\nS 600 15\n".getBytes(StandardCharsets.UTF_8));
+
+        long balance = new CpuTimeLedger(file).replay(100);
+
+        Assert.assertEquals(6000-15,balance);
+        Assert.assertEquals("B 5985\n",new String(Files.readAllBytes(file.toPath()),StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void replay_StartsNewJournalIfNoneExists() throws Exception {
+        File file = new File(folder.getRoot(),"ledger/node.log");
+
+        long balance = new CpuTimeLedger(file).replay(100);
+
+        Assert.assertEquals(100,balance);
+        Assert.assertEquals(100,new CpuTimeLedger(file).replay(0));
+    }
+}
@@ -0,0 +1,129 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileRecovererTest {//tests planning and framing of file transfers in FileRecoverer
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] write(final File dir, final String path, final int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(dir,path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(),data);
+        return data;
+    }
+
+    private void copy(final File source, final File target, final Map<String, Long> files,
+            final int streams, final long chunkSize, final int level) throws Exception {
+        for (List<FileRecoverer.Part> group : FileRecoverer.plan(files,streams,chunkSize)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FileRecoverer.writeParts(source,group,out,level);
+            FileRecoverer.readParts(new ByteArrayInputStream(out.toByteArray()),target,level);
+        }
+    }
+
+    @Test
+    public void plan_SplitsLargeFilesAndBalancesGroups() {
+        Map<String, Long> files = new LinkedHashMap<String, Long>();
+        files.put("big",250L);
+        files.put("small",10L);
+        files.put("empty",0L);
+
+        List<List<FileRecoverer.Part>> plan = FileRecoverer.plan(files,3,100);
+
+        Assert.assertEquals(3,plan.size());
+        List<Long> sizes = new ArrayList<Long>();
+        int parts = 0;
+        for (List<FileRecoverer.Part> group : plan) {
+            long size = 0;
+            for (FileRecoverer.Part part : group) {
+                Assert.assertTrue(part.getLength() <= 100);
+                size += part.getLength();
+                parts++;
+            }
+            sizes.add(size);
+        }
+        Assert.assertEquals(5,parts); //100+100+50, 10, 0
+        Assert.assertEquals(Arrays.asList(100L,100L,60L),sizes);
+    }
+
+    @Test
+    public void plan_NeverMakesEmptyGroups() {
+        Map<String, Long> files = new LinkedHashMap<String, Long>();
+        files.put("a",5L);
+
+        Assert.assertEquals(1,FileRecoverer.plan(files,8,100).size());
+    }
+
+    @Test
+    public void writeParts_RoundTripsChunkedFilesWithAndWithoutCompression() throws Exception {
+        File source = folder.newFolder("source");
+        Map<String, Long> files = new LinkedHashMap<String, Long>();
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        for (String path : new String[] {"slurm-1.out","results/data.bin","empty.txt"}) {
+            int size = path.equals("empty.txt") ? 0 : path.length()*1000;
+            contents.put(path,write(source,path,size));
+            files.put(path,(long) size);
+        }
+
+        for (int level : new int[] {0,1,9}) {
+            File target = folder.newFolder("target" + level);
+            copy(source,target,files,2,4096,level);
+            for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+                Assert.assertArrayEquals(file.getValue(),
+                        Files.readAllBytes(new File(target,file.getKey()).toPath()));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readParts_RefusesPathsOutsideTarget() throws Exception {
+        File source = folder.newFolder("source");
+        write(source,"a",10);
+        File target = folder.newFolder("target");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileRecoverer.writeParts(source,
+                Arrays.asList(new FileRecoverer.Part("../source/a",10,0,10)),out,0);
+
+        FileRecoverer.readParts(new ByteArrayInputStream(out.toByteArray()),target,0);
+    }
+
+    @Test
+    public void findFailure_ReportsSenderFailureOverEndOfStream() throws Exception {
+        EOFException ended = new EOFException("Stream ended in the middle of out.dat");
+        IOException denied = new AccessDeniedException("out.dat");
+        CompletableFuture<Void> running = new CompletableFuture<Void>();
+        CompletableFuture<Void> failed = new CompletableFuture<Void>();
+        failed.completeExceptionally(denied);
+
+        Throwable reported = FileRecoverer.findFailure(Arrays.<Future<Void>>asList(running,failed),ended,1000);
+
+        Assert.assertSame(denied,reported);
+        Assert.assertSame(ended,reported.getSuppressed()[0]);
+        //other failures of the receiver are its own, and no sender has failed
+        IOException full = new IOException("No space left on device");
+        Assert.assertSame(full,FileRecoverer.findFailure(Arrays.<Future<Void>>asList(failed),full,1000));
+        Assert.assertSame(ended,FileRecoverer.findFailure(Arrays.<Future<Void>>asList(running),ended,0));
+    }
+}
@@ -0,0 +1,52 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {//tests the buckets and quantiles of LatencyHistogram
+
+    @Test
+    public void buckets_CoverEveryValueInOrder() {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            Assert.assertTrue(bucket == previous || bucket == previous + 1);
+            Assert.assertTrue(LatencyHistogram.upperBoundOf(bucket) >= value);
+            previous = bucket;
+        }
+        int last = LatencyHistogram.bucketOf(LatencyHistogram.MAX_VALUE);
+        Assert.assertEquals(LatencyHistogram.MAX_VALUE, LatencyHistogram.upperBoundOf(last));
+    }
+
+    @Test
+    public void quantiles_WithinRelativeError() {
+        Random random = new Random(20211017L);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 25); //up to a few days
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 1}) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long reported = histogram.getValueAtQuantile(quantile);
+            Assert.assertTrue(reported >= exact);
+            Assert.assertTrue(reported <= exact + exact / 16 + 1);
+        }
+        Assert.assertEquals(values.length, histogram.getCount());
+        Assert.assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void record_IgnoresNegativeAndCapsLargeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtQuantile(0.5));
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(1, histogram.getCount());
+        Assert.assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtQuantile(0.5));
+    }
+}
@@ -0,0 +1,38 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PhaseMetricsTest {//tests PhaseTimer and the Prometheus output of PhaseMetrics
+
+    @Test
+    public void phaseTimer_AddsUpRepeatedPhases() {
+        PhaseTimer timer = new PhaseTimer();
+        timer.add(PhaseTimer.Phase.RECOVER_FILES, 1000);
+        timer.add(PhaseTimer.Phase.SUBMIT, 5);
+        timer.add(PhaseTimer.Phase.RECOVER_FILES, 2000);
+        timer.add(PhaseTimer.Phase.QUEUE_WAIT, -1000000000L); //unknown
+        Map<PhaseTimer.Phase, Long> durations = timer.getDurations();
+        Assert.assertEquals(2, durations.size());
+        Assert.assertEquals(Long.valueOf(3000), durations.get(PhaseTimer.Phase.RECOVER_FILES));
+        Assert.assertEquals(PhaseTimer.Phase.SUBMIT, durations.keySet().iterator().next());
+    }
+
+    @Test
+    public void writePrometheus_SummaryPerPhase() {
+        PhaseMetrics metrics = new PhaseMetrics();
+        PhaseTimer timer = new PhaseTimer();
+        timer.add(PhaseTimer.Phase.SUBMIT, 2000000000L); //2 seconds
+        metrics.record(timer.getDurations());
+        metrics.record(timer.getDurations());
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus("hpc \"1\"", out);
+        String labels = "agent=\"hpc \\\"1\\\"\",phase=\"submit\"";
+        Assert.assertEquals("slurm_phase_seconds{" + labels + ",quantile=\"0.5\"} 2.0\n"
+                + "slurm_phase_seconds{" + labels + ",quantile=\"0.9\"} 2.0\n"
+                + "slurm_phase_seconds{" + labels + ",quantile=\"0.99\"} 2.0\n"
+                + "slurm_phase_seconds_sum{" + labels + "} 4.0\n"
+                + "slurm_phase_seconds_count{" + labels + "} 2\n", out.toString());
+    }
+}
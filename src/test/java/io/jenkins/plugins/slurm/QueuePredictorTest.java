@@ -0,0 +1,81 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueuePredictorTest {//tests parsing cluster snapshots and picking partitions in QueuePredictor
+
+    private static final String SINFO = "compute*|up|960/0/64/1024|32|2-00:00:00\n"
+            + "debug|up|4/60/0/64|2|30:00\n"
+            + "spare|up|0/256/0/256|8|infinite\n"
+            + "broken|down|0/128/0/128|4|infinite\n"
+            + "garbage\n";
+
+    private static final String SQUEUE = "compute|128\ncompute,spare|64\nnosuch|8\n";
+
+    private static final String SACCT = "compute|1000|1600|5200\n"
+            + "compute|1000|2200|Unknown\n"
+            + "compute|1000|1400|2400\n"
+            + "spare|1000|1000|4600\n"
+            + "spare|1000|None|None\n"; //never started
+
+    @Test
+    public void parse_ReadsStateAndHistory() {
+        QueuePredictor.Snapshot snapshot = QueuePredictor.parse(SINFO, SQUEUE, SACCT);
+        Assert.assertEquals("compute", snapshot.getDefaultPartition());
+        QueuePredictor.Partition compute = snapshot.getPartition("compute");
+        Assert.assertEquals(0, compute.getIdleCpus());
+        Assert.assertEquals(192, compute.getPendingCpus());
+        Assert.assertEquals(172800, compute.getTimeLimitSeconds());
+        Assert.assertEquals(600, compute.getMedianWaitSeconds());
+        Assert.assertEquals(3600, compute.getMedianRunSeconds());
+        QueuePredictor.Partition spare = snapshot.getPartition("spare");
+        Assert.assertEquals(-1, spare.getTimeLimitSeconds());
+        Assert.assertEquals(64, spare.getPendingCpus());
+        Assert.assertEquals(0, spare.getMedianWaitSeconds());
+        Assert.assertFalse(snapshot.getPartition("broken").isUp());
+        Assert.assertNull(snapshot.getPartition("garbage"));
+    }
+
+    @Test
+    public void select_PicksIdlePartitionOverBusyDefault() {
+        QueuePredictor.Snapshot snapshot = QueuePredictor.parse(SINFO, SQUEUE, SACCT);
+        Map<String, Double> estimates = new LinkedHashMap<String, Double>();
+        Assert.assertEquals("spare", QueuePredictor.select(snapshot,
+                Collections.<String>emptyList(), 1, 16, 60, estimates));
+        Assert.assertEquals(3600, estimates.get("spare"), 0.001);
+        Assert.assertTrue(estimates.get("compute") > 3600);
+        Assert.assertTrue(estimates.get("debug").isInfinite()); //walltime over its limit
+        Assert.assertTrue(estimates.get("broken").isInfinite());
+        //only permitted partitions are considered
+        Assert.assertEquals("compute", QueuePredictor.select(snapshot,
+                Arrays.asList("compute", "debug"), 1, 16, 60, null));
+        Assert.assertEquals("debug", QueuePredictor.select(snapshot,
+                Arrays.asList("compute", "debug"), 1, 16, 10, null));
+    }
+
+    @Test
+    public void select_NullWhenNothingCanRun() {
+        QueuePredictor.Snapshot snapshot = QueuePredictor.parse(SINFO, SQUEUE, SACCT);
+        Assert.assertNull(QueuePredictor.select(snapshot, Collections.<String>emptyList(), 1, 100000, 60, null));
+        Assert.assertNull(QueuePredictor.select(QueuePredictor.parse(null, null, null),
+                Collections.<String>emptyList(), 1, 1, 60, null));
+    }
+
+    @Test
+    public void claim_OnlyOneBuildTakesSnapshotAtATime() {
+        QueuePredictor predictor = new QueuePredictor();
+        CompletableFuture<QueuePredictor.Snapshot> first = new CompletableFuture<QueuePredictor.Snapshot>();
+        Assert.assertNull(predictor.claim(first));
+        Assert.assertSame(first, predictor.claim(new CompletableFuture<QueuePredictor.Snapshot>()));
+
+        first.complete(null); //could not be taken - the next build tries again
+        Assert.assertNull(predictor.claim(new CompletableFuture<QueuePredictor.Snapshot>()));
+        Assert.assertNull(predictor.getSnapshot());
+    }
+}
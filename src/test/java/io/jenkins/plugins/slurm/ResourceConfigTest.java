@@ -3,7 +3,13 @@ package io.jenkins.plugins.slurm;
 import hudson.AbortException;
 import hudson.model.Descriptor.FormException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.Assert;
@@ -82,4 +88,133 @@ public class ResourceConfigTest {//tests methods in ResourceConfig
         Assert.assertEquals(expectedMinutes,actualMinutes);
     }
     
-}
\ No newline at end of file
+    @Test
+    public void tryReserveSeconds_FailsWithoutChangingBalanceIfInsufficient() {
+        ResourceConfig config = new ResourceConfig(1,1,100,1,"queue"); //availableMinutes = 1
+
+        Assert.assertFalse(config.tryReserveSeconds(61));
+        Assert.assertEquals(60,config.getAvailableSeconds());
+        Assert.assertTrue(config.tryReserveSeconds(60));
+        Assert.assertEquals(0,config.getAvailableSeconds());
+    }
+
+    @Test
+    public void settle_ReturnsUnusedTimeAndRefundReturnsAll() {
+        ResourceConfig config = new ResourceConfig(1,1,100,100,"queue"); //availableMinutes = 100
+
+        config.tryReserveSeconds(600);
+        config.settle(600,15);
+        config.tryReserveSeconds(600);
+        config.refund(600);
+
+        int expectedSeconds = 100*60-15;
+        int expectedMinutes = 99;
+        Assert.assertEquals(expectedSeconds,config.getAvailableSeconds());
+        Assert.assertEquals(expectedMinutes,config.getAvailableMinutes());
+    }
+
+    @Test
+    public void tryReserveSeconds_NoDriftUnderConcurrentReserveAndSettle() throws Exception {
+        final int threads = 16;
+        final int cyclesPerThread = 5000;
+        final ResourceConfig config = new ResourceConfig(1,1,100,threads*cyclesPerThread,"queue"); //a minute per cycle
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    long used = 0;
+                    for (int i = 0; i < cyclesPerThread; i++) {
+                        Assert.assertTrue(config.tryReserveSeconds(60));
+                        if (i % 3 == 0) { //job never ran
+                            config.refund(60);
+                        } else {
+                            config.settle(60,i % 60);
+                            used += i % 60;
+                        }
+                    }
+                    return used;
+                }
+            }));
+        }
+        long totalUsed = 0;
+        for (Future<Long> result : results) {
+            totalUsed += result.get();
+        }
+        pool.shutdown();
+
+        long expectedSeconds = (long) threads*cyclesPerThread*60 - totalUsed;
+        Assert.assertEquals(expectedSeconds,config.getAvailableSeconds());
+        Assert.assertEquals(expectedSeconds/60,config.getAvailableMinutes());
+    }
+
+    @Test
+    public void tryReserveSeconds_ConcurrentReservationsNeverExceedBudget() throws Exception {
+        final int threads = 16;
+        final ResourceConfig config = new ResourceConfig(1,1,100,1000,"queue"); //room for exactly 1000 one-minute jobs
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int reserved = 0;
+                    for (int i = 0; i < 200; i++) {
+                        if (config.tryReserveSeconds(60)) {
+                            reserved++;
+                        }
+                    }
+                    return reserved;
+                }
+            }));
+        }
+        int totalReserved = 0;
+        for (Future<Integer> result : results) {
+            totalReserved += result.get();
+        }
+        pool.shutdown();
+
+        Assert.assertEquals(1000,totalReserved);
+        Assert.assertEquals(0,config.getAvailableSeconds());
+    }
+
+    @Test
+    public void takeOver_KeepsBalanceAndReservationsWhenUnchanged() {
+        ResourceConfig previous = new ResourceConfig(1,1,100,100,"queue"); //availableMinutes = 100
+        Assert.assertTrue(previous.tryReserveSeconds(90)); //5910 seconds, shown as 98 minutes
+
+        ResourceConfig resaved = new ResourceConfig(1,1,100,98,"queue");
+        Assert.assertTrue(resaved.takeOver(previous));
+        Assert.assertEquals(5910,resaved.getAvailableSeconds());
+
+        previous.settle(90,30); //job reserved under the old configuration finishes
+        Assert.assertEquals(5970,resaved.getAvailableSeconds());
+    }
+
+    @Test
+    public void takeOver_ReplacesBalanceButKeepsReservationsWhenChanged() {
+        ResourceConfig previous = new ResourceConfig(1,1,100,100,"queue"); //availableMinutes = 100
+        Assert.assertTrue(previous.tryReserveSeconds(90));
+
+        ResourceConfig changed = new ResourceConfig(1,1,100,50,"queue");
+        Assert.assertFalse(changed.takeOver(previous));
+        Assert.assertEquals(3000,changed.getAvailableSeconds());
+
+        previous.settle(90,30);
+        Assert.assertEquals(3060,changed.getAvailableSeconds());
+    }
+
+    @Test
+    public void isListed_PermitsKindsAndEmptyLists() {
+        Assert.assertTrue(ResourceConfig.isListed(null,"gpu"));
+        Assert.assertTrue(ResourceConfig.isListed(" ","gpu"));
+        Assert.assertTrue(ResourceConfig.isListed("gpu, mps","mps"));
+        Assert.assertTrue(ResourceConfig.isListed("gpu,mps","gpu:v100"));
+        Assert.assertFalse(ResourceConfig.isListed("gpu:v100","gpu"));
+        Assert.assertFalse(ResourceConfig.isListed("normal high","low"));
+    }
+
+}
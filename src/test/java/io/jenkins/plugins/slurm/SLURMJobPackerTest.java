@@ -0,0 +1,78 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SLURMJobPackerTest {//tests the planning and scripts of packed allocations
+
+    private SLURMJobPacker.Request request(final String name, final int cpus,
+            final int walltime, final String queue) {
+        return new SLURMJobPacker.Request(name,"/ws/" + name,"/ws/" + name + "/_slurm_1_ab",
+                "_system_script.sh",cpus,walltime,queue,"",null);
+    }
+
+    @Test
+    public void plan_SeparatesQueues() {
+        SLURMJobPacker.Request a = request("a",1,10,"short");
+        SLURMJobPacker.Request b = request("b",1,10,"long");
+        SLURMJobPacker.Request c = request("c",1,10,"short");
+
+        List<List<SLURMJobPacker.Request>> plan = SLURMJobPacker.plan(Arrays.asList(a,b,c),null,32);
+
+        Assert.assertEquals(2,plan.size());
+        Assert.assertEquals(Arrays.asList(a,c),plan.get(0));
+        Assert.assertEquals(Arrays.asList(b),plan.get(1));
+    }
+
+    @Test
+    public void plan_StaysWithinResourceConfig() {
+        ResourceConfig config = new ResourceConfig(1,4,200,1000,""); //4 CPUs, 200 CPU minutes
+        SLURMJobPacker.Request a = request("a",2,10,"");
+        SLURMJobPacker.Request b = request("b",2,10,"");
+        SLURMJobPacker.Request c = request("c",1,10,""); //would make 5 CPUs
+        SLURMJobPacker.Request d = request("d",1,150,""); //would make 300 CPU minutes with c
+
+        List<List<SLURMJobPacker.Request>> plan = SLURMJobPacker.plan(Arrays.asList(a,b,c,d),config,32);
+
+        Assert.assertEquals(3,plan.size());
+        Assert.assertEquals(Arrays.asList(a,b),plan.get(0));
+        Assert.assertEquals(Arrays.asList(c),plan.get(1));
+        Assert.assertEquals(Arrays.asList(d),plan.get(2));
+    }
+
+    @Test
+    public void plan_KeepsEachAllocationOnOneNode() {
+        ResourceConfig config = new ResourceConfig(2,4,1000,1000,""); //2 nodes of 4 CPUs
+        SLURMJobPacker.Request a = request("a",3,10,"");
+        SLURMJobPacker.Request b = request("b",3,10,""); //would need the CPUs of both nodes
+        SLURMJobPacker.Request c = request("c",1,10,"");
+
+        List<List<SLURMJobPacker.Request>> plan = SLURMJobPacker.plan(Arrays.asList(a,b,c),config,32);
+
+        Assert.assertEquals(2,plan.size());
+        Assert.assertEquals(Arrays.asList(a,c),plan.get(0));
+        Assert.assertEquals(Arrays.asList(b),plan.get(1));
+    }
+
+    @Test
+    public void plan_LimitsStepsPerAllocation() {
+        List<List<SLURMJobPacker.Request>> plan = SLURMJobPacker.plan(Arrays.asList(
+                request("a",1,1,""),request("b",1,1,""),request("c",1,1,"")),null,2);
+
+        Assert.assertEquals(2,plan.size());
+        Assert.assertEquals(2,plan.get(0).size());
+    }
+
+    @Test
+    public void generatePackScript_StartsEachJobAsStep() {
+        String script = SLURMJobPacker.generatePackScript("#SBATCH -n 3\n",Arrays.asList(
+                request("a",1,1,""),request("b",2,1,"")));
+
+        Assert.assertTrue(script.contains("#SBATCH -n 3\n"));
+        Assert.assertTrue(script.contains("srun --exclusive -N 1 -n 1 -c 2 -J 'b' --chdir='/ws/b'"));
+        Assert.assertTrue(script.contains("bash '/ws/a/_slurm_1_ab/_system_script.sh'; touch '/ws/a/_slurm_1_ab/_step_done'; } &\n"));
+        Assert.assertTrue(script.contains("\nwait\n"));
+    }
+}
@@ -0,0 +1,83 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SLURMJobPollerTest {//tests parsing and resolving of job states in SLURMJobPoller
+
+    @Test
+    public void parseStates_ReadsSqueueOutput() {
+        String output = "101 PENDING\n102 RUNNING\n";
+
+        Map<String, String> states = SLURMJobPoller.parseStates(output);
+
+        Assert.assertEquals(2, states.size());
+        Assert.assertEquals("PENDING", states.get("101"));
+        Assert.assertEquals("RUNNING", states.get("102"));
+    }
+
+    @Test
+    public void parseStates_ReadsSacctOutput() {
+        String output = "103|COMPLETED\n104|CANCELLED by 1000\n105|FAILED+\n";
+
+        Map<String, String> states = SLURMJobPoller.parseStates(output);
+
+        Assert.assertEquals("COMPLETED", states.get("103"));
+        Assert.assertEquals("CANCELLED", states.get("104"));
+        Assert.assertEquals("FAILED", states.get("105"));
+    }
+
+    @Test
+    public void parseStates_ArrayJobIsNotTerminalWhileAnyTaskIsActive() {
+        String output = "106_0 COMPLETED\n106_1 RUNNING\n106_[2-9] PENDING\n";
+
+        Map<String, String> states = SLURMJobPoller.parseStates(output);
+
+        Assert.assertEquals("RUNNING", states.get("106"));
+    }
+
+    @Test
+    public void parseStates_ArrayJobReportsFailedTaskOverCompletedTask() {
+        String output = "107_0|COMPLETED\n107_1|FAILED\n107_2|COMPLETED\n";
+
+        Map<String, String> states = SLURMJobPoller.parseStates(output);
+
+        Assert.assertEquals("FAILED", states.get("107"));
+    }
+
+    @Test
+    public void parseStates_IgnoresBlankAndMalformedLines() {
+        String output = "\n   \n108\n109 PENDING\n";
+
+        Map<String, String> states = SLURMJobPoller.parseStates(output);
+
+        Assert.assertEquals(1, states.size());
+        Assert.assertEquals("PENDING", states.get("109"));
+        Assert.assertTrue(SLURMJobPoller.parseStates(null).isEmpty());
+    }
+
+    @Test
+    public void resolve_FailedCommandsNeverCountAsMisses() {
+        SLURMJobPoller.TrackedJob job = new SLURMJobPoller.TrackedJob("110");
+
+        for (int i = 0; i < 2 * SLURMJobPoller.MAX_MISSES; i++) {
+            Assert.assertNull(job.resolve(null, false)); //controller unreachable
+        }
+        for (int i = 1; i < SLURMJobPoller.MAX_MISSES; i++) {
+            Assert.assertNull(job.resolve(null, true));
+        }
+        Assert.assertEquals(SLURMJobPoller.UNKNOWN_STATE, job.resolve(null, true));
+    }
+
+    @Test
+    public void resolve_ReportedStateResetsMisses() {
+        SLURMJobPoller.TrackedJob job = new SLURMJobPoller.TrackedJob("111");
+
+        for (int i = 1; i < SLURMJobPoller.MAX_MISSES; i++) {
+            Assert.assertNull(job.resolve(null, true));
+        }
+        Assert.assertEquals("RUNNING", job.resolve("RUNNING", true));
+        Assert.assertNull(job.resolve(null, true));
+    }
+}
@@ -0,0 +1,119 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks parsing the output of one poll of many jobs with
+ * SLURMOutputParser, against the regular expressions it replaced.
+ */
+@State(Scope.Benchmark)
+public class SLURMOutputParserBenchmark {
+
+    /**
+     * Number of jobs in each output.
+     */
+    @Param({"10", "1000"})
+    public int jobs;
+
+    private String squeue;
+    private String sacct;
+    private String communication;
+
+    @Setup
+    public void setUp() {
+        String[] states = {"PENDING", "RUNNING", "COMPLETED", "CANCELLED by 1000"};
+        StringBuilder squeueOutput = new StringBuilder();
+        StringBuilder sacctOutput = new StringBuilder();
+        for (int i = 0; i < jobs; i++) {
+            String jobID = Integer.toString(1000000 + i);
+            squeueOutput.append(jobID).append(i % 5 == 0 ? "_" + i : "").append(' ')
+                    .append(states[i % states.length]).append('\n');
+            sacctOutput.append(jobID).append("|0:0|01:02.345|00:03.210|1622548800|1622548810|1622552410|node[")
+                    .append(i % 64).append("-").append(i % 64 + 1)
+                    .append("]|01:05.555|28800|01:00:00|8|jenkins_slurm_").append(i).append('\n');
+        }
+        squeue = squeueOutput.toString();
+        sacct = sacctOutput.toString();
+        communication = "0\n0m1.500s 0m0.500s\n12m34.567s 1m2.345s\n";
+    }
+
+    @Benchmark
+    public Map<String, String> parseStates() {
+        return SLURMJobPoller.parseStates(squeue);
+    }
+
+    /**
+     * The line splitting parseStates used before, without folding tasks into jobs.
+     */
+    @Benchmark
+    public Map<String, String> parseStatesRegex() {
+        Map<String, String> states = new HashMap<String, String>();
+        for (String line : squeue.split("\n")) {
+            String[] fields = line.trim().split("[|\\s]+");
+            if (fields.length >= 2 && !fields[0].isEmpty()) {
+                states.put(fields[0], fields[1]);
+            }
+        }
+        return states;
+    }
+
+    @Benchmark
+    public double parseAccounting() {
+        double total = 0;
+        for (String[] fields : SLURMOutputParser.parseRecords(sacct, '|', SLURMSystem.ACCOUNTING_FIELDS)) {
+            total += SLURMOutputParser.parseDuration(fields[2]) + SLURMOutputParser.parseDuration(fields[3]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double parseAccountingRegex() {
+        double total = 0;
+        for (String line : sacct.split("\n")) {
+            String[] fields = line.trim().split("\\|", -1);
+            total += regexDuration(fields[2]) + regexDuration(fields[3]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double[] parseCommunication() {
+        return SLURMOutputParser.parseCommunication(communication);
+    }
+
+    @Benchmark
+    public List<String> parseJobID() {
+        List<String> ids = new ArrayList<String>(2);
+        ids.add(SLURMOutputParser.parseJobID("1234567\n"));
+        ids.add(SLURMOutputParser.parseJobID("Submitted batch job 1234567\n"));
+        return ids;
+    }
+
+    /**
+     * The duration parsing SLURMOutputParser replaced, without its error handling.
+     */
+    private static double regexDuration(final String duration) {
+        String rest = duration.trim();
+        double seconds = 0;
+        int dash = rest.indexOf('-');
+        if (dash >= 0) {
+            seconds += Long.parseLong(rest.substring(0, dash)) * 86400;
+            rest = rest.substring(dash + 1);
+        }
+        String[] parts = rest.split(":");
+        double multiplier = 1;
+        for (int i = parts.length - 1; i >= 0; i--) {
+            seconds += Double.parseDouble(parts[i]) * multiplier;
+            multiplier *= 60;
+        }
+        return seconds;
+    }
+}
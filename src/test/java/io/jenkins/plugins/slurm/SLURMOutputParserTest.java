@@ -0,0 +1,126 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SLURMOutputParserTest {//tests SLURMOutputParser on realistic and malformed output
+
+    private static final String[] SAMPLES = {
+        "12345\n",
+        "12345;cluster\n",
+        "sbatch: warning: can't honor --ntasks-per-node\nSubmitted batch job 12345\n",
+        "101 PENDING\n102_[3-9] PENDING\n102_1 RUNNING\n",
+        "103|COMPLETED\n104|CANCELLED by 1000\n105.batch|FAILED+\n",
+        "123|0:0|00:01.000|00:00.500|100|110|170|node[1-2]|00:01.500|480|00:01:00|8|job\n",
+        "0\n0m1.500s 0m0.500s\n1m0.000s 0m2.000s\n",
+        "2-01:02:03",
+        "01:01.500",
+    };
+
+    /**
+     * Apply a few random insertions, deletions, replacements and truncations.
+     */
+    private String mutate(final String sample, final Random random) {
+        String alphabet = "0123456789|:;.-_ \n\tms[]+abcSubmitted batch job";
+        StringBuilder text = new StringBuilder(sample);
+        int mutations = 1 + random.nextInt(4);
+        for (int i = 0; i < mutations; i++) {
+            int at = text.length() == 0 ? 0 : random.nextInt(text.length());
+            switch (random.nextInt(4)) {
+                case 0:
+                    text.insert(at, alphabet.charAt(random.nextInt(alphabet.length())));
+                    break;
+                case 1:
+                    if (text.length() > 0) {
+                        text.deleteCharAt(at);
+                    }
+                    break;
+                case 2:
+                    if (text.length() > 0) {
+                        text.setCharAt(at, alphabet.charAt(random.nextInt(alphabet.length())));
+                    }
+                    break;
+                default:
+                    text.setLength(at);
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void parseJobID_ReadsParsableAndPlainOutput() {
+        Assert.assertEquals("12345", SLURMOutputParser.parseJobID("12345\n"));
+        Assert.assertEquals("12345", SLURMOutputParser.parseJobID("12345;cluster\n"));
+        Assert.assertEquals("12345", SLURMOutputParser.parseJobID("Submitted batch job 12345 on cluster c\n"));
+        Assert.assertEquals("12345", SLURMOutputParser.parseJobID(SAMPLES[2]));
+    }
+
+    @Test
+    public void parseJobID_NullWithoutJobID() {
+        Assert.assertNull(SLURMOutputParser.parseJobID(null));
+        Assert.assertNull(SLURMOutputParser.parseJobID(""));
+        Assert.assertNull(SLURMOutputParser.parseJobID("sbatch: error: Batch job submission failed\n"));
+        Assert.assertNull(SLURMOutputParser.parseJobID("Submitted batch job\n"));
+    }
+
+    @Test
+    public void parseRecords_KeepsEmptyFields() {
+        List<String[]> records = SLURMOutputParser.parseRecords("1|a||\n\n2|b\n", '|', 3);
+
+        Assert.assertEquals(1, records.size());
+        Assert.assertArrayEquals(new String[] {"1", "a", "", ""}, records.get(0));
+    }
+
+    @Test
+    public void parseColumns_SplitsOnSpacesAndPipes() {
+        List<String[]> records = SLURMOutputParser.parseColumns(" 104|CANCELLED by 1000\n105   RUNNING\n106\n", 2);
+
+        Assert.assertEquals(2, records.size());
+        Assert.assertArrayEquals(new String[] {"104", "CANCELLED"}, records.get(0));
+        Assert.assertArrayEquals(new String[] {"105", "RUNNING"}, records.get(1));
+    }
+
+    @Test
+    public void parseCommunication_TimesMissingIfMalformed() {
+        double[] parsed = SLURMOutputParser.parseCommunication("3\n0m1.5s garbage\n");
+
+        Assert.assertEquals(3, parsed[0], 1e-9);
+        Assert.assertEquals(-1, parsed[1], 1e-9);
+        Assert.assertArrayEquals(new double[] {0, -1, -1}, SLURMOutputParser.parseCommunication("0\n"), 1e-9);
+        Assert.assertNull(SLURMOutputParser.parseCommunication("not a number\n"));
+    }
+
+    @Test
+    public void parseLong_RejectsOverflowAndJunk() {
+        Assert.assertEquals(-42, SLURMOutputParser.parseLong(" -42 ", 0));
+        Assert.assertEquals(7, SLURMOutputParser.parseLong("99999999999999999999", 7));
+        Assert.assertEquals(7, SLURMOutputParser.parseLong("4x", 7));
+        Assert.assertEquals(7, SLURMOutputParser.parseLong("-", 7));
+    }
+
+    @Test
+    public void fuzz_NeverThrowsOnMalformedOutput() {
+        Random random = new Random(20211017L); //fixed, so failures are reproducible
+        for (int i = 0; i < 20000; i++) {
+            String input = mutate(SAMPLES[random.nextInt(SAMPLES.length)], random);
+
+            String jobID = SLURMOutputParser.parseJobID(input);
+            Assert.assertTrue(input, jobID == null || jobID.matches("[0-9]+"));
+            for (String[] record : SLURMOutputParser.parseRecords(input, '|', 2)) {
+                Assert.assertTrue(input, record.length >= 2);
+            }
+            for (String[] record : SLURMOutputParser.parseColumns(input, 2)) {
+                Assert.assertFalse(input, record[0].isEmpty() || record[1].isEmpty());
+            }
+            double duration = SLURMOutputParser.parseDuration(input);
+            Assert.assertTrue(input, duration == -1 || duration >= 0);
+            double[] communication = SLURMOutputParser.parseCommunication(input);
+            Assert.assertTrue(input, communication == null
+                    || (communication[1] == -1) == (communication[2] == -1));
+            Assert.assertTrue(input, SLURMOutputParser.parseEpochSeconds(input) >= -1);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SLURMOutputTailerTest {//tests reading of new output by SLURMOutputTailer
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void write(final String name, final String text) throws Exception {
+        Files.write(new File(folder.getRoot(),name).toPath(),text.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE,StandardOpenOption.APPEND);
+    }
+
+    private List<SLURMOutputTailer.Chunk> tail(final Map<String, Long> offsets, final int chunkSize) throws Exception {
+        return new SLURMOutputTailer.TailCallable("slurm-12",offsets,chunkSize).invoke(folder.getRoot(),null);
+    }
+
+    @Test
+    public void tail_ReadsOnlyNewBytes() throws Exception {
+        write("slurm-12.out","first\n");
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        offsets.put("slurm-12.out",6L);
+        write("slurm-12.out","second\n");
+
+        List<SLURMOutputTailer.Chunk> chunks = tail(offsets,1024);
+
+        Assert.assertEquals(1,chunks.size());
+        Assert.assertEquals(6L,chunks.get(0).getOffset());
+        Assert.assertEquals("second\n",new String(chunks.get(0).getData(),StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tail_IgnoresOutputOfOtherJobs() throws Exception {
+        write("slurm-123.out","other job\n");
+        write("slurm-12_3.out","array task\n");
+
+        List<SLURMOutputTailer.Chunk> chunks = tail(new HashMap<String, Long>(),1024);
+
+        Assert.assertEquals(1,chunks.size());
+        Assert.assertEquals("slurm-12_3.out",chunks.get(0).getFileName());
+    }
+
+    @Test
+    public void tail_LimitsChunkSize() throws Exception {
+        write("slurm-12.out","0123456789");
+
+        List<SLURMOutputTailer.Chunk> chunks = tail(new HashMap<String, Long>(),4);
+
+        Assert.assertEquals("0123",new String(chunks.get(0).getData(),StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tail_StartsAgainIfFileIsTruncated() throws Exception {
+        write("slurm-12.out","new");
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        offsets.put("slurm-12.out",100L);
+
+        List<SLURMOutputTailer.Chunk> chunks = tail(offsets,1024);
+
+        Assert.assertEquals("new",new String(chunks.get(0).getData(),StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,77 @@
+package io.jenkins.plugins.slurm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SLURMPreflightTest {//tests reading and keeping verdicts of sbatch --test-only in SLURMPreflight
+
+    @Test
+    public void testParseAccepted() {
+        SLURMPreflight.Verdict verdict = SLURMPreflight.parse(0,
+                "sbatch: Job 1234 to start at 2021-10-17T10:00:00 using 8 processors on nodes node01 in partition compute\n");
+        Assert.assertEquals(SLURMPreflight.Outcome.ACCEPTED, verdict.getOutcome());
+        Assert.assertEquals("Job 1234 to start at 2021-10-17T10:00:00 using 8 processors on nodes node01 in partition compute",
+                verdict.getMessage());
+        Assert.assertEquals("accepted", SLURMPreflight.parse(0, null).getMessage());
+    }
+
+    @Test
+    public void testParseRejected() {
+        SLURMPreflight.Verdict verdict = SLURMPreflight.parse(1,
+                "sbatch: error: Batch job submission failed: Requested node configuration is not available\n");
+        Assert.assertEquals(SLURMPreflight.Outcome.REJECTED, verdict.getOutcome());
+        Assert.assertEquals("Batch job submission failed: Requested node configuration is not available",
+                verdict.getMessage());
+        //the controller could not be reached: not a verdict on the job
+        verdict = SLURMPreflight.parse(1, "sbatch: error: Socket timed out on send/recv operation\n");
+        Assert.assertEquals(SLURMPreflight.Outcome.UNKNOWN, verdict.getOutcome());
+        Assert.assertEquals(SLURMPreflight.Outcome.UNKNOWN, SLURMPreflight.parse(127, "").getOutcome());
+        Assert.assertEquals("sbatch --test-only exited with code 127", SLURMPreflight.parse(127, "").getMessage());
+    }
+
+    @Test
+    public void testParseControllerProblemsAreNotRejections() {
+        String[] errors = {
+            "sbatch: error: Batch job submission failed: Unable to contact slurm controller (connect failure)\n",
+            "sbatch: error: Batch job submission failed: Socket timed out on send/recv operation\n",
+            "sbatch: error: Batch job submission failed: Resource temporarily unavailable\n",
+            "sbatch: error: Batch job submission failed: Zero Bytes were transmitted or received\n"};
+        SLURMPreflight preflight = new SLURMPreflight();
+        String key = SLURMPreflight.key("compute", 1, 4, 2, 60, "", false, null, 0, "");
+        for (String error : errors) {
+            SLURMPreflight.Verdict verdict = SLURMPreflight.parse(1, error);
+            Assert.assertEquals(error, SLURMPreflight.Outcome.UNKNOWN, verdict.getOutcome());
+            preflight.putVerdict(key, verdict);
+            Assert.assertNull(preflight.getVerdict(key)); //not kept
+        }
+        //policy errors are still verdicts on the job
+        Assert.assertEquals(SLURMPreflight.Outcome.REJECTED, SLURMPreflight.parse(1,
+                "sbatch: error: Batch job submission failed: Job violates accounting/QOS policy (job submit limit, user's size and/or time limits)\n")
+                .getOutcome());
+        Assert.assertEquals(SLURMPreflight.Outcome.REJECTED, SLURMPreflight.parse(1,
+                "sbatch: error: Batch job submission failed: Invalid account or account/partition combination specified\n")
+                .getOutcome());
+    }
+
+    @Test
+    public void testVerdictsKept() {
+        SLURMPreflight preflight = new SLURMPreflight();
+        String key = SLURMPreflight.key("compute", 1, 4, 2, 60, "", false, null, 0, "");
+        Assert.assertNull(preflight.getVerdict(key));
+        preflight.putVerdict(key, SLURMPreflight.parse(0, ""));
+        Assert.assertEquals(SLURMPreflight.Outcome.ACCEPTED, preflight.getVerdict(key).getOutcome());
+        Assert.assertNull(preflight.getVerdict(SLURMPreflight.key("compute", 2, 4, 2, 60, "", false, null, 0, "")));
+        String other = SLURMPreflight.key("debug", 1, 4, 2, 60, "", false, null, 0, "");
+        preflight.putVerdict(other, SLURMPreflight.parse(1, "sbatch: error: Socket timed out\n"));
+        Assert.assertNull(preflight.getVerdict(other));
+        //expired verdicts are checked again
+        preflight.putVerdict(other, new SLURMPreflight.Verdict(SLURMPreflight.Outcome.ACCEPTED, "accepted",
+                System.currentTimeMillis() - SLURMPreflight.TTL));
+        Assert.assertNull(preflight.getVerdict(other));
+    }
+
+    @Test
+    public void testScript() {
+        Assert.assertEquals("#!/bin/bash\n#SBATCH -N 1\ntrue\n", SLURMPreflight.testScript("#SBATCH -N 1\n"));
+    }
+}
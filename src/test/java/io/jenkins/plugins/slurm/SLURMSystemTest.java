@@ -0,0 +1,84 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SLURMSystemTest {//tests parsing of sacct values in SLURMSystem
+
+    @Test
+    public void parseDuration_ReadsMinutesAndSeconds() {
+        Assert.assertEquals(61.5, SLURMSystem.parseDuration("01:01.500"), 1e-9);
+    }
+
+    @Test
+    public void parseDuration_ReadsHours() {
+        Assert.assertEquals(3723, SLURMSystem.parseDuration("01:02:03"), 1e-9);
+    }
+
+    @Test
+    public void parseDuration_ReadsDays() {
+        Assert.assertEquals(2 * 86400 + 3723, SLURMSystem.parseDuration("2-01:02:03"), 1e-9);
+    }
+
+    @Test
+    public void parseDuration_NegativeForInvalidInput() {
+        Assert.assertEquals(-1, SLURMSystem.parseDuration(""), 1e-9);
+        Assert.assertEquals(-1, SLURMSystem.parseDuration(null), 1e-9);
+        Assert.assertEquals(-1, SLURMSystem.parseDuration("INVALID"), 1e-9);
+        Assert.assertEquals(-1, SLURMSystem.parseDuration("1:2:3:4"), 1e-9);
+    }
+
+    @Test
+    public void parseEpochSeconds_NegativeForUnknownTimes() {
+        Assert.assertEquals(1622548800L, SLURMSystem.parseEpochSeconds("1622548800"));
+        Assert.assertEquals(-1, SLURMSystem.parseEpochSeconds("Unknown"));
+        Assert.assertEquals(-1, SLURMSystem.parseEpochSeconds("None"));
+        Assert.assertEquals(-1, SLURMSystem.parseEpochSeconds("0"));
+    }
+
+    @Test
+    public void taskFileName_InsertsIndexBeforeExtension() {
+        Assert.assertEquals("comms_3.txt", SLURMSystem.taskFileName("comms.txt", "3"));
+        Assert.assertEquals("comms_*", SLURMSystem.taskFileName("comms", "*"));
+    }
+
+    @Test
+    public void parseCommunication_ReadsExitCodeAndTimes() {
+        double[] parsed = SLURMSystem.parseCommunication("2\n0m1.500s 0m0.500s\n1m0.000s 0m2.000s\n");
+
+        Assert.assertEquals(2, parsed[0], 1e-9);
+        Assert.assertEquals(61.5, parsed[1], 1e-6);
+        Assert.assertEquals(2.5, parsed[2], 1e-6);
+        Assert.assertNull(SLURMSystem.parseCommunication("  "));
+    }
+
+    @Test
+    public void parseAccounting_KeepsAllocationsAndStepsOfJob() {
+        String output = "123|0:0|00:01.000|00:00.500|100|110|170|node[1-2]|00:01.500|480|00:01:00|8|job\n"
+                + "123.batch|0:0|00:01.000|00:00.500|110|110|170|node1|00:01.500|240|00:01:00|4|batch\n"
+                + "1234|0:0|||100|110|170|node3||60|00:01:00|1|other\n"
+                + "123|0:0|too few fields\n";
+
+        List<String[]> lines = SLURMSystem.parseAccounting("123", output);
+
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals("123.batch", lines.get(1)[0]);
+        Assert.assertTrue(SLURMSystem.parseAccounting("123", null).isEmpty());
+    }
+
+    @Test
+    public void toResult_ChargesAllocatedCpuTimeOverAllNodes() {
+        String[] fields = "123|0:0|||100|110|170|node[1-2]|01:30.000|480|00:01:00|8|job".split("\\|", -1);
+
+        SubmissionResult result = SLURMSystem.toResult("123", fields, 0, -1, -1);
+
+        Assert.assertEquals(480, result.getAllocatedCpuSeconds());
+        Assert.assertEquals(60, result.getElapsedSeconds());
+        Assert.assertEquals(90, result.getCpuSeconds(), 1e-9); //from TotalCPU
+        Assert.assertEquals(10, result.getQueueWaitSeconds());
+
+        fields[9] = "";
+        Assert.assertEquals(480, SLURMSystem.toResult("123", fields, 0, -1, -1).getAllocatedCpuSeconds());
+    }
+}
@@ -0,0 +1,91 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScriptCacheTest {//tests the keys, lookup and eviction of ScriptCache
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void key_ChangesWithScriptAndPrefix() {
+        String key = ScriptCache.key("echo hi\n", "#SBATCH");
+        Assert.assertEquals(key, ScriptCache.key("echo hi\n", "#SBATCH"));
+        Assert.assertEquals(64, key.length());
+        Assert.assertNotEquals(key, ScriptCache.key("echo hi\n", "#PBS"));
+        Assert.assertNotEquals(key, ScriptCache.key("echo ho\n", "#SBATCH"));
+        //parts cannot run into each other
+        Assert.assertNotEquals(ScriptCache.key("Hecho hi\n", "#SBATC"), key);
+    }
+
+    @Test
+    public void lookup_OnlyHitsWithExpectedDigest() throws Exception {
+        File workspace = folder.newFolder();
+        String key = ScriptCache.key("echo hi\n", "#SBATCH");
+        File build = new File(workspace, "_slurm_1_a");
+        build.mkdirs();
+        Assert.assertFalse(new ScriptCache.LookupCallable(key, null, "_slurm_1_a/user.sh").invoke(workspace, null));
+
+        Files.write(new File(build, "user.sh").toPath(), "echo hi\n".getBytes(StandardCharsets.UTF_8));
+        new ScriptCache.PublishCallable(key, "_slurm_1_a/user.sh", 4).invoke(workspace, null);
+        File script = new File(workspace, ScriptCache.getPath(key));
+        String digest = StagingCache.digestOf(script);
+        File other = new File(workspace, "_slurm_2_b");
+        other.mkdirs();
+        Assert.assertTrue(new ScriptCache.LookupCallable(key, digest, "_slurm_2_b/user.sh").invoke(workspace, null));
+        Assert.assertEquals(digest, StagingCache.digestOf(new File(other, "user.sh")));
+
+        //changed on the agent - not reused, but left for the next publish to replace
+        Files.write(script.toPath(), "echo changed\n".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(new ScriptCache.LookupCallable(key, digest, "_slurm_2_b/user.sh").invoke(workspace, null));
+        Assert.assertTrue(script.exists());
+    }
+
+    @Test
+    public void publish_LeavesCopiesOfBuildsAlone() throws Exception {
+        File workspace = folder.newFolder();
+        String key = ScriptCache.key("echo hi\n", "#SBATCH");
+        File first = new File(workspace, "_slurm_1_a/user.sh");
+        first.getParentFile().mkdirs();
+        Files.write(first.toPath(), "echo one\n".getBytes(StandardCharsets.UTF_8));
+        new ScriptCache.PublishCallable(key, "_slurm_1_a/user.sh", 4).invoke(workspace, null);
+
+        //a second build publishes a new version while the first is queued
+        File second = new File(workspace, "_slurm_2_b/user.sh");
+        second.getParentFile().mkdirs();
+        Files.write(second.toPath(), "echo two\n".getBytes(StandardCharsets.UTF_8));
+        new ScriptCache.PublishCallable(key, "_slurm_2_b/user.sh", 4).invoke(workspace, null);
+
+        Assert.assertEquals("echo one\n", new String(Files.readAllBytes(first.toPath()), StandardCharsets.UTF_8));
+        Assert.assertEquals("echo two\n", new String(Files.readAllBytes(
+                new File(workspace, ScriptCache.getPath(key)).toPath()), StandardCharsets.UTF_8));
+        Assert.assertEquals(1, new File(workspace, ScriptCache.DIRECTORY).list().length); //no partial left
+    }
+
+    @Test
+    public void evict_KeepsMostRecentlyUsed() throws Exception {
+        File dir = folder.newFolder();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            File script = new File(dir, i + ".sh");
+            Files.write(script.toPath(), new byte[] {'x'});
+            script.setLastModified(now - (5 - i) * 60000L); //4.sh is newest
+        }
+        File stale = new File(dir, "9.sh.part-1");
+        Files.write(stale.toPath(), new byte[] {'x'});
+        stale.setLastModified(now - 2 * 60 * 60 * 1000L);
+
+        Assert.assertEquals(3, ScriptCache.evict(dir, 3));
+        Assert.assertFalse(new File(dir, "0.sh").exists());
+        Assert.assertFalse(new File(dir, "1.sh").exists());
+        Assert.assertTrue(new File(dir, "2.sh").exists());
+        Assert.assertTrue(new File(dir, "4.sh").exists());
+        Assert.assertFalse(stale.exists());
+    }
+}
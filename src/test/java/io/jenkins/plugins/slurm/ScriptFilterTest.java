@@ -0,0 +1,60 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.Scanner;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScriptFilterTest {//tests ScriptFilter against the Scanner-based filter it replaced
+
+    /**
+     * The filter ScriptFilter replaced.
+     */
+    private String scannerFilter(final String script, final String prefix) {
+        Scanner scanner = new Scanner(script);
+        StringBuilder buffer = new StringBuilder();
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine();
+            if (line.indexOf(prefix) != 0) {
+                buffer.append(line + "\n");
+            }
+        }
+        return buffer.toString();
+    }
+
+    private String filter(final String script, final String prefix) throws Exception {
+        StringWriter out = new StringWriter();
+        ScriptFilter.filter(script, prefix, out);
+        return out.toString();
+    }
+
+    @Test
+    public void filter_SplitsLinesLikeScanner() throws Exception {
+        String[] scripts = {"", "\n", "a", "a\n\n", "a\r\nb\rc\n", "#TEST\r\n#TEST x\n y", "a\u2028b\u0085\n"};
+        for (String script : scripts) {
+            Assert.assertEquals(scannerFilter(script, "#TEST"), filter(script, "#TEST"));
+        }
+    }
+
+    @Test
+    public void filter_MatchesScannerOnRandomScripts() throws Exception {
+        Random random = new Random(20211017L); //fixed, so failures are reproducible
+        String[] pieces = {"#TEST", "#TES", "echo hi", " ", "\t", "\n", "\r", "\r\n", "x"};
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder script = new StringBuilder();
+            for (int j = random.nextInt(20); j > 0; j--) {
+                script.append(pieces[random.nextInt(pieces.length)]);
+            }
+            String expected = scannerFilter(script.toString(), "#TEST");
+            Assert.assertEquals(expected, filter(script.toString(), "#TEST"));
+            Assert.assertEquals(!expected.trim().isEmpty(),
+                    ScriptFilter.filter(script.toString(), "#TEST", null));
+        }
+    }
+
+    @Test
+    public void filter_FalseForNullScript() throws Exception {
+        Assert.assertFalse(ScriptFilter.filter(null, "#TEST", null));
+    }
+}
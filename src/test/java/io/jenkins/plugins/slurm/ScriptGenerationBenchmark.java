@@ -0,0 +1,130 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the work done on every build before a job is submitted:
+ * filtering the user's script, generating the user and system scripts and
+ * formatting batch options.
+ */
+@State(Scope.Benchmark)
+public class ScriptGenerationBenchmark {
+
+    /**
+     * Size of the user's script: a handful of lines, a typical job script,
+     * or a pathological 100,000 line one.
+     */
+    @Param({"small", "typical", "pathological"})
+    public String script;
+
+    private SLURMBuilder builder;
+    private String rawScript;
+    private String batchOptions;
+
+    @Setup
+    public void setUp() {
+        int lines;
+        switch (script) {
+            case "small":
+                lines = 5;
+                break;
+            case "typical":
+                lines = 60;
+                break;
+            default:
+                lines = 100000;
+                break;
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            switch (i % 10) {
+                case 0:
+                    text.append("#SBATCH --mem=").append(i).append("M\n"); //filtered out
+                    break;
+                case 1:
+                    text.append("# comment about step ").append(i).append('\n');
+                    break;
+                case 2:
+                    text.append('\n');
+                    break;
+                case 3:
+                    text.append("srun --ntasks=4 ./simulate --input=data/input_").append(i)
+                            .append(".dat --output=results/output_").append(i)
+                            .append(".dat --iterations=1000 --tolerance=1e-9\n");
+                    break;
+                default:
+                    text.append("echo \"step ").append(i).append(" done at $(date)\"\n");
+                    break;
+            }
+        }
+        rawScript = text.toString();
+        builder = new SLURMBuilder(rawScript, 2, 8, 4, 60, "compute", "haswell", false, "");
+        batchOptions = formatBatchOptions();
+    }
+
+    @Benchmark
+    public String filterScript() {
+        return builder.filterScript(rawScript, "#SBATCH");
+    }
+
+    /**
+     * The Scanner-based filter which ScriptFilter replaced.
+     */
+    @Benchmark
+    public String filterScriptScanner() {
+        Scanner scanner = new Scanner(rawScript);
+        StringBuffer buffer = new StringBuffer();
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine();
+            if (line.indexOf("#SBATCH") != 0) {
+                buffer.append(line + "\n");
+            }
+        }
+        return buffer.toString();
+    }
+
+    @Benchmark
+    public boolean isScriptValid() {
+        return builder.isScriptValid(rawScript, "#SBATCH");
+    }
+
+    @Benchmark
+    public String generateUserScript() {
+        return builder.generateUserScript(rawScript, "#SBATCH");
+    }
+
+    /**
+     * Writing the user script as a build does, to a stream rather than a string.
+     */
+    @Benchmark
+    public boolean writeUserScript() throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                NullOutputStream.NULL_OUTPUT_STREAM, StandardCharsets.UTF_8))) {
+            return builder.writeUserScript(rawScript, "#SBATCH", out);
+        }
+    }
+
+    @Benchmark
+    public String generateSystemScript() {
+        return builder.generateSystemScript(batchOptions,
+                "_slurm_1_0123456789abcdef/_user_script.sh",
+                "_slurm_1_0123456789abcdef/comms.txt");
+    }
+
+    @Benchmark
+    public String formatBatchOptions() {
+        return SLURMSlave.formatBatchOptions("#SBATCH", 2, 8, 4, 60,
+                "compute", "haswell", false, "0-99", 10);
+    }
+}
@@ -0,0 +1,140 @@
+package io.jenkins.plugins.slurm;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StagingCacheTest {//tests the agent side of StagingCache
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File blob(final File blobs, final String text, final long lastUsed) throws Exception {
+        File file = new File(blobs,"digest-" + text);
+        Files.write(file.toPath(),text.getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(lastUsed);
+        return file;
+    }
+
+    @Test
+    public void link_PlacesCachedFilesInWorkspaceReadOnly() throws Exception {
+        File blobs = folder.newFolder("blobs");
+        File workspace = folder.newFolder("workspace");
+        File cached = blob(blobs,"reference data",1000000L);
+        Files.write(new File(workspace,"old.dat").toPath(),"stale".getBytes(StandardCharsets.UTF_8));
+        Map<String, String> digests = new LinkedHashMap<String, String>();
+        digests.put("old.dat",cached.getName());
+        digests.put("inputs/copy.dat",cached.getName());
+
+        new StagingCache.LinkCallable(blobs.getPath(),digests).invoke(workspace,null);
+
+        for (String path : digests.keySet()) {
+            Assert.assertEquals("reference data",new String(Files.readAllBytes(
+                    new File(workspace,path).toPath()),StandardCharsets.UTF_8));
+        }
+        Assert.assertFalse(Files.getPosixFilePermissions(cached.toPath())
+                .contains(PosixFilePermission.OWNER_WRITE)); //canWrite() is always true for root
+        Assert.assertTrue(cached.lastModified() > 1000000L); //marked as used
+    }
+
+    @Test
+    public void evict_RemovesLeastRecentlyUsedUntilUnderCap() throws Exception {
+        File blobs = folder.newFolder("blobs");
+        File oldest = blob(blobs,"aaaaaaaaaa",1000000L);
+        File kept = blob(blobs,"bbbbbbbbbb",2000000L);
+        File middle = blob(blobs,"cccccccccc",3000000L);
+        File newest = blob(blobs,"dddddddddd",4000000L);
+
+        int evicted = StagingCache.evict(blobs,20,Collections.singleton(kept.getName()));
+
+        Assert.assertEquals(2,evicted);
+        Assert.assertFalse(oldest.exists());
+        Assert.assertTrue(kept.exists());
+        Assert.assertFalse(middle.exists());
+        Assert.assertTrue(newest.exists());
+    }
+
+    @Test
+    public void evict_SkipsFilesLinkedIntoWorkspacesOrLeased() throws Exception {
+        File blobs = folder.newFolder("blobs");
+        File workspace = folder.newFolder("workspace");
+        File linked = blob(blobs,"aaaaaaaaaa",1000000L);
+        File leased = blob(blobs,"bbbbbbbbbb",System.currentTimeMillis());
+        File unused = blob(blobs,"cccccccccc",2000000L);
+        Files.createLink(new File(workspace,"input.dat").toPath(),linked.toPath());
+
+        Assert.assertEquals(1,StagingCache.evict(blobs,0,Collections.<String>emptySet()));
+        Assert.assertTrue(linked.exists());
+        Assert.assertTrue(leased.exists());
+        Assert.assertFalse(unused.exists());
+    }
+
+    @Test
+    public void findMissing_LeasesFoundFilesBeforeEvicting() throws Exception {
+        File cacheDir = folder.newFolder("slurm-cache");
+        File blobs = new File(cacheDir,"blobs");
+        blobs.mkdirs();
+        File found = blob(blobs,"aaaaaaaaaa",1000000L);
+        File other = blob(blobs,"bbbbbbbbbb",2000000L);
+
+        //first build finds its file, second build evicts down to nothing
+        Assert.assertEquals(Collections.singleton("digest-missing"),new StagingCache.FindMissingCallable(
+                new HashSet<String>(Arrays.asList(found.getName(),"digest-missing")),
+                1024).invoke(cacheDir,null));
+        new StagingCache.FindMissingCallable(Collections.<String>emptySet(),0).invoke(cacheDir,null);
+
+        Assert.assertTrue(found.exists()); //still there for the first build to link
+        Assert.assertFalse(other.exists());
+    }
+
+    @Test
+    public void store_TwoBuildsSendingSameFileBothSucceed() throws Exception {
+        File cacheDir = folder.newFolder("slurm-cache");
+        File blobs = new File(cacheDir,"blobs");
+        blobs.mkdirs();
+        Files.write(new File(blobs,"digest-new.part-1").toPath(),"new".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(blobs,"digest-new.part-2").toPath(),"new".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(Collections.singleton("digest-new"),new StagingCache.FindMissingCallable(
+                Collections.singleton("digest-new"),1024).invoke(cacheDir,null));
+
+        //both builds found it missing and sent it; the second finds it already stored
+        new StagingCache.StoreCallable("digest-new.part-1","digest-new").invoke(blobs,null);
+        new StagingCache.StoreCallable("digest-new.part-2","digest-new").invoke(blobs,null);
+
+        Assert.assertEquals("new",new String(Files.readAllBytes(new File(blobs,"digest-new").toPath()),
+                StandardCharsets.UTF_8));
+        Assert.assertEquals(Collections.singletonList("digest-new"),Arrays.asList(blobs.list()));
+    }
+
+    @Test
+    public void evict_RemovesAbandonedPartialFiles() throws Exception {
+        File blobs = folder.newFolder("blobs");
+        File stale = blob(blobs,"x.part-1",System.currentTimeMillis() - 2 * 60 * 60 * 1000L);
+        File sending = blob(blobs,"y.part-2",System.currentTimeMillis());
+
+        Assert.assertEquals(1,StagingCache.evict(blobs,1024,Collections.<String>emptySet()));
+        Assert.assertFalse(stale.exists());
+        Assert.assertTrue(sending.exists());
+    }
+
+    @Test
+    public void digestOf_DependsOnlyOnContent() throws Exception {
+        File a = folder.newFile("a");
+        File b = folder.newFile("b");
+        Files.write(a.toPath(),"same".getBytes(StandardCharsets.UTF_8));
+        Files.write(b.toPath(),"same".getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(StagingCache.digestOf(a),StagingCache.digestOf(b));
+        Assert.assertEquals(64,StagingCache.digestOf(a).length());
+    }
+}
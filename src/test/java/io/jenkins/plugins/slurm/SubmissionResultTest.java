@@ -0,0 +1,52 @@
+package io.jenkins.plugins.slurm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SubmissionResultTest {//tests combining the results of array tasks in SubmissionResult
+
+    private SubmissionResult task(final int index, final int exitCode, final double cpu,
+            final long start, final long end) {
+        return new SubmissionResult("100", index, exitCode, 0, cpu, cpu < 0 ? -1 : 0,
+                5, start, end, "node" + index);
+    }
+
+    @Test
+    public void aggregate_SumsCpuTimeAndSpansTasks() {
+        SubmissionResult result = SubmissionResult.aggregate("100", Arrays.asList(
+                task(0, 0, 10, 2000, 3000), task(1, 0, 20, 1000, 4000)));
+
+        Assert.assertTrue(result.isSuccessful());
+        Assert.assertEquals(30, result.getCpuSeconds(), 1e-9);
+        Assert.assertEquals(1000, result.getStartTime());
+        Assert.assertEquals(4000, result.getEndTime());
+        Assert.assertEquals("node0,node1", result.getNodeList());
+    }
+
+    @Test
+    public void aggregate_FailsWithFirstFailedTask() {
+        SubmissionResult result = SubmissionResult.aggregate("100", Arrays.asList(
+                task(0, 0, 10, 1, 2), task(1, 3, 10, 1, 2), task(2, 4, 10, 1, 2)));
+
+        Assert.assertFalse(result.isSuccessful());
+        Assert.assertEquals(3, result.getExitCode());
+    }
+
+    @Test
+    public void aggregate_CpuTimeUnknownIfAnyTaskUnknown() {
+        SubmissionResult result = SubmissionResult.aggregate("100", Arrays.asList(
+                task(0, 0, 10, 1, 2), task(1, 0, -1, 1, 2)));
+
+        Assert.assertFalse(result.hasCpuTime());
+    }
+
+    @Test
+    public void aggregate_FailsWithoutTasks() {
+        List<SubmissionResult> tasks = new ArrayList<SubmissionResult>();
+
+        Assert.assertFalse(SubmissionResult.aggregate("100", tasks).isSuccessful());
+    }
+}